@@ -0,0 +1,275 @@
+package ai.sapcai.sdk_android;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the SDK against a MockCaiServer and reports the p50, p99 and p999 latencies and the requests/sec of
+ * each endpoint: textRequest, fileRequest, doTextConverse, the memory PUT and the conversation DELETE.
+ *
+ * The load is open-loop: the i-th request is due at start + i / rate whatever happened to the previous ones, the
+ * endpoints taking turns, and its latency is measured from that time rather than from when it was actually sent.
+ * A stall of the SDK or of the server therefore shows in the latency of every request it delayed, instead of
+ * silently slowing the load down (coordinated omission). The requests are sent by a fixed pool of threads: when
+ * they are all busy the requests wait in its queue, and that wait is part of their latency.
+ *
+ * Run it with key=value arguments, for instance:
+ * LoadGenerator rate=500 duration=30 warmup=10 threads=64 latency=20 jitter=10 entities=10 errors=0.01
+ * endpoints=text,file,converse,memory,delete https=true
+ * With https=true the server speaks TLS with a self-signed certificate, which the connections of the SDK trust.
+ */
+final class LoadGenerator {
+
+    enum Endpoint {
+        TEXT("textRequest"),
+        FILE("fileRequest"),
+        CONVERSE("doTextConverse"),
+        MEMORY("memory PUT"),
+        DELETE("conversation DELETE");
+
+        final String label;
+
+        Endpoint(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * The latencies of an endpoint, kept exactly so that the percentiles need no approximation
+     */
+    static final class Recorder {
+        private final long[]        latencies;
+        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicLong    errors = new AtomicLong();
+
+        Recorder(int capacity) {
+            this.latencies = new long[capacity];
+        }
+
+        void record(long latency, boolean failed) {
+            int i = this.count.getAndIncrement();
+            if (i < this.latencies.length) {
+                this.latencies[i] = latency;
+            }
+            if (failed) {
+                this.errors.incrementAndGet();
+            }
+        }
+
+        int getCount() {
+            return Math.min(this.count.get(), this.latencies.length);
+        }
+
+        long getErrorCount() {
+            return this.errors.get();
+        }
+
+        /**
+         * @param sorted The latencies returned by sorted()
+         * @param quantile The quantile, between 0 and 1
+         * @return The latency in nanoseconds of the quantile, or 0 if nothing was recorded
+         */
+        long percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(quantile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+        }
+
+        long[] sorted() {
+            long[] sorted = Arrays.copyOf(this.latencies, this.getCount());
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    private final Client        client;
+    private final Request       request;
+    private final String        audioFile;
+    private final Endpoint[]    endpoints;
+    private final ThreadLocal<Conversation> conversations;
+
+    LoadGenerator(final HttpTransport transport, String audioFile, Endpoint[] endpoints) {
+        this.audioFile = audioFile;
+        this.endpoints = endpoints;
+        this.client = new Client("token", "en");
+        this.client.setTransport(transport);
+        this.request = new Request("token", "en");
+        this.request.setTransport(transport);
+        // one conversation per thread, so that the memory calls do not wait for each other's flush
+        this.conversations = new ThreadLocal<Conversation>() {
+            @Override
+            protected Conversation initialValue() {
+                Conversation conversation = new Conversation("token", transport);
+                conversation.setConversationToken(Thread.currentThread().getName());
+                conversation.setMemory(new Memory());
+                return conversation;
+            }
+        };
+    }
+
+    private void call(Endpoint endpoint, int i) {
+        switch (endpoint) {
+            case TEXT:
+                this.client.textRequest("What is the weather in London tomorrow?");
+                break;
+            case FILE:
+                this.client.fileRequest(this.audioFile);
+                break;
+            case CONVERSE:
+                this.request.doTextConverse("Hello, what is the weather in London tomorrow?");
+                break;
+            case MEMORY:
+                this.conversations.get().setMemoryEntity("location", new MemoryEntity("London", "london", 0.9 + (i % 10) / 100.0));
+                break;
+            case DELETE:
+                this.conversations.get().resetConversation();
+                break;
+        }
+    }
+
+    /**
+     * Sends -rate- requests per second during -seconds- seconds, then waits for their responses
+     * @param recorders The recorders of the endpoints, or null to discard the latencies
+     * @return The time in nanoseconds from the first request due to the last response
+     */
+    long run(final ExecutorService workers, int rate, int seconds, final Map<Endpoint, Recorder> recorders) throws InterruptedException {
+        long total = (long) rate * seconds;
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        final CountDownLatch done = new CountDownLatch((int) total);
+        final long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            final long due = start + i * interval;
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            final Endpoint endpoint = this.endpoints[i % this.endpoints.length];
+            final int n = i;
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean failed = false;
+                    try {
+                        call(endpoint, n);
+                    } catch (SapcaiException e) {
+                        failed = true;
+                    }
+                    if (recorders != null) {
+                        recorders.get(endpoint).record(System.nanoTime() - due, failed);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    static void report(Map<Endpoint, Recorder> recorders, long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.println(String.format("%-20s %10s %10s %10s %10s %10s %8s",
+                "endpoint", "requests", "req/s", "p50 ms", "p99 ms", "p999 ms", "errors"));
+        for (Map.Entry<Endpoint, Recorder> entry : recorders.entrySet()) {
+            Recorder recorder = entry.getValue();
+            long[] sorted = recorder.sorted();
+            System.out.println(String.format("%-20s %10d %10.1f %10.3f %10.3f %10.3f %8d",
+                    entry.getKey().label, sorted.length, sorted.length / seconds,
+                    recorder.percentile(sorted, 0.5) / 1e6, recorder.percentile(sorted, 0.99) / 1e6,
+                    recorder.percentile(sorted, 0.999) / 1e6, recorder.getErrorCount()));
+        }
+    }
+
+    private static File createAudioFile() throws IOException {
+        // 1 second of 16 kHz mono noise, enough for the multipart upload to matter
+        byte[] content = new byte[32000];
+        new Random(42).nextBytes(content);
+        File file = File.createTempFile("sapcai-load", ".wav");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static Endpoint[] parseEndpoints(String names) {
+        String[] parts = names.split(",");
+        Endpoint[] endpoints = new Endpoint[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            endpoints[i] = Endpoint.valueOf(parts[i].trim().toUpperCase());
+        }
+        return endpoints;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                System.err.println("Usage: LoadGenerator [rate=500] [duration=30] [warmup=10] [threads=64] [latency=20] [jitter=0]"
+                        + " [entities=10] [errors=0] [gzip=false] [https=false] [endpoints=text,file,converse,memory,delete]");
+                System.exit(1);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        int rate = Integer.parseInt(option(options, "rate", "500"));
+        int duration = Integer.parseInt(option(options, "duration", "30"));
+        int warmup = Integer.parseInt(option(options, "warmup", "10"));
+        int threads = Integer.parseInt(option(options, "threads", "64"));
+        Endpoint[] endpoints = parseEndpoints(option(options, "endpoints", "text,file,converse,memory,delete"));
+
+        MockCaiServer server = new MockCaiServer(0, Boolean.parseBoolean(option(options, "https", "false")));
+        server.setLatency(Long.parseLong(option(options, "latency", "20")), Long.parseLong(option(options, "jitter", "0")));
+        server.setErrorRate(Double.parseDouble(option(options, "errors", "0")), 503);
+        server.setGzip(Boolean.parseBoolean(option(options, "gzip", "false")));
+        server.setPayloadSize(Integer.parseInt(option(options, "entities", "10")));
+        server.start();
+
+        HttpTransport transport = new HttpTransport(threads, threads, HttpTransport.DEFAULT_KEEP_ALIVE, HttpTransport.DEFAULT_IDLE_TIMEOUT,
+                server.getClientContext());
+        transport.setBaseUrl(server.getBaseUrl());
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            LoadGenerator generator = new LoadGenerator(transport, createAudioFile().getPath(), endpoints);
+            if (warmup > 0) {
+                generator.run(workers, rate, warmup, null);
+            }
+
+            Map<Endpoint, Recorder> recorders = new EnumMap<>(Endpoint.class);
+            int capacity = (int) ((long) rate * duration / endpoints.length + 1);
+            for (Endpoint endpoint : endpoints) {
+                recorders.put(endpoint, new Recorder(capacity));
+            }
+            long elapsed = generator.run(workers, rate, duration, recorders);
+            System.out.println(rate + " requests/sec offered for " + duration + " s to " + server.getBaseUrl()
+                    + ", " + server.getErrorCount() + " failures injected");
+            report(recorders, elapsed);
+        } finally {
+            workers.shutdownNow();
+            transport.close();
+            server.close();
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+}
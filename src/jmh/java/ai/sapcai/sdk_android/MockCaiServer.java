@@ -0,0 +1,317 @@
+package ai.sapcai.sdk_android;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A local stand-in for SAP Conversational AI, serving /v2/request and /v2/converse over HTTP on the loopback
+ * interface with payloads from PayloadGenerator. Each response is sent after a configurable latency, plus a random
+ * jitter, and a configurable share of the requests fails. The responses are delayed on a scheduler instead of
+ * blocking a thread, so the latency does not limit the number of requests in flight.
+ * Point a transport at it with HttpTransport.setBaseUrl(server.getBaseUrl()).
+ *
+ * In HTTPS mode it serves TLS with a self-signed certificate for 127.0.0.1, generated by keytool at startup, so
+ * that the handshakes and encryption of the real service are part of the measure. The transport must then be
+ * created with getClientContext(), which trusts that certificate only.
+ * Run it on its own with: MockCaiServer [port] [latency in ms] [entities] [error rate] [https]
+ */
+final class MockCaiServer implements Closeable {
+
+    private static final byte[] DELETED = "{\"message\": \"Conversation deleted\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FAILED = "{\"message\": \"Injected failure\"}".getBytes(StandardCharsets.UTF_8);
+    private static final String KEY_ALIAS = "mockcai";
+    private static final char[] KEY_PASSWORD = "mockcai".toCharArray();
+
+    static {
+        // without it the small responses wait for the delayed ACKs of the client, adding about 40 ms each
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer                server;
+    private final SSLContext                clientContext;
+    private final ExecutorService           handlers;
+    private final ScheduledExecutorService  responders;
+    private volatile long       latency;
+    private volatile long       jitter;
+    private volatile double     errorRate;
+    private volatile int        errorStatus = 503;
+    private volatile boolean    gzip;
+    private volatile byte[]     requestPayload;
+    private volatile byte[]     conversePayload;
+    private final AtomicLong    requests = new AtomicLong();
+    private final AtomicLong    errors = new AtomicLong();
+
+    /**
+     * @param port The port to listen to, or 0 for any free port
+     */
+    MockCaiServer(int port) throws IOException {
+        this(port, false);
+    }
+
+    /**
+     * @param port The port to listen to, or 0 for any free port
+     * @param https true to serve HTTPS with a self-signed certificate, false for plain HTTP
+     */
+    MockCaiServer(int port, boolean https) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        if (https) {
+            KeyStore keyStore = generateKeyStore();
+            HttpsServer httpsServer = HttpsServer.create(address, 1024);
+            httpsServer.setHttpsConfigurator(new HttpsConfigurator(serverContext(keyStore)));
+            this.server = httpsServer;
+            this.clientContext = clientContext(keyStore);
+        } else {
+            this.server = HttpServer.create(address, 1024);
+            this.clientContext = null;
+        }
+        this.handlers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.responders = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+        this.server.setExecutor(this.handlers);
+        this.server.createContext(HttpTransport.REQUEST_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                MockCaiServer.this.handle(exchange, requestPayload);
+            }
+        });
+        this.server.createContext(HttpTransport.CONVERSE_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                MockCaiServer.this.handle(exchange, "DELETE".equals(exchange.getRequestMethod()) ? DELETED : conversePayload);
+            }
+        });
+        this.setPayloadSize(10);
+    }
+
+    void start() {
+        this.server.start();
+    }
+
+    String getBaseUrl() {
+        InetSocketAddress address = this.server.getAddress();
+        return (this.clientContext != null ? "https://" : "http://") + address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+
+    /**
+     * Returns the SSLContext of the clients of an HTTPS server, trusting its self-signed certificate
+     * @return The context, or null for a plain HTTP server
+     */
+    SSLContext getClientContext() {
+        return this.clientContext;
+    }
+
+    /**
+     * Generates an RSA key and a self-signed certificate for 127.0.0.1 and localhost with the keytool of the
+     * running JDK, as the JDK has no public API to create certificates
+     */
+    private static KeyStore generateKeyStore() throws IOException {
+        File file = File.createTempFile("mockcai", ".p12");
+        file.delete();
+        try {
+            String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+            Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", KEY_ALIAS, "-keyalg", "RSA",
+                    "-keysize", "2048", "-validity", "2", "-dname", "CN=localhost", "-ext", "SAN=ip:127.0.0.1,dns:localhost",
+                    "-storetype", "PKCS12", "-keystore", file.getPath(), "-storepass", new String(KEY_PASSWORD),
+                    "-keypass", new String(KEY_PASSWORD)).redirectErrorStream(true).start();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            InputStream in = process.getInputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+            }
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool failed: " + new String(output.toByteArray(), StandardCharsets.UTF_8));
+            }
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            FileInputStream stored = new FileInputStream(file);
+            try {
+                keyStore.load(stored, KEY_PASSWORD);
+            } finally {
+                stored.close();
+            }
+            return keyStore;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating the certificate", e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to read the generated certificate", e);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static SSLContext serverContext(KeyStore keyStore) throws IOException {
+        try {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(keyStore, KEY_PASSWORD);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to create the server SSLContext", e);
+        }
+    }
+
+    private static SSLContext clientContext(KeyStore keyStore) throws IOException {
+        try {
+            KeyStore trusted = KeyStore.getInstance(KeyStore.getDefaultType());
+            trusted.load(null, null);
+            trusted.setCertificateEntry(KEY_ALIAS, keyStore.getCertificate(KEY_ALIAS));
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(trusted);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to create the client SSLContext", e);
+        }
+    }
+
+    /**
+     * @param latency The time in milliseconds before each response is sent
+     * @param jitter The maximum random time in milliseconds added to the latency
+     */
+    void setLatency(long latency, long jitter) {
+        this.latency = latency;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param entities The number of entities of the responses, and of memory slots and replies of the conversations
+     */
+    void setPayloadSize(int entities) {
+        this.requestPayload = this.encode(PayloadGenerator.response(entities, PayloadGenerator.DEFAULT_SEED));
+        this.conversePayload = this.encode(PayloadGenerator.conversation(entities, entities, entities, PayloadGenerator.DEFAULT_SEED));
+    }
+
+    /**
+     * @param errorRate The share of the requests failing, between 0 and 1
+     * @param errorStatus The status of the failed requests, for instance 503 or 500
+     */
+    void setErrorRate(double errorRate, int errorStatus) {
+        this.errorRate = errorRate;
+        this.errorStatus = errorStatus;
+    }
+
+    /**
+     * Sets whether the payloads set from now on are served gzipped, as SAP Conversational AI does
+     */
+    void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    long getRequestCount() {
+        return this.requests.get();
+    }
+
+    long getErrorCount() {
+        return this.errors.get();
+    }
+
+    private byte[] encode(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        if (!this.gzip) {
+            return bytes;
+        }
+        try {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            GZIPOutputStream out = new GZIPOutputStream(compressed);
+            out.write(bytes);
+            out.close();
+            return compressed.toByteArray();
+        } catch (IOException e) {
+            throw new SapcaiException("Unable to compress the payload", e);
+        }
+    }
+
+    private void handle(final HttpExchange exchange, final byte[] payload) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        byte[] buffer = new byte[8192];
+        while (body.read(buffer) >= 0) {
+            // the request is only drained, as a server reading it would
+        }
+        body.close();
+        this.requests.incrementAndGet();
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        final boolean failed = random.nextDouble() < this.errorRate;
+        long delay = this.latency + (this.jitter > 0 ? random.nextLong(this.jitter + 1) : 0);
+        Runnable respond = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (failed) {
+                        errors.incrementAndGet();
+                        send(exchange, errorStatus, FAILED, false);
+                    } else {
+                        send(exchange, 200, payload, gzip && payload != DELETED);
+                    }
+                } catch (IOException ignore) {
+                    // the client went away
+                } finally {
+                    exchange.close();
+                }
+            }
+        };
+        if (delay > 0) {
+            this.responders.schedule(respond, delay, TimeUnit.MILLISECONDS);
+        } else {
+            respond.run();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body, boolean gzipped) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        if (gzipped) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.responders.shutdownNow();
+        this.handlers.shutdownNow();
+    }
+
+    public static void main(String[] args) throws IOException {
+        MockCaiServer server = new MockCaiServer(args.length > 0 ? Integer.parseInt(args[0]) : 8080,
+                args.length > 4 && Boolean.parseBoolean(args[4]));
+        server.setLatency(args.length > 1 ? Long.parseLong(args[1]) : 0, 0);
+        server.setPayloadSize(args.length > 2 ? Integer.parseInt(args[2]) : 10);
+        server.setErrorRate(args.length > 3 ? Double.parseDouble(args[3]) : 0, 503);
+        server.start();
+        System.out.println("Serving " + HttpTransport.REQUEST_PATH + " and " + HttpTransport.CONVERSE_PATH + " on " + server.getBaseUrl());
+    }
+}
@@ -0,0 +1,93 @@
+package ai.sapcai.sdk_android;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Compares the bytes/sec of the file part of a multipart upload: the original 4 KB byte[] loop
+ * against MultipartUtility.FilePart. The body is written to a sink discarding everything, so
+ * only the cost of reading and copying the file is measured.
+ * The "bytes" counter of the report is the throughput in bytes/sec.
+ */
+@State(Scope.Benchmark)
+public class MultipartUploadBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    public int fileSize;
+
+    private File file;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        public long bytes;
+    }
+
+    private static class DiscardingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        byte[] content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        file = File.createTempFile("sapcai-upload", ".wav");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long byteArrayLoop(Throughput throughput) throws IOException {
+        DiscardingStream out = new DiscardingStream();
+        FileInputStream inputStream = new FileInputStream(file);
+        byte[] buffer = new byte[4096];
+        int bytesRead = -1;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            out.write(buffer, 0, bytesRead);
+        }
+        out.flush();
+        inputStream.close();
+        throughput.bytes += out.count;
+        return out.count;
+    }
+
+    @Benchmark
+    public long fileChannelPart(Throughput throughput) throws IOException {
+        DiscardingStream out = new DiscardingStream();
+        new MultipartUtility.FilePart(file).writeTo(out);
+        throughput.bytes += out.count;
+        return out.count;
+    }
+}
@@ -0,0 +1,200 @@
+package ai.sapcai.sdk_android;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates synthetic /v2/request and /v2/converse payloads of a given size for the benchmarks.
+ * The payloads only depend on their size and seed, so that the results can be reproduced and compared.
+ * Run it to look at a payload: PayloadGenerator response|conversation|memory size [seed]
+ */
+final class PayloadGenerator {
+    static final long DEFAULT_SEED = 42;
+
+    private static final String[] CITIES = {"London", "Paris", "Berlin", "S\u00e3o Paulo", "Montr\u00e9al", "Tokyo"};
+    private static final String[] WORDS = {"weather", "recipe", "caf\u00e9", "flight", "\"quoted\" order", "train\\bus", "pizza"};
+
+    private PayloadGenerator() {}
+
+    /**
+     * Returns a text request response with -entities- entities spread over several names
+     */
+    static String response(int entities, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(512 + entities * 200);
+        sb.append("{\"results\": {");
+        header(sb, random);
+        sb.append(", \"act\": \"wh-query\", \"type\": \"desc:desc\", \"sentiment\": \"neutral\"");
+        sb.append(", \"intents\": ");
+        intents(sb, random);
+        sb.append(", \"entities\": ");
+        entities(sb, entities, random);
+        sb.append("}, \"message\": \"Requests rendered with success\"}");
+        return sb.toString();
+    }
+
+    /**
+     * Returns a converse response with -entities- entities, -memorySlots- memory slots and -replies- replies
+     */
+    static String conversation(int entities, int memorySlots, int replies, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(1024 + entities * 200 + memorySlots * 80 + replies * 60);
+        sb.append("{\"results\": {");
+        header(sb, random);
+        sb.append(", \"sentiment\": \"positive\", \"conversation_token\": \"").append(Long.toHexString(random.nextLong())).append('"');
+        sb.append(", \"replies\": [");
+        for (int i = 0; i < replies; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(quote("Reply " + i + " about the " + word(random)));
+        }
+        sb.append("], \"action\": ");
+        action(sb, "greetings", random);
+        sb.append(", \"next_actions\": [");
+        for (int i = 0; i < 3; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            action(sb, "step-" + i, random);
+        }
+        sb.append("], \"memory\": ").append(memory(memorySlots, seed));
+        sb.append(", \"intents\": ");
+        intents(sb, random);
+        sb.append(", \"entities\": ");
+        entities(sb, entities, random);
+        sb.append("}, \"message\": \"Converse rendered with success\"}");
+        return sb.toString();
+    }
+
+    /**
+     * Returns the JSON of a memory with -slots- slots, one in ten of them empty
+     */
+    static String memory(int slots, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(2 + slots * 80);
+        sb.append('{');
+        for (int i = 0; i < slots; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("\"slot-").append(i).append("\": ");
+            if (i % 10 == 9) {
+                sb.append("null");
+            } else {
+                String value = word(random);
+                sb.append("{\"raw\": ").append(quote(value)).append(", \"value\": ").append(quote(value.toLowerCase()))
+                        .append(", \"confidence\": ").append(confidence(random)).append('}');
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void header(StringBuilder sb, Random random) {
+        sb.append("\"uuid\": \"").append(new java.util.UUID(random.nextLong(), random.nextLong())).append('"');
+        sb.append(", \"source\": \"What is the weather in ").append(CITIES[random.nextInt(CITIES.length)]).append(" tomorrow?\"");
+        sb.append(", \"language\": \"en\", \"processing_language\": \"en\", \"version\": \"2.10.1\"");
+        sb.append(", \"timestamp\": \"2016-07-10T10:00:00.000000+00:00\", \"status\": 200");
+    }
+
+    private static void intents(StringBuilder sb, Random random) {
+        sb.append("[{\"slug\": \"weather\", \"confidence\": ").append(confidence(random))
+                .append(", \"description\": \"Asks for the weather\"}]");
+    }
+
+    private static void action(StringBuilder sb, String slug, Random random) {
+        sb.append("{\"slug\": \"").append(slug).append("\", \"done\": ").append(random.nextBoolean())
+                .append(", \"reply\": ").append(quote("Tell me about the " + word(random))).append('}');
+    }
+
+    private static void entities(StringBuilder sb, int count, Random random) {
+        Map<String, List<String>> byName = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name;
+            String entity;
+            String city = CITIES[random.nextInt(CITIES.length)];
+            switch (i % 5) {
+                case 0:
+                    name = "location";
+                    entity = "{\"formatted\": " + quote(city + ", Earth") + ", \"lng\": " + (random.nextDouble() * 360 - 180)
+                            + ", \"lat\": " + (random.nextDouble() * 180 - 90) + ", \"type\": \"locality\", \"place\": \"ChIJ"
+                            + Long.toHexString(random.nextLong()) + "\", \"raw\": " + quote(city) + ", \"confidence\": " + confidence(random) + "}";
+                    break;
+                case 1:
+                    name = "datetime";
+                    entity = "{\"iso\": \"2016-07-" + (10 + random.nextInt(20)) + "T10:00:00+00:00\", \"accuracy\": \"day\","
+                            + " \"chronology\": \"future\", \"raw\": \"tomorrow\", \"confidence\": " + confidence(random) + "}";
+                    break;
+                case 2:
+                    name = "number";
+                    int number = random.nextInt(1000);
+                    entity = "{\"scalar\": " + number + ", \"raw\": \"" + number + "\", \"confidence\": " + confidence(random) + "}";
+                    break;
+                case 3:
+                    name = "person";
+                    entity = "{\"fullname\": \"Paul " + city + "\", \"raw\": \"Paul\", \"confidence\": " + confidence(random) + "}";
+                    break;
+                default:
+                    name = "custom-" + (i / 5 % 20);
+                    String word = word(random);
+                    entity = "{\"value\": " + quote(word) + ", \"raw\": " + quote(word) + ", \"confidence\": " + confidence(random) + "}";
+            }
+            List<String> values = byName.get(name);
+            if (values == null) {
+                values = new ArrayList<>();
+                byName.put(name, values);
+            }
+            values.add(entity);
+        }
+
+        sb.append('{');
+        boolean first = true;
+        for (Map.Entry<String, List<String>> entry : byName.entrySet()) {
+            if (!first) {
+                sb.append(", ");
+            }
+            first = false;
+            sb.append('"').append(entry.getKey()).append("\": [");
+            List<String> values = entry.getValue();
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(values.get(i));
+            }
+            sb.append(']');
+        }
+        sb.append('}');
+    }
+
+    private static String word(Random random) {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    private static String confidence(Random random) {
+        return Double.toString(Math.round(random.nextDouble() * 100) / 100.0);
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: PayloadGenerator response|conversation|memory size [seed]");
+            System.exit(1);
+        }
+        int size = Integer.parseInt(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_SEED;
+        if (args[0].equals("response")) {
+            System.out.println(response(size, seed));
+        } else if (args[0].equals("conversation")) {
+            System.out.println(conversation(size, size, size, seed));
+        } else {
+            System.out.println(memory(size, seed));
+        }
+    }
+}
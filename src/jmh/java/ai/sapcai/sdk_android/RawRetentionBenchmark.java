@@ -0,0 +1,85 @@
+package ai.sapcai.sdk_android;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures the heap retained by 10k Responses for each RawRetention. Each iteration reads the responses,
+ * keeps them all reachable and reports the growth of the used heap after a full GC.
+ * The "retainedBytes" counter of the report is the retained heap per 10k responses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+public class RawRetentionBenchmark {
+    static final int RESPONSES = 10000;
+
+    @Param({"NONE", "STRING", "BYTES", "COMPRESSED"})
+    public Response.RawRetention retention;
+
+    private byte[][] bodies;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Heap {
+        public long retainedBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void createBodies() {
+        bodies = new byte[RESPONSES][];
+        for (int i = 0; i < RESPONSES; i++) {
+            bodies[i] = response(i).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    static String response(int i) {
+        return "{\"results\": {\"uuid\": \"34b3f548-4aaf-4e3a-add1-" + String.format("%012d", i) + "\","
+                + " \"source\": \"What is the weather in London tomorrow? And in Paris? (" + i + ")\","
+                + " \"intents\": [{\"slug\": \"weather\", \"confidence\": 0.88, \"description\": \"Asks for the weather\"}],"
+                + " \"act\": \"wh-query\", \"type\": \"desc:desc\", \"sentiment\": \"neutral\","
+                + " \"entities\": {"
+                + "   \"location\": [{\"formatted\": \"London, Greater London, England, United Kingdom\", \"lng\": -0.1277583,"
+                + "     \"lat\": 51.5073509, \"type\": \"locality\", \"place\": \"ChIJdd4hrwug2EcRmSrV3Vo6llI\", \"raw\": \"London\", \"confidence\": 0.97},"
+                + "     {\"formatted\": \"Paris, France\", \"lng\": 2.3522219, \"lat\": 48.856614, \"type\": \"locality\","
+                + "     \"place\": \"ChIJD7fiBh9u5kcRYJSMaMOCCwQ\", \"raw\": \"Paris\", \"confidence\": 0.83}],"
+                + "   \"datetime\": [{\"iso\": \"2016-07-11T10:00:00+00:00\", \"accuracy\": \"day\", \"chronology\": \"future\","
+                + "     \"raw\": \"tomorrow\", \"confidence\": 0.83}]},"
+                + " \"language\": \"en\", \"processing_language\": \"en\", \"version\": \"2.10.1\","
+                + " \"timestamp\": \"2016-07-10T10:00:00.000000+00:00\", \"status\": 200},"
+                + " \"message\": \"Requests rendered with success\"}";
+    }
+
+    private static long usedHeap(MemoryMXBean memory) {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    @Benchmark
+    public Response[] retainResponses(Heap heap) throws IOException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        HttpTransport.BodyReader<Response> reader = Response.bodyReader(retention, false);
+        Response[] responses = new Response[RESPONSES];
+
+        long before = usedHeap(memory);
+        for (int i = 0; i < RESPONSES; i++) {
+            responses[i] = reader.read(new ByteArrayInputStream(bodies[i]), bodies[i].length, 0);
+        }
+        heap.retainedBytes = usedHeap(memory) - before;
+        return responses;
+    }
+}
@@ -0,0 +1,61 @@
+package ai.sapcai.sdk_android;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares reading a response body with the original readLine into StringBuffer loop against ResponseBodyReader.
+ * Run it with the gc profiler (-prof gc) to compare the bytes allocated per body: gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+public class ResponseReadBenchmark {
+
+    @Param({"1024", "16384", "262144"})
+    public int bodySize;
+
+    private byte[] body;
+
+    @Setup(Level.Trial)
+    public void createBody() {
+        StringBuilder sb = new StringBuilder(bodySize + 64);
+        sb.append("{\n  \"results\": {\n    \"replies\": [\n");
+        int i = 0;
+        while (sb.length() < bodySize) {
+            sb.append("      \"R\u00e9ponse num\u00e9ro ").append(i++).append(" du bot\",\n");
+        }
+        sb.append("      \"\"\n    ]\n  }\n}\n");
+        body = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String readLineStringBuffer() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body)));
+        StringBuffer responseBuffer = new StringBuffer();
+        String inputLine;
+        while ((inputLine = reader.readLine()) != null) {
+            responseBuffer.append(inputLine);
+        }
+        reader.close();
+        return responseBuffer.toString();
+    }
+
+    @Benchmark
+    public String bodyReaderWithLength() throws IOException {
+        return ResponseBodyReader.read(new ByteArrayInputStream(body), body.length);
+    }
+
+    @Benchmark
+    public String bodyReaderChunked() throws IOException {
+        return ResponseBodyReader.read(new ByteArrayInputStream(body), -1);
+    }
+}
@@ -0,0 +1,91 @@
+package ai.sapcai.sdk_android;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures the ops/sec of building a Response and a Conversation from their JSON, with the JSONObject constructors
+ * and with the streaming readers, and of Memory.convertMemory and Conversation.joinedReplies, from a tiny payload
+ * up to hundreds of entities, memory slots and replies. The payloads come from PayloadGenerator with a fixed seed.
+ * Run it with the gc profiler (-prof gc) to compare the bytes allocated per operation: gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class SerializationBenchmark {
+
+    /**
+     * The number of entities, memory slots and replies of the payloads
+     */
+    @Param({"1", "10", "100", "500"})
+    public int size;
+
+    private String      responseJson;
+    private byte[]      responseBody;
+    private String      conversationJson;
+    private byte[]      conversationBody;
+    private Memory      memory;
+    private Conversation conversation;
+    private HttpTransport transport;
+
+    @Setup(Level.Trial)
+    public void createPayloads() throws IOException {
+        responseJson = PayloadGenerator.response(size, PayloadGenerator.DEFAULT_SEED);
+        responseBody = responseJson.getBytes(StandardCharsets.UTF_8);
+        conversationJson = PayloadGenerator.conversation(size, size, size, PayloadGenerator.DEFAULT_SEED);
+        conversationBody = conversationJson.getBytes(StandardCharsets.UTF_8);
+
+        // no request is sent: the transport is only handed to the Conversations
+        transport = new HttpTransport(new LoopbackConnector());
+        memory = Memory.read(new JsonPullParser(new StringReader(PayloadGenerator.memory(size, PayloadGenerator.DEFAULT_SEED))));
+        conversation = new Conversation(conversationJson, "token", transport);
+    }
+
+    @TearDown(Level.Trial)
+    public void closeTransport() {
+        transport.close();
+    }
+
+    @Benchmark
+    public Response newResponse() {
+        return new Response(responseJson);
+    }
+
+    @Benchmark
+    public Response readResponse() throws IOException {
+        return Response.bodyReader(Response.RawRetention.STRING, false)
+                .read(new ByteArrayInputStream(responseBody), responseBody.length, 0);
+    }
+
+    @Benchmark
+    public Conversation newConversation() {
+        return new Conversation(conversationJson, "token", transport);
+    }
+
+    @Benchmark
+    public Conversation readConversation() throws IOException {
+        return Conversation.bodyReader("token", transport, Response.RawRetention.STRING, false)
+                .read(new ByteArrayInputStream(conversationBody), conversationBody.length, 0);
+    }
+
+    @Benchmark
+    public String convertMemory() {
+        return memory.convertMemory();
+    }
+
+    @Benchmark
+    public String joinedReplies() {
+        return conversation.joinedReplies();
+    }
+}
@@ -2,14 +2,18 @@ package ai.sapcai.sdk_android;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 public class Action {
 
 	private String slug;
 	private Boolean done;
 	private String reply;
 
-	private Action(String slug, Boolean done, String reply) {
-		this.slug = slug;
+	Action(String slug, Boolean done, String reply) {
+		this.slug = Interner.SHARED.intern(slug);
 		this.done = done;
 		this.reply = reply;
 	}
@@ -18,6 +22,38 @@ public class Action {
         this(obj.optString("slug"), obj.optBoolean("done"), obj.optString("reply"));
     }
 
+	static Action read(JsonPullParser reader) throws IOException {
+		String slug = "";
+		boolean done = false;
+		String reply = "";
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (field.equals("slug")) {
+				slug = reader.nextString();
+			} else if (field.equals("done")) {
+				done = reader.nextBoolean();
+			} else if (field.equals("reply")) {
+				reply = reader.nextString();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return new Action(slug, done, reply);
+	}
+
+	static Action[] readAll(JsonPullParser reader) throws IOException {
+		List<Action> actions = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			actions.add(read(reader));
+		}
+		reader.endArray();
+		return actions.toArray(new Action[actions.size()]);
+	}
+
 	public String getSlug() {
 		return slug;
 	}
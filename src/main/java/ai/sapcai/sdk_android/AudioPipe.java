@@ -0,0 +1,149 @@
+package ai.sapcai.sdk_android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * The AudioPipe class hands the audio captured by the recorder to the upload reading it. Writing never blocks:
+ * the captured buffers are copied into a queue bounded in bytes, which the upload drains from its own thread.
+ * If the upload falls so far behind that the queue is full, the write fails instead of waiting, and so does the
+ * upload. Unlike PipedInputStream, neither end is tied to the thread which first used it.
+ */
+class AudioPipe {
+    private final Object            lock = new Object();
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+    private final int               capacity;
+    private int                     buffered;
+    private int                     offset;
+    private boolean                 closed;
+    private boolean                 cancelled;
+    private boolean                 overflowed;
+
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (lock) {
+                if (cancelled) {
+                    throw new IOException("The upload of the audio has stopped");
+                }
+                if (closed) {
+                    throw new IOException("The audio stream is closed");
+                }
+                if (overflowed || buffered + len > capacity) {
+                    overflowed = true;
+                    lock.notifyAll();
+                    throw new IOException("The upload fell behind the recording");
+                }
+                byte[] chunk = new byte[len];
+                System.arraycopy(b, off, chunk, 0, len);
+                chunks.addLast(chunk);
+                buffered += len;
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (lock) {
+                closed = true;
+                lock.notifyAll();
+            }
+        }
+    };
+
+    private final InputStream source = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            synchronized (lock) {
+                while (chunks.isEmpty() && !closed && !overflowed && !cancelled) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for audio", e);
+                    }
+                }
+                if (overflowed) {
+                    throw new IOException("The upload fell behind the recording");
+                }
+                if (cancelled) {
+                    throw new IOException("The audio stream is closed");
+                }
+                if (chunks.isEmpty()) {
+                    return -1;
+                }
+                int read = 0;
+                while (read < len && !chunks.isEmpty()) {
+                    byte[] chunk = chunks.peekFirst();
+                    int count = Math.min(len - read, chunk.length - offset);
+                    System.arraycopy(chunk, offset, b, off + read, count);
+                    read += count;
+                    offset += count;
+                    if (offset == chunk.length) {
+                        chunks.pollFirst();
+                        offset = 0;
+                    }
+                }
+                buffered -= read;
+                return read;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (lock) {
+                return buffered;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (lock) {
+                cancelled = true;
+                chunks.clear();
+                buffered = 0;
+                lock.notifyAll();
+            }
+        }
+    };
+
+    /**
+     * @param capacity The most bytes waiting for the upload before a write fails
+     */
+    AudioPipe(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the end written by the recorder. Closing it ends the audio.
+     */
+    OutputStream getSink() {
+        return this.sink;
+    }
+
+    /**
+     * Returns the end read by the upload. Closing it makes the next writes fail.
+     */
+    InputStream getSource() {
+        return this.source;
+    }
+}
@@ -0,0 +1,51 @@
+package ai.sapcai.sdk_android;
+
+/**
+ * The BatchResult class holds the outcome of one text of a batch request: either its Response
+ * or the SapcaiException which made it fail.
+ *
+ * @see Client#textRequests(java.util.List, java.util.Map)
+ */
+public class BatchResult {
+    private String          text;
+    private Response        response;
+    private SapcaiException error;
+
+    BatchResult(String text, Response response, SapcaiException error) {
+        this.text = text;
+        this.response = response;
+        this.error = error;
+    }
+
+    /**
+     * Returns the text which was sent
+     * @return The input of the request
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the Response of the request or null if it failed
+     * @return The Response corresponding to the text
+     */
+    public Response getResponse() {
+        return response;
+    }
+
+    /**
+     * Returns the error of the request or null if it succeeded
+     * @return The exception thrown by the request
+     */
+    public SapcaiException getError() {
+        return error;
+    }
+
+    /**
+     * Returns whether or not the request succeeded
+     * @return true if a Response is available
+     */
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
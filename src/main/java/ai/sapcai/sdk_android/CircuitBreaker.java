@@ -0,0 +1,299 @@
+package ai.sapcai.sdk_android;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The CircuitBreaker class stops sending requests to an endpoint of SAP Conversational AI (/v2/request, /v2/converse...)
+ * while it is degraded, so that callers fail fast instead of tying up their threads.
+ * Each endpoint has its own circuit. It is CLOSED while the endpoint behaves, and trips OPEN when, over the last
+ * windowSize calls, the rate of failures (I/O errors and 5xx statuses) or of calls slower than slowCallDuration
+ * exceeds its threshold. While OPEN every request fails with a CircuitOpenException. After openDuration the circuit
+ * becomes HALF_OPEN and lets a few probe requests through: it closes again once they all succeed, and opens again
+ * as soon as one of them fails.
+ *
+ * @see HttpTransport#setCircuitBreaker(CircuitBreaker)
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Listens to the state transitions of the circuits
+     */
+    public interface Listener {
+        /**
+         * Called on the thread of the request which triggered the transition
+         * @param endpoint The url of the endpoint
+         * @param from The previous state of its circuit
+         * @param to The new state of its circuit
+         */
+        void onStateChange(String endpoint, State from, State to);
+    }
+
+    public static final int     DEFAULT_WINDOW_SIZE = 20;
+    public static final int     DEFAULT_MINIMUM_CALLS = 10;
+    public static final double  DEFAULT_FAILURE_RATE = 0.5;
+    public static final double  DEFAULT_SLOW_CALL_RATE = 0.8;
+    public static final long    DEFAULT_SLOW_CALL_DURATION = 5000;
+    public static final long    DEFAULT_OPEN_DURATION = 30000;
+    public static final int     DEFAULT_PROBES = 3;
+
+    private int     windowSize = DEFAULT_WINDOW_SIZE;
+    private int     minimumCalls = DEFAULT_MINIMUM_CALLS;
+    private double  failureRate = DEFAULT_FAILURE_RATE;
+    private double  slowCallRate = DEFAULT_SLOW_CALL_RATE;
+    private long    slowCallDuration = DEFAULT_SLOW_CALL_DURATION;
+    private long    openDuration = DEFAULT_OPEN_DURATION;
+    private int     probes = DEFAULT_PROBES;
+
+    private final ConcurrentHashMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private class Circuit {
+        private final String    endpoint;
+        private State           state = State.CLOSED;
+        private boolean[]       failures = new boolean[windowSize];
+        private boolean[]       slows = new boolean[windowSize];
+        private int             calls;
+        private int             next;
+        private long            openedAt;
+        private int             probesSent;
+        private int             probesSucceeded;
+
+        Circuit(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        synchronized State[] allow() {
+            if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openDuration) {
+                return moveTo(State.HALF_OPEN);
+            }
+            if (state == State.OPEN || (state == State.HALF_OPEN && probesSent >= probes)) {
+                throw new CircuitOpenException(endpoint);
+            }
+            if (state == State.HALF_OPEN) {
+                probesSent++;
+            }
+            return null;
+        }
+
+        synchronized State[] record(boolean failure, boolean slow) {
+            if (state == State.HALF_OPEN) {
+                if (failure || slow) {
+                    return moveTo(State.OPEN);
+                }
+                if (++probesSucceeded >= probes) {
+                    return moveTo(State.CLOSED);
+                }
+                return null;
+            }
+            if (state == State.OPEN) {
+                return null;
+            }
+            failures[next] = failure;
+            slows[next] = slow;
+            next = (next + 1) % failures.length;
+            if (calls < failures.length) {
+                calls++;
+            }
+            if (calls < minimumCalls) {
+                return null;
+            }
+            int failed = 0;
+            int slowed = 0;
+            for (int i = 0; i < calls; i++) {
+                if (failures[i]) failed++;
+                if (slows[i]) slowed++;
+            }
+            if (failed >= failureRate * calls || slowed >= slowCallRate * calls) {
+                return moveTo(State.OPEN);
+            }
+            return null;
+        }
+
+        synchronized void release() {
+            if (state == State.HALF_OPEN && probesSent > 0) {
+                probesSent--;
+            }
+        }
+
+        /**
+         * @return the transition, as its previous and new states
+         */
+        private State[] moveTo(State newState) {
+            State previous = state;
+            state = newState;
+            if (newState == State.OPEN) {
+                openedAt = System.currentTimeMillis();
+            } else if (newState == State.HALF_OPEN) {
+                // the request asking for the transition is the first probe
+                probesSent = 1;
+                probesSucceeded = 0;
+            } else {
+                calls = 0;
+                next = 0;
+            }
+            return new State[] {previous, newState};
+        }
+
+        synchronized State getState() {
+            return state;
+        }
+    }
+
+    private Circuit circuit(String endpoint) {
+        Circuit circuit = circuits.get(endpoint);
+        if (circuit == null) {
+            Circuit created = new Circuit(endpoint);
+            circuit = circuits.putIfAbsent(endpoint, created);
+            if (circuit == null) {
+                circuit = created;
+            }
+        }
+        return circuit;
+    }
+
+    private void notify(String endpoint, State[] transition) {
+        if (transition == null) {
+            return;
+        }
+        for (Listener listener : listeners) {
+            listener.onStateChange(endpoint, transition[0], transition[1]);
+        }
+    }
+
+    /**
+     * Checks that a request can be sent to the endpoint. Every allowed request must then be reported
+     * with onSuccess, onError or onIgnored.
+     * @param endpoint The url of the endpoint
+     * @throws CircuitOpenException if the circuit of the endpoint is open
+     */
+    void allow(String endpoint) throws CircuitOpenException {
+        Circuit circuit = circuit(endpoint);
+        notify(endpoint, circuit.allow());
+    }
+
+    void onSuccess(String endpoint, long duration) {
+        Circuit circuit = circuit(endpoint);
+        notify(endpoint, circuit.record(false, duration >= slowCallDuration));
+    }
+
+    void onError(String endpoint, SapcaiException error, long duration) {
+        Circuit circuit = circuit(endpoint);
+        boolean failure = error.getCause() instanceof IOException || error.getStatusCode() >= 500;
+        notify(endpoint, circuit.record(failure, duration >= slowCallDuration));
+    }
+
+    /**
+     * Reports a request whose outcome says nothing about the endpoint, like a hedged request aborted by the other one
+     */
+    void onIgnored(String endpoint) {
+        circuit(endpoint).release();
+    }
+
+    /**
+     * Returns the state of the circuit of an endpoint
+     * @param endpoint The url of the endpoint
+     * @return The state of its circuit
+     */
+    public State getState(String endpoint) {
+        Circuit circuit = circuits.get(endpoint);
+        return circuit == null ? State.CLOSED : circuit.getState();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Sets the number of calls over which the failure and slow call rates are computed.
+     * Only applies to the endpoints which have not been called yet.
+     * @param windowSize The number of calls
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = Math.max(1, windowSize);
+    }
+
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    /**
+     * Sets the number of calls needed before the circuit can trip
+     * @param minimumCalls The number of calls
+     */
+    public void setMinimumCalls(int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+    }
+
+    public double getFailureRate() {
+        return failureRate;
+    }
+
+    /**
+     * Sets the rate of failed calls, between 0 and 1, which trips the circuit
+     * @param failureRate The failure rate threshold
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    public double getSlowCallRate() {
+        return slowCallRate;
+    }
+
+    /**
+     * Sets the rate of slow calls, between 0 and 1, which trips the circuit
+     * @param slowCallRate The slow call rate threshold
+     */
+    public void setSlowCallRate(double slowCallRate) {
+        this.slowCallRate = slowCallRate;
+    }
+
+    public long getSlowCallDuration() {
+        return slowCallDuration;
+    }
+
+    /**
+     * Sets the duration in milliseconds from which a call is considered slow
+     * @param slowCallDuration The duration of a slow call
+     */
+    public void setSlowCallDuration(long slowCallDuration) {
+        this.slowCallDuration = slowCallDuration;
+    }
+
+    public long getOpenDuration() {
+        return openDuration;
+    }
+
+    /**
+     * Sets how long in milliseconds the circuit stays open before letting probes through
+     * @param openDuration The duration of the open state
+     */
+    public void setOpenDuration(long openDuration) {
+        this.openDuration = openDuration;
+    }
+
+    public int getProbes() {
+        return probes;
+    }
+
+    /**
+     * Sets the number of successful probes needed to close a half open circuit
+     * @param probes The number of probes
+     */
+    public void setProbes(int probes) {
+        this.probes = Math.max(1, probes);
+    }
+}
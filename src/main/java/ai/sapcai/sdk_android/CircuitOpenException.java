@@ -0,0 +1,26 @@
+package ai.sapcai.sdk_android;
+
+/**
+ * The CircuitOpenException is thrown without any request being sent when the circuit breaker
+ * of an endpoint is open, because the endpoint has recently been failing or too slow.
+ *
+ * @see CircuitBreaker
+ */
+public class CircuitOpenException extends SapcaiException {
+    private static final long serialVersionUID = 1L;
+
+    private String endpoint;
+
+    public CircuitOpenException(String endpoint) {
+        super("Circuit breaker open for " + endpoint);
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Returns the url of the endpoint whose circuit is open
+     * @return The url of the endpoint
+     */
+    public String getEndpoint() {
+        return this.endpoint;
+    }
+}
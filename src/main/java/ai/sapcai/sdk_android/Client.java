@@ -2,22 +2,33 @@ package ai.sapcai.sdk_android;
 
 
 import android.os.Environment;
-import java.net.URL;
 
-import java.io.BufferedReader;
+import org.apache.http.Consts;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.message.BasicNameValuePair;
+
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import javax.net.ssl.HttpsURLConnection;
-import java.net.MalformedURLException;
 import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 /**
  * The Client class handles requests to SAP Conversational AI API.
  * Note that requests methods and stopRecording should not be called in the main thread of your application because they process http requests.
+ * The ...Async variants can be called from any thread: they run on the executor of the transport and return immediately.
  *
  * @author Francois Triquet
  * @version 2.0.0
@@ -25,10 +36,19 @@ import java.util.Map;
  *
  */
 public class Client {
-    private static final String		sapcaiAPI = "https://api.cai.tools.sap/v2/request";
+    public static final int			DEFAULT_BATCH_CONCURRENCY = HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    // fifteen seconds of audio, more than SAP Conversational AI accepts, before the recording gives up on a stalled upload
+    private static final int		STREAMING_BUFFER_SIZE = SapcaiRecorder.SAMPLE_RATE * 2 * 15;
     private String					token;
 	private String					language;
     private SapcaiRecorder          recorder;
+    private CompletableFuture<Response> streamingUpload;
+    private HttpTransport           transport;
+    private ResponseCache           cache;
+    private boolean                 coalescing;
+    private Response.RawRetention   rawRetention = Response.RawRetention.STRING;
+    private boolean                 lazyParsing;
+    private RequestJournal          journal;
 
     public Request request;
 
@@ -40,6 +60,7 @@ public class Client {
         this.token = token;
 		this.language = null;
         this.recorder = null;
+        this.transport = HttpTransport.getDefault();
 
         this.request = new Request(token);
     }
@@ -48,6 +69,7 @@ public class Client {
 		this.token = token;
 		this.language = language;
 		this.recorder = null;
+		this.transport = HttpTransport.getDefault();
 
 		this.request = new Request(token, language);
 	}
@@ -75,6 +97,109 @@ public class Client {
 		this.language = language;
 	}
 
+	/**
+	 * Sets the transport used by the Client and its Request to reach SAP Conversational AI.
+	 * By default all the clients share the same pool of connections.
+	 * @param transport The transport to send the requests through
+	 * @see HttpTransport
+	 */
+	public void setTransport(HttpTransport transport) {
+		this.transport = transport;
+		this.request.setTransport(transport);
+	}
+
+	/**
+	 * Returns the transport used by the Client
+	 * @return The transport of the Client
+	 */
+	public HttpTransport getTransport() {
+		return this.transport;
+	}
+
+	/**
+	 * Sets the cache answering the text requests of the Client and its Request. Pass null to disable it (the default).
+	 * @param cache The cache of the text requests
+	 * @see ResponseCache
+	 */
+	public void setResponseCache(ResponseCache cache) {
+		this.cache = cache;
+		this.request.setResponseCache(cache);
+	}
+
+	public ResponseCache getResponseCache() {
+		return this.cache;
+	}
+
+	/**
+	 * Enables or disables the coalescing of text requests: when enabled, concurrent requests with the same token,
+	 * language and text share a single HTTP request and all get its Response. Disabled by default.
+	 * @param coalescing true to share identical in-flight requests
+	 */
+	public void setRequestCoalescing(boolean coalescing) {
+		this.coalescing = coalescing;
+		this.request.setRequestCoalescing(coalescing);
+	}
+
+	/**
+	 * Sets whether or not the Responses of the Client and its Request keep the JSON they were read from.
+	 * When they do not, the response is parsed straight from the connection without ever being held as a String,
+	 * getRaw returns null and the Responses are not stored in the ResponseCache. Kept by default.
+	 * @param keepRaw true to keep the raw JSON of the responses as a String, false not to keep it
+	 * @see #setRawRetention(Response.RawRetention)
+	 */
+	public void setKeepRaw(boolean keepRaw) {
+		this.setRawRetention(keepRaw ? Response.RawRetention.STRING : Response.RawRetention.NONE);
+	}
+
+	public boolean isKeepRaw() {
+		return this.rawRetention != Response.RawRetention.NONE;
+	}
+
+	/**
+	 * Sets how the Responses of the Client and its Request keep the JSON they were read from: not at all, as a
+	 * String (the default), or as UTF-8 bytes, optionally compressed, decoded each time getRaw is called.
+	 * On Android the bytes take half the memory of a String for mostly ASCII JSON, and compressed bytes several times less.
+	 * @param rawRetention How to keep the raw JSON of the responses
+	 */
+	public void setRawRetention(Response.RawRetention rawRetention) {
+		this.rawRetention = rawRetention;
+		this.request.setRawRetention(rawRetention);
+	}
+
+	public Response.RawRetention getRawRetention() {
+		return this.rawRetention;
+	}
+
+	/**
+	 * Enables or disables lazy parsing: when enabled, the entities of the Responses (and the next actions and memory of
+	 * the Conversations of the Request) are kept as JSON and only parsed the first time they are read. Disabled by default.
+	 * @param lazyParsing true to parse the entities, next actions and memory on demand
+	 */
+	public void setLazyParsing(boolean lazyParsing) {
+		this.lazyParsing = lazyParsing;
+		this.request.setLazyParsing(lazyParsing);
+	}
+
+	public boolean isLazyParsing() {
+		return this.lazyParsing;
+	}
+
+	/**
+	 * Sets the journal keeping the text requests (and the memory updates and resets of the Conversations of the
+	 * Request) which fail because SAP Conversational AI cannot be reached. They are replayed once it can, and their
+	 * outcome is reported to the listener of the journal. The failed call still throws. Pass null to disable it (the default).
+	 * @param journal The journal of the failed requests
+	 * @see RequestJournal
+	 */
+	public void setJournal(RequestJournal journal) {
+		this.journal = journal;
+		this.request.setJournal(journal);
+	}
+
+	public RequestJournal getJournal() {
+		return this.journal;
+	}
+
    private static String getOutputFile() {
        File sapcaiDir = new File(Environment.getExternalStorageDirectory().getAbsolutePath() + "/SAPConversationalAI");
        if (!sapcaiDir.exists())
@@ -98,6 +223,51 @@ public class Client {
        recorder.startRecording();
    }
 
+    /**
+     * Starts recording audio from the microphone and uploading it to SAP Conversational AI at the same time,
+     * so that stopRecording only has to wait for the end of the processing. Note that the audio must be shorter than 10 seconds to be processed by SAP Conversational AI
+     * @throws SapcaiException if the client is already recording (the recording will stop)
+     */
+   public synchronized void startStreamingRecording() throws SapcaiException {
+       final AudioPipe			pipe = new AudioPipe(STREAMING_BUFFER_SIZE);
+       final String				language = this.language;
+       final String				token = this.token;
+
+       if (recorder != null) {
+           try {
+               this.stopRecording();
+           } catch (Exception ignore) {}
+           throw new SapcaiException("Invalid recording state");
+       }
+       // the recorder writes from the thread of its listener, usually the main one: the pipe never blocks it
+       recorder = new SapcaiRecorder(pipe.getSink());
+       streamingUpload = this.transport.submit(new Supplier<Response>() {
+           @Override
+           public Response get() {
+               return sendAudioStream(pipe.getSource(), token, language);
+           }
+       });
+       // if the upload stops early, closing the pipe makes the recorder stop instead of buffering for nothing
+       streamingUpload.whenComplete(new BiConsumer<Response, Throwable>() {
+           @Override
+           public void accept(Response response, Throwable error) {
+               try {
+                   pipe.getSource().close();
+               } catch (IOException ignore) {}
+           }
+       });
+       try {
+           recorder.startRecording();
+       } catch (SapcaiException e) {
+           try {
+               pipe.getSink().close();
+           } catch (IOException ignore) {}
+           recorder = null;
+           streamingUpload = null;
+           throw e;
+       }
+   }
+
     /**
      * Stops recording from the microphone and returns the Response corresponding to the audio input after beeing processed
      * @return A SAP Conversational AI Response
@@ -112,12 +282,21 @@ public class Client {
        }
        try {
            recorder.stopRecording();
-           File f = new File(getOutputFile());
-           r = fileRequest(getOutputFile());
+           if (streamingUpload != null) {
+               r = streamingUpload.get();
+           } else {
+               r = fileRequest(getOutputFile());
+           }
        } catch (IOException e) {
            throw new SapcaiException("Unable to record audio", e);
+       } catch (ExecutionException e) {
+           throw toSapcaiException(e.getCause());
+       } catch (InterruptedException e) {
+           Thread.currentThread().interrupt();
+           throw new SapcaiException("Interrupted while waiting for the response", e);
        } finally {
            recorder = null;
+           streamingUpload = null;
        }
        return r;
    }
@@ -130,19 +309,34 @@ public class Client {
      * @throws SapcaiException if SAP Conversational AI can't process the text
      * @see Response
      */
-	public Response textRequest(String text, Map<String, String> options) throws SapcaiException {
-		String	sapcaiJson;
-		String	token;
-		String	language;
+	public Response textRequest(final String text, Map<String, String> options) throws SapcaiException {
+		final String	token;
+		final String	language;
+		Response		response;
 
-		token = options.get("token");
-		if (token == null)
-			token = this.token;
-		language = options.get("language");
-		if (language == null)
-			language = this.language;
-		sapcaiJson = this.doApiRequest(text, token, language);
-		return new Response(sapcaiJson);
+		token = options.get("token") != null ? options.get("token") : this.token;
+		language = options.get("language") != null ? options.get("language") : this.language;
+		if (this.cache != null) {
+			Response cached = this.cache.get(token, language, text);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		if (this.coalescing) {
+			String settings = this.transport.getRequestUrl() + ' ' + this.rawRetention + ' ' + this.lazyParsing;
+			response = this.transport.getCoalescer().execute(token, language, text, settings, new Supplier<Response>() {
+				@Override
+				public Response get() {
+					return postText(text, token, language);
+				}
+			});
+		} else {
+			response = this.postText(text, token, language);
+		}
+		if (this.cache != null) {
+			this.cache.put(token, language, text, response);
+		}
+		return response;
 	}
 
     /**
@@ -159,13 +353,110 @@ public class Client {
         return this.textRequest(text, params);
     }
 
+    /**
+     * Performs a text request to SAP Conversational AI without blocking the calling thread
+     * @param text The text to be processed
+     * @param options A map of parameters to the request. Parameters can be "token" and "language"
+     * @return A future completed with the Response corresponding to the input, or with a SapcaiException
+     * @see HttpTransport#setExecutor(java.util.concurrent.Executor)
+     */
+    public CompletableFuture<Response> textRequestAsync(final String text, final Map<String, String> options) {
+        return this.transport.submit(new Supplier<Response>() {
+            @Override
+            public Response get() {
+                return textRequest(text, options);
+            }
+        });
+    }
 
+    /**
+     * Performs a text request to SAP Conversational AI with the token of the Client without blocking the calling thread
+     * @param text The text to be processed
+     * @return A future completed with the Response corresponding to the input, or with a SapcaiException
+     */
+    public CompletableFuture<Response> textRequestAsync(final String text) {
+        return this.transport.submit(new Supplier<Response>() {
+            @Override
+            public Response get() {
+                return textRequest(text);
+            }
+        });
+    }
+
+
+
+    /**
+     * Performs a text request to SAP Conversational AI for each text of the list, at most DEFAULT_BATCH_CONCURRENCY at a time
+     * @param texts The texts to be processed
+     * @param options A map of parameters to the requests. Parameters can be "token" and "language"
+     * @return The result of each text, in the order of the input
+     * @see #textRequests(List, Map, int)
+     */
+    public List<BatchResult> textRequests(List<String> texts, Map<String, String> options) throws SapcaiException {
+        return this.textRequests(texts, options, DEFAULT_BATCH_CONCURRENCY);
+    }
 
-    private String sendAudioFile(String name, String token, String language) throws SapcaiException {
-        String sapcaiJson = "";
-		StringBuilder sb;
+    /**
+     * Performs a text request to SAP Conversational AI for each text of the list, with at most concurrency requests in flight.
+     * The requests run on the executor of the transport, so a concurrency above its maximum number of threads
+     * (HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_ROUTE by default) is lowered to that number.
+     * A failed text does not stop the batch: its BatchResult holds the SapcaiException instead of a Response.
+     * @param texts The texts to be processed
+     * @param options A map of parameters to the requests. Parameters can be "token" and "language"
+     * @param concurrency The maximum number of requests in flight
+     * @return The result of each text, in the order of the input
+     * @throws SapcaiException if the calling thread is interrupted
+     */
+    public List<BatchResult> textRequests(List<String> texts, Map<String, String> options, int concurrency) throws SapcaiException {
+        Executor executor = this.transport.getExecutor();
+        if (executor instanceof ThreadPoolExecutor) {
+            // more permits than threads would only queue the requests in the executor
+            concurrency = Math.min(concurrency, ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+        }
+        final Semaphore	permits = new Semaphore(Math.max(1, concurrency));
+        List<CompletableFuture<Response>> futures = new ArrayList<>(texts.size());
+        List<BatchResult> results = new ArrayList<>(texts.size());
+
+        try {
+            for (String text : texts) {
+                permits.acquire();
+                CompletableFuture<Response> future = this.textRequestAsync(text, options);
+                future.whenComplete(new BiConsumer<Response, Throwable>() {
+                    @Override
+                    public void accept(Response response, Throwable error) {
+                        permits.release();
+                    }
+                });
+                futures.add(future);
+            }
+            for (int i = 0; i < texts.size(); i++) {
+                try {
+                    results.add(new BatchResult(texts.get(i), futures.get(i).get(), null));
+                } catch (ExecutionException e) {
+                    results.add(new BatchResult(texts.get(i), null, toSapcaiException(e.getCause())));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SapcaiException("Batch request interrupted", e);
+        }
+        return results;
+    }
+
+    static SapcaiException toSapcaiException(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error instanceof SapcaiException) {
+            return (SapcaiException) error;
+        }
+        return new SapcaiException("Error during request", error);
+    }
+
+    private Response sendAudioFile(String name, String token, String language) throws SapcaiException {
+        Response sapcaiJson;
         try {
-            MultipartUtility multipart = new MultipartUtility(sapcaiAPI, "UTF-8", token);
+            MultipartUtility multipart = new MultipartUtility(this.transport.getRequestUrl(), "UTF-8", token, this.transport);
             File f = new File(name);
             if (!f.exists()) {
                 throw new SapcaiException("File not found: " + name);
@@ -176,16 +467,29 @@ public class Client {
 			} else if (this.language != null) {
                 multipart.addFormField("language", this.language);
             }
-            List<String> response = multipart.finish();
-			sb = new StringBuilder(response.size() * 2);
-            for (String line : response) {
-				sb.append(line);
-            }
+            sapcaiJson = multipart.finish(Response.bodyReader(this.rawRetention, this.lazyParsing));
+        } catch (SapcaiException e) {
+            // keeps the status and the kind of the error, like a CircuitOpenException
+            throw e;
         } catch (Exception e) {
-            e.printStackTrace();
             throw new SapcaiException("Error during request", e);
         }
-        return sb.toString();
+        return sapcaiJson;
+    }
+
+    Response sendAudioStream(InputStream audio, String token, String language) throws SapcaiException {
+        Response sapcaiJson;
+        try {
+            MultipartUtility multipart = new MultipartUtility(this.transport.getRequestUrl(), "UTF-8", token, this.transport);
+            multipart.addStreamPart("voice", "sapcai_audio.wav", audio);
+            if (language != null) {
+                multipart.addFormField("language", language);
+            }
+            sapcaiJson = multipart.finish(Response.bodyReader(this.rawRetention, this.lazyParsing));
+        } catch (IOException e) {
+            throw new SapcaiException("Error during request", e);
+        }
+        return sapcaiJson;
     }
 
     /**
@@ -195,7 +499,7 @@ public class Client {
      * @throws SapcaiException if the file is invalid or SAP Conversational AI can't process the file
      */
     public Response fileRequest(String filename) throws SapcaiException {
-        return new Response(this.sendAudioFile(filename, this.token, null));
+        return this.sendAudioFile(filename, this.token, null);
     }
 
     /**
@@ -215,59 +519,68 @@ public class Client {
 		language = options.get("language");
 		if (language == null)
 			language = this.language;
-        String resp = sendAudioFile(filename, token, language);
-        return new Response(resp);
+        return sendAudioFile(filename, token, language);
+    }
+
+    /**
+     * Performs a voice file request to SAP Conversational AI without blocking the calling thread
+     * @param filename The name of the file
+     * @return A future completed with the Response corresponding to your input, or with a SapcaiException
+     */
+    public CompletableFuture<Response> fileRequestAsync(final String filename) {
+        return this.transport.submit(new Supplier<Response>() {
+            @Override
+            public Response get() {
+                return fileRequest(filename);
+            }
+        });
+    }
+
+    /**
+     * Performs a voice file request to SAP Conversational AI without blocking the calling thread
+     * @param filename The name of the file
+     * @param options A map of parameters for the request. This map can contains "token" and/or "language"
+     * @return A future completed with the Response corresponding to your input, or with a SapcaiException
+     */
+    public CompletableFuture<Response> fileRequestAsync(final String filename, final Map<String,String> options) {
+        return this.transport.submit(new Supplier<Response>() {
+            @Override
+            public Response get() {
+                return fileRequest(filename, options);
+            }
+        });
     }
 
 
     public String			doApiRequest(String text, String token, String language) throws SapcaiException {
-        URL					obj;
-        HttpsURLConnection	con;
-        OutputStream		os;
-        int					responseCode;
-        String				inputLine;
-        StringBuffer		responseBuffer;
-        String				sapcaiJson;
+        return this.transport.post(this.transport.getRequestUrl(), token, textEntity(text, language), true);
+    }
 
+    /**
+     * Posts a text request, and adds it to the journal if it fails but may succeed later. With coalescing, only
+     * the caller actually sending the request journals it, not the callers sharing its outcome.
+     */
+    private Response		postText(String text, String token, String language) throws SapcaiException {
         try {
-            obj = new URL(sapcaiAPI);
-            con = (HttpsURLConnection) obj.openConnection();
-            con.setRequestMethod("POST");
-            con.setRequestProperty("Authorization",  "Token " + token);
-            con.setDoOutput(true);
-            text = "text=" + text;
-            os = con.getOutputStream();
-            os.write(text.getBytes());
-			if (language != null) {
-				String l = "&language=" + language;
-				os.write(l.getBytes());
-			}
-            os.flush();
-            os.close();
-
-            responseCode = con.getResponseCode();
-        } catch (MalformedURLException e) {
-            throw new SapcaiException("Invalid URL", e);
-        } catch (IOException e) {
-            throw new SapcaiException("Unable to read response from SAP Conversational AI", e);
+            return this.transport.post(this.transport.getRequestUrl(), token, textEntity(text, language), true,
+                    Response.bodyReader(this.rawRetention, this.lazyParsing));
+        } catch (SapcaiException e) {
+            RequestJournal journal = this.journal;
+            if (journal != null && journal.isRetryable(e)) {
+                journal.addText(token, language, text);
+            }
+            throw e;
         }
+    }
 
-        if (responseCode == HttpsURLConnection.HTTP_OK) {
-            try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(con.getInputStream()));
-                responseBuffer = new StringBuffer();
-                while ((inputLine = reader.readLine()) != null) {
-                    responseBuffer.append(inputLine);
-                }
-                reader.close();
-            } catch (IOException e) {
-                throw new SapcaiException("Unable to read response from SAP Conversational AI", e);
-            }
-            sapcaiJson = responseBuffer.toString();
-        } else {
-            System.out.println(responseCode);
-            throw new SapcaiException(responseCode);
+    static HttpEntity			textEntity(String text, String language) {
+        List<NameValuePair>	params;
+
+        params = new ArrayList<>(2);
+        params.add(new BasicNameValuePair("text", text));
+        if (language != null) {
+            params.add(new BasicNameValuePair("language", language));
         }
-        return sapcaiJson;
+        return new UrlEncodedFormEntity(params, Consts.UTF_8);
     }
 }
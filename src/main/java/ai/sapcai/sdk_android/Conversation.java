@@ -1,36 +1,37 @@
 package ai.sapcai.sdk_android;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.ParseException;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.util.EntityUtils;
 import org.json.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 
 
 public class Conversation {
 
-	private static final String converseAPI = "https://api.cai.tools.sap/v2/converse";
-
-	private String raw; // String: the raw unparsed json response								ok
+	private Object raw; // String: the raw unparsed json response, kept as a String or as bytes (see RawJson)
 	private String uuid; // String: the universal unique id of the api call						ok
 	private String source; // String: the user input											ok
 	private String[] replies; // Array[String]: all the replies									ok
 	private Action action; // Object: the action of the conversation							ok
     	private String sentiment; // String: the sentiment of the input								ok
-	private Action[] nextActions; // Array[Object]: the next actions of the conversation		ok
-	private Memory memory; // Object: the memory of the conversation							ok
-	private Map<String, Entity[]> entities; // Array[Entity]: the array of entities				ok
+	private Response.Sentiment sentimentKind; // precomputed from the sentiment
+	private volatile Action[] nextActions; // Array[Object]: the next actions of the conversation		ok
+	private volatile Memory memory; // Object: the memory of the conversation							ok
+	private volatile Map<String, Entity[]> entities; // Array[Entity]: the array of entities				ok
 	private Intent[] intents; // Array[Object]: all the matched intents							ok
 	private String conversationToken; // String: the conversation token							ok
 	private String language; // String: the language of the input								ok
@@ -39,7 +40,56 @@ public class Conversation {
 	private String timestamp; // String: the timestamp at the end of the processing				ok
 	private int status; // String: the status of the response									ok
 
+	// the JSON of the entities, next actions and memory until they are first needed, in lazy mode
+	private String entitiesSource;
+	private String nextActionsSource;
+	private String memorySource;
+
 	private String token;
+	private HttpTransport transport;
+
+	// the time during which the memory updates are gathered before being sent, 0 to send each one at once
+	private volatile long autoFlushWindow;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	// keeps the memory deltas in order
+	private final Object flushLock = new Object();
+	private volatile RequestJournal journal;
+
+	// whether the memory and reset calls are queued and sent in the background
+	private volatile boolean writeBehind;
+	// the calls waiting to be sent, in order, guarded by itself
+	private final ArrayDeque<Write> writes = new ArrayDeque<>();
+	// the call being sent, or null when the queue is not drained
+	private Write pendingWrite;
+	private boolean draining;
+	// the first queued call which failed since the last flushWrites reported one
+	private RuntimeException writeFailure;
+
+	/**
+	 * A call queued in write-behind mode: a memory flush or a conversation reset
+	 */
+	private static final class Write {
+		final boolean reset;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		Write(boolean reset) {
+			this.reset = reset;
+		}
+
+		/** Completes this call as -other- completes, for a call made useless by it */
+		void follow(Write other) {
+			other.done.whenComplete(new BiConsumer<Void, Throwable>() {
+				@Override
+				public void accept(Void ignore, Throwable failure) {
+					if (failure == null) {
+						done.complete(null);
+					} else {
+						done.completeExceptionally(failure);
+					}
+				}
+			});
+		}
+	}
 
         public static final String SENTIMENT_POSITIVE = "positive";
         public static final String SENTIMENT_VERY_POSITIVE = "vpositive";
@@ -47,8 +97,19 @@ public class Conversation {
         public static final String SENTIMENT_VERY_NEGATIVE = "vnegative";
         public static final String SENTIMENT_NEUTRAL = "neutral";
 
+	Conversation(String token, HttpTransport transport) {
+		this.setToken(token);
+		this.transport = transport;
+		this.status = -1;
+	}
+
 	public Conversation(String json, String token) throws SapcaiException {
+		this(json, token, HttpTransport.getDefault());
+	}
+
+	Conversation(String json, String token, HttpTransport transport) throws SapcaiException {
 		this.setToken(token);
+		this.transport = transport;
 		JSONArray	resultIntents = null;
 		JSONArray   resultNextActions = null;
 		JSONArray   resultReplies = null;
@@ -105,18 +166,203 @@ public class Conversation {
             for(int i = 0; i < this.replies.length; ++i){
             	this.replies[i] = resultReplies.optString(i);
             }
-
+            this.classify();
         } catch (Exception e) {
             throw new SapcaiException("Invalid JSON", e);
         }
 	}
 
+	/**
+	 * Returns the reader filling a Conversation straight from the stream of the HTTP response
+	 * @param token The token used for the memory and conversation calls of the Conversation
+	 * @param transport The transport used for those calls
+	 * @param retention How getRaw keeps the JSON of the response
+	 * @param lazy Whether or not the entities, next actions and memory are only parsed when they are first needed
+	 */
+	static HttpTransport.BodyReader<Conversation> bodyReader(final String token, final HttpTransport transport,
+															 Response.RawRetention retention, final boolean lazy) {
+		return new JsonPullParser.BodyReader<Conversation>(retention) {
+			@Override
+			Conversation read(JsonPullParser parser, Object raw) throws IOException {
+				return Conversation.read(parser, raw, token, transport, lazy);
+			}
+		};
+	}
+
+	/**
+	 * Fills a Conversation in a single pass over the JSON, without building its tree
+	 * @param reader The parser positioned before the document
+	 * @param raw The JSON of the response as retained (see RawJson), or null if it is not kept
+	 * @param lazy Whether or not the entities, next actions and memory are kept as JSON until they are first needed
+	 */
+	static Conversation read(JsonPullParser reader, Object raw, String token, HttpTransport transport,
+							 boolean lazy) throws IOException {
+		Conversation conversation = new Conversation(token, transport);
+		conversation.raw = raw;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (reader.nextName().equals("results")) {
+				conversation.readResults(reader, lazy);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (conversation.source == null || conversation.version == null || conversation.timestamp == null
+				|| conversation.status < 0 || conversation.language == null || conversation.processing_language == null
+				|| conversation.sentiment == null || conversation.uuid == null || conversation.conversationToken == null
+				|| conversation.intents == null || conversation.action == null || conversation.replies == null
+				|| (conversation.entities == null && conversation.entitiesSource == null)
+				|| (conversation.nextActions == null && conversation.nextActionsSource == null)
+				|| (conversation.memory == null && conversation.memorySource == null)) {
+			throw new SapcaiException("Invalid JSON");
+		}
+		conversation.classify();
+		return conversation;
+	}
+
+	/**
+	 * Precomputes the sentiment and replaces the repeated strings by shared instances
+	 */
+	private void classify() {
+		this.sentimentKind = Response.Sentiment.fromValue(this.sentiment);
+		if (this.sentimentKind != Response.Sentiment.UNKNOWN) {
+			this.sentiment = this.sentimentKind.getValue();
+		}
+		this.language = Interner.SHARED.intern(this.language);
+		this.processing_language = Interner.SHARED.intern(this.processing_language);
+		this.version = Interner.SHARED.intern(this.version);
+	}
+
+	private void readResults(JsonPullParser reader, boolean lazy) throws IOException {
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+				case "source": this.source = reader.nextString(); break;
+				case "version": this.version = reader.nextString(); break;
+				case "timestamp": this.timestamp = reader.nextString(); break;
+				case "status": this.status = reader.nextInt(); break;
+				case "language": this.language = reader.nextString(); break;
+				case "processing_language": this.processing_language = reader.nextString(); break;
+				case "sentiment": this.sentiment = reader.nextString(); break;
+				case "uuid": this.uuid = reader.nextString(); break;
+				case "conversation_token": this.conversationToken = reader.nextString(); break;
+				case "entities":
+					if (lazy) {
+						this.entitiesSource = reader.nextSource();
+					} else {
+						this.entities = Entity.readAll(reader);
+					}
+					break;
+				case "intents": this.intents = Intent.readAll(reader); break;
+				case "action": this.action = Action.read(reader); break;
+				case "next_actions":
+					if (lazy) {
+						this.nextActionsSource = reader.nextSource();
+					} else {
+						this.nextActions = Action.readAll(reader);
+					}
+					break;
+				case "memory":
+					if (lazy) {
+						this.memorySource = reader.nextSource();
+					} else {
+						this.memory = Memory.read(reader);
+					}
+					break;
+				case "replies": this.replies = readReplies(reader); break;
+				default: reader.skipValue();
+			}
+		}
+		reader.endObject();
+	}
+
+	private static String[] readReplies(JsonPullParser reader) throws IOException {
+		List<String> replies = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			replies.add(reader.nextString());
+		}
+		reader.endArray();
+		return replies.toArray(new String[replies.size()]);
+	}
+
+	private static SapcaiException invalidJson(Exception e) {
+		return new SapcaiException("Invalid JSON", e);
+	}
+
+	private static JsonPullParser parser(String source) {
+		return new JsonPullParser(new StringReader(source));
+	}
+
+	/**
+	 * The lazy getters parse the JSON kept by the constructor on first access, at most once.
+	 */
+	private Map<String, Entity[]> entities() {
+		Map<String, Entity[]> parsed = this.entities;
+		if (parsed == null) {
+			synchronized (this) {
+				parsed = this.entities;
+				if (parsed == null && this.entitiesSource != null) {
+					try {
+						parsed = Entity.readAll(parser(this.entitiesSource));
+					} catch (IOException | RuntimeException e) {
+						throw invalidJson(e);
+					}
+					this.entities = parsed;
+					this.entitiesSource = null;
+				}
+			}
+		}
+		return parsed;
+	}
+
+	private Action[] nextActions() {
+		Action[] parsed = this.nextActions;
+		if (parsed == null) {
+			synchronized (this) {
+				parsed = this.nextActions;
+				if (parsed == null && this.nextActionsSource != null) {
+					try {
+						parsed = Action.readAll(parser(this.nextActionsSource));
+					} catch (IOException | RuntimeException e) {
+						throw invalidJson(e);
+					}
+					this.nextActions = parsed;
+					this.nextActionsSource = null;
+				}
+			}
+		}
+		return parsed;
+	}
+
+	private Memory memory() {
+		Memory parsed = this.memory;
+		if (parsed == null) {
+			synchronized (this) {
+				parsed = this.memory;
+				if (parsed == null && this.memorySource != null) {
+					try {
+						parsed = Memory.read(parser(this.memorySource));
+					} catch (IOException | RuntimeException e) {
+						throw invalidJson(e);
+					}
+					this.memory = parsed;
+					this.memorySource = null;
+				}
+			}
+		}
+		return parsed;
+	}
+
 	public String reply(){
 		return this.replies[0];
 	}
 
 	public Action nextAction(){
-		return this.nextActions[0];
+		return this.nextActions()[0];
 	}
 
 	public String joinedReplies(){
@@ -127,76 +373,311 @@ public class Conversation {
 		return replies;
 	}
 
-        public boolean isPositive() { return this.sentiment.equals(SENTIMENT_POSITIVE); }
+        public Response.Sentiment getSentimentKind() {
+	    return this.sentimentKind;
+	}
+
+        public boolean isPositive() { return this.sentimentKind == Response.Sentiment.POSITIVE; }
 
         public boolean isVeryPositive() {
-	    return this.sentiment.equals(SENTIMENT_VERY_POSITIVE);
+	    return this.sentimentKind == Response.Sentiment.VERY_POSITIVE;
 	}
 
         public boolean isNeutral() {
-	    return this.sentiment.equals(SENTIMENT_NEUTRAL);
+	    return this.sentimentKind == Response.Sentiment.NEUTRAL;
 	}
 
         public boolean isNegative() {
-	    return this.sentiment.equals(SENTIMENT_NEGATIVE);
+	    return this.sentimentKind == Response.Sentiment.NEGATIVE;
 	}
 
         public boolean isVeryNegative() {
-	    return this.sentiment.equals(SENTIMENT_VERY_NEGATIVE);
+	    return this.sentimentKind == Response.Sentiment.VERY_NEGATIVE;
 	}
 
 	public void setMemoryEntity(String name, MemoryEntity newMemoryEntity){
-		this.memory.setMemory(name, newMemoryEntity);
-		String memory = this.memory.convertMemory();
-		String body = "{\"conversation_token\":\"" + this.conversationToken + "\", \"memory\":" + memory + "}";
-		this.doApiRequest(body, 0);
+		this.memory().setMemory(name, newMemoryEntity);
+		this.memoryChanged();
+	}
+
+	/**
+	 * Removes an entry of the memory
+	 * @param name The name of the entry
+	 */
+	public void removeMemoryEntity(String name){
+		this.memory().removeMemory(name);
+		this.memoryChanged();
 	}
 
 	public void resetMemory(){
-		this.memory.resetMemory();
-		String body = "{\"conversation_token\":\"" + this.conversationToken + "\",";
-		body = body + "\"memory\":null}";
-		this.doApiRequest(body, 0);
+		this.memory().resetMemory();
+		this.memoryChanged();
+	}
+
+	private void memoryChanged() {
+		if (this.autoFlushWindow <= 0) {
+			this.sendMemory();
+		} else if (this.flushScheduled.compareAndSet(false, true)) {
+			this.transport.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flushScheduled.set(false);
+					try {
+						sendMemory();
+					} catch (SapcaiException ignore) {
+						// the changes stay pending and are sent with the next flush
+					}
+				}
+			}, this.autoFlushWindow);
+		}
+	}
+
+	private void sendMemory() {
+		if (this.writeBehind) {
+			this.enqueueWrite(false);
+		} else {
+			this.flushMemory();
+		}
+	}
+
+	/**
+	 * Sends the changes of the memory since the last flush in a single request: the entries set and,
+	 * as null, the entries removed. After a reset of the memory, the reset is sent first, then the entries set
+	 * since. Nothing is sent if the memory has not changed.
+	 * If the request fails the changes stay pending and are sent with the next flush.
+	 * @throws SapcaiException if the request fails
+	 */
+	public void flushMemory() throws SapcaiException {
+		synchronized (this.flushLock) {
+			Memory memory = this.memory();
+			Memory.Delta delta = memory.takeDelta();
+			if (delta == null) {
+				return;
+			}
+			RequestJournal journal = this.journal;
+			if (journal != null && journal.isPending(this.token, this.conversationToken)) {
+				// sent after the updates already waiting in the journal
+				journal.addMemory(this.token, this.conversationToken, delta.reset, delta.toJson());
+				return;
+			}
+			try {
+				if (delta.reset && !delta.changes.isEmpty()) {
+					// the memory sent is merged into the one of SAP Conversational AI: the reset is sent first,
+					// or the entries set before it would survive it
+					this.doApiRequest(memoryBody(this.conversationToken, "null"), 0);
+				}
+				this.doApiRequest(memoryBody(this.conversationToken, delta.toJson()), 0);
+			} catch (SapcaiException e) {
+				if (journal != null && journal.isRetryable(e)) {
+					journal.addMemory(this.token, this.conversationToken, delta.reset, delta.toJson());
+				} else {
+					memory.restoreDelta(delta);
+				}
+				throw e;
+			}
+		}
+	}
+
+	static String memoryBody(String conversationToken, String memory) {
+		return "{\"conversation_token\":" + JSONObject.quote(conversationToken) + ", \"memory\":" + memory + "}";
+	}
+
+	/**
+	 * Gathers the memory updates made during -autoFlushWindow- milliseconds into a single request, sent
+	 * from the executor of the transport. With 0, the default, each update is sent at once.
+	 * @param autoFlushWindow The window in milliseconds
+	 */
+	public void setAutoFlushWindow(long autoFlushWindow) {
+		this.autoFlushWindow = autoFlushWindow;
+	}
+
+	public long getAutoFlushWindow() {
+		return this.autoFlushWindow;
 	}
 
 	public void resetConversation(){
+		if (this.writeBehind) {
+			this.enqueueWrite(true);
+			return;
+		}
+		this.deleteConversation();
+	}
+
+	private void deleteConversation() {
+		RequestJournal journal = this.journal;
+		if (journal != null && journal.isPending(this.token, this.conversationToken)) {
+			journal.addConversationReset(this.token, this.conversationToken);
+			return;
+		}
 		String body = "{\"conversation_token\": \"" + this.conversationToken + "\"}";
-		this.doApiRequest(body, 1);
+		try {
+			this.doApiRequest(body, 1);
+		} catch (SapcaiException e) {
+			if (journal != null && journal.isRetryable(e)) {
+				journal.addConversationReset(this.token, this.conversationToken);
+			}
+			throw e;
+		}
 	}
 
-	public String doApiRequest(String body, int putOrDelete){
-		System.out.println("body: " + body);
-			String url = converseAPI;
+	/**
+	 * Queues a call and starts draining the queue if needed. A memory flush joins the one already waiting,
+	 * which sends every change made until it starts. A conversation reset makes the waiting memory flush
+	 * and the unsent changes of the memory useless, and joins the reset already waiting. The memory flush it
+	 * supersedes is never sent: its future completes with the reset, failing if the reset fails.
+	 */
+	private CompletableFuture<Void> enqueueWrite(boolean reset) {
+		Write write;
+		Write superseded = null;
+		boolean start = false;
+		synchronized (this.writes) {
+			Write last = this.writes.peekLast();
+			if (reset) {
+				if (last != null && !last.reset) {
+					superseded = this.writes.pollLast();
+					last = this.writes.peekLast();
+				}
+				Memory memory = this.memory();
+				if (memory != null) {
+					memory.takeDelta();
+				}
+			}
+			if (last != null && last.reset == reset) {
+				write = last;
+			} else {
+				write = new Write(reset);
+				this.writes.addLast(write);
+				start = !this.draining;
+				this.draining = true;
+			}
+		}
+		if (superseded != null) {
+			superseded.follow(write);
+		}
+		if (!start) {
+			return write.done;
+		}
+		Runnable drain = new Runnable() {
+			@Override
+			public void run() {
+				drainWrites();
+			}
+		};
+		try {
+			this.transport.getExecutor().execute(drain);
+		} catch (RejectedExecutionException e) {
+			drain.run();
+		}
+		return write.done;
+	}
+
+	private void drainWrites() {
+		for (;;) {
+			Write write;
+			synchronized (this.writes) {
+				write = this.writes.pollFirst();
+				this.pendingWrite = write;
+				if (write == null) {
+					this.draining = false;
+					return;
+				}
+			}
 			try {
-				CloseableHttpClient httpClient = HttpClientBuilder.create().build();
-				HttpDelete requestD = new HttpDelete(url);
-				HttpPut request = new HttpPut(url);
-				String json = null;
-				if(putOrDelete == 1){
-					requestD.addHeader("Authorization", "Token " + this.token);
-			        HttpResponse result = httpClient.execute(requestD);
-			        json = EntityUtils.toString(result.getEntity(), "UTF-8");
+				if (write.reset) {
+					this.deleteConversation();
 				} else {
-					StringEntity params;
-					params = new StringEntity(body);
-					request.addHeader("Authorization", "Token " + this.token);
-			        request.setEntity(params);
-			        HttpResponse result = httpClient.execute(request);
-			        json = EntityUtils.toString(result.getEntity(), "UTF-8");
+					this.flushMemory();
+				}
+				write.done.complete(null);
+			} catch (RuntimeException e) {
+				synchronized (this.writes) {
+					if (this.writeFailure == null) {
+						this.writeFailure = e;
+					}
 				}
-		        return json;
-			} catch (UnsupportedEncodingException e) {
-				throw new SapcaiException("Unable to read response from SAP Conversational AI", e);
-			} catch (ParseException e) {
-				throw new SapcaiException("Unable to read response from SAP Conversational AI", e);
-			} catch (IOException e) {
-				throw new SapcaiException("Unable to read response from SAP Conversational AI", e);
+				write.done.completeExceptionally(e);
 			}
+		}
+	}
+
+	/**
+	 * Queues the setMemoryEntity, removeMemoryEntity, resetMemory and resetConversation calls and sends them
+	 * in order in the background, from the executor of the transport, instead of waiting for each of them.
+	 * The queued calls are merged: the memory changes are sent together and a conversation reset drops the
+	 * memory changes not sent yet. Use flushWrites to wait for them.
+	 * @param writeBehind true to queue the calls, false (the default) to send each of them at once
+	 */
+	public void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+	public boolean isWriteBehind() {
+		return this.writeBehind;
+	}
+
+	/**
+	 * Sends the memory changes not sent yet, even within the auto flush window, and returns a future completed
+	 * once every call queued until now is done. It fails with the SapcaiException of the first call which failed
+	 * since the previous flushWrites, even if that call was done before this one was made.
+	 * @return A future completed when the queue has been drained up to this call
+	 */
+	public CompletableFuture<Void> flushWrites() {
+		Memory memory = this.memory();
+		if (memory != null && memory.isDirty()) {
+			if (this.writeBehind) {
+				this.enqueueWrite(false);
+			} else {
+				try {
+					this.flushMemory();
+				} catch (SapcaiException e) {
+					CompletableFuture<Void> failed = new CompletableFuture<>();
+					failed.completeExceptionally(e);
+					return failed;
+				}
+			}
+		}
+		List<CompletableFuture<Void>> pending = new ArrayList<>();
+		synchronized (this.writes) {
+			if (this.pendingWrite != null) {
+				pending.add(this.pendingWrite.done);
+			}
+			for (Write write : this.writes) {
+				pending.add(write.done);
+			}
+		}
+		final CompletableFuture<Void> barrier = new CompletableFuture<>();
+		CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()])).whenComplete(
+				new BiConsumer<Void, Throwable>() {
+					@Override
+					public void accept(Void ignore, Throwable failure) {
+						// the failures of the calls waited for were recorded before their futures completed
+						RuntimeException first;
+						synchronized (writes) {
+							first = writeFailure;
+							writeFailure = null;
+						}
+						if (first != null) {
+							barrier.completeExceptionally(first);
+						} else if (failure != null) {
+							barrier.completeExceptionally(failure);
+						} else {
+							barrier.complete(null);
+						}
+					}
+				});
+		return barrier;
+	}
 
+	public String doApiRequest(String body, int putOrDelete){
+		if(putOrDelete == 1){
+			return this.transport.delete(this.transport.getConverseUrl(), this.token);
+		}
+		StringEntity params = new StringEntity(body, ContentType.APPLICATION_JSON);
+		return this.transport.put(this.transport.getConverseUrl(), this.token, params);
 	}
 
 	public String getRaw() {
-		return raw;
+		return RawJson.decode(raw);
 	}
 
 	public void setRaw(String raw) {
@@ -236,27 +717,30 @@ public class Conversation {
 	}
 
 	public Action[] getNextActions() {
-		return nextActions;
+		return this.nextActions();
 	}
 
-	public void setNextActions(Action[] nextActions) {
+	public synchronized void setNextActions(Action[] nextActions) {
 		this.nextActions = nextActions;
+		this.nextActionsSource = null;
 	}
 
 	public Memory getMemory() {
-		return memory;
+		return this.memory();
 	}
 
-	public void setMemory(Memory memory) {
+	public synchronized void setMemory(Memory memory) {
 		this.memory = memory;
+		this.memorySource = null;
 	}
 
 	public Map<String, Entity[]> getEntities() {
-		return entities;
+		return this.entities();
 	}
 
-	public void setEntities(Map<String, Entity[]> entities) {
+	public synchronized void setEntities(Map<String, Entity[]> entities) {
 		this.entities = entities;
+		this.entitiesSource = null;
 	}
 
 	public Intent[] getIntents() {
@@ -315,4 +799,61 @@ public class Conversation {
 		this.token = token;
 	}
 
+	public HttpTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Saves the conversation token, memory, last action and next actions of the Conversation to a small binary file,
+	 * so that the conversation can go on after a restart without any request. The memory changes not sent yet are
+	 * saved too, and sent by the next flush of the restored Conversation. Cheap enough to be done after each message.
+	 * @param file The file of the snapshot, replaced at once
+	 * @throws SapcaiException if the file cannot be written
+	 */
+	public void saveSnapshot(File file) throws SapcaiException {
+		try {
+			ConversationSnapshot.save(this, file);
+		} catch (IOException e) {
+			throw new SapcaiException("Cannot save the snapshot " + file, e);
+		}
+	}
+
+	/**
+	 * Restores a Conversation saved by saveSnapshot, without any request or JSON parsing.
+	 * Only its conversation token, language, memory, last action and next actions are restored.
+	 * @param file The file of the snapshot
+	 * @param token Your token from SAP Conversational AI
+	 * @return The Conversation
+	 * @throws SapcaiException if the file cannot be read or is not a snapshot
+	 */
+	public static Conversation restoreSnapshot(File file, String token) throws SapcaiException {
+		return restoreSnapshot(file, token, HttpTransport.getDefault());
+	}
+
+	static Conversation restoreSnapshot(File file, String token, HttpTransport transport) throws SapcaiException {
+		try {
+			return ConversationSnapshot.restore(file, token, transport);
+		} catch (IOException e) {
+			throw new SapcaiException("Cannot restore the snapshot " + file, e);
+		}
+	}
+
+	/**
+	 * Sets the journal keeping the memory updates and resets which fail because SAP Conversational AI cannot be
+	 * reached. While the journal holds some for this conversation, the next ones are added to it without being sent.
+	 * @param journal The journal of the failed requests, or null to disable it (the default)
+	 * @see RequestJournal
+	 */
+	public void setJournal(RequestJournal journal) {
+		this.journal = journal;
+	}
+
+	public RequestJournal getJournal() {
+		return this.journal;
+	}
+
+	public void setTransport(HttpTransport transport) {
+		this.transport = transport;
+	}
+
 }
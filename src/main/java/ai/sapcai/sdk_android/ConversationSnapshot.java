@@ -0,0 +1,201 @@
+package ai.sapcai.sdk_android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The ConversationSnapshot class saves the state of a Conversation needed to go on with it: its conversation
+ * token, memory with the changes not sent yet, last action and next actions. The snapshot is a small binary file,
+ * written to a temporary file synced to the disk then renamed, so that a crash leaves either the previous snapshot
+ * or the new one but never a partial one. It is read back without any request or JSON parsing.
+ *
+ * @see Conversation#saveSnapshot(File)
+ * @see Conversation#restoreSnapshot(File, String)
+ */
+final class ConversationSnapshot {
+    // "SCAI"
+    private static final int    MAGIC = 0x53434149;
+    private static final int    FORMAT_VERSION = 2;
+    private static final int    BUFFER_SIZE = 4096;
+
+    private static final byte   DONE_NULL = 0;
+    private static final byte   DONE_FALSE = 1;
+    private static final byte   DONE_TRUE = 2;
+
+    private ConversationSnapshot() {}
+
+    static void save(Conversation conversation, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+        try {
+            write(conversation, out);
+            out.flush();
+            // the content must be on the disk before the rename makes it the snapshot
+            stream.getFD().sync();
+        } catch (IOException e) {
+            out.close();
+            tmp.delete();
+            throw e;
+        }
+        out.close();
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    static Conversation restore(File file, String token, HttpTransport transport) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        try {
+            return read(in, token, transport);
+        } finally {
+            in.close();
+        }
+    }
+
+    static void write(Conversation conversation, DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        writeString(out, conversation.getConversationToken());
+        writeString(out, conversation.getLanguage());
+
+        Memory memory = conversation.getMemory();
+        if (memory == null) {
+            out.writeInt(-1);
+        } else {
+            synchronized (memory) {
+                Map<String, MemoryEntity> entities = memory.getEntities();
+                out.writeInt(entities.size());
+                for (Map.Entry<String, MemoryEntity> entry : entities.entrySet()) {
+                    MemoryEntity entity = entry.getValue();
+                    writeString(out, entry.getKey());
+                    out.writeBoolean(entity != null);
+                    if (entity != null) {
+                        writeString(out, entity.getRaw());
+                        writeString(out, entity.getValue());
+                        out.writeDouble(entity.getConfidence());
+                    }
+                }
+                // the changes not sent yet, so that the next flush after the restore sends them
+                out.writeBoolean(memory.isReset());
+                Set<String> dirty = memory.getDirtyNames();
+                out.writeInt(dirty.size());
+                for (String name : dirty) {
+                    writeString(out, name);
+                }
+            }
+        }
+
+        writeAction(out, conversation.getAction());
+        Action[] nextActions = conversation.getNextActions();
+        if (nextActions == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(nextActions.length);
+            for (Action action : nextActions) {
+                writeAction(out, action);
+            }
+        }
+    }
+
+    static Conversation read(DataInputStream in, String token, HttpTransport transport) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a conversation snapshot");
+        }
+        int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        Conversation conversation = new Conversation(token, transport);
+        conversation.setConversationToken(readString(in));
+        conversation.setLanguage(readString(in));
+
+        int size = in.readInt();
+        if (size >= 0) {
+            Map<String, MemoryEntity> entities = new HashMap<>(Math.max(16, (int) (size / 0.75f) + 1));
+            for (int i = 0; i < size; i++) {
+                String name = Interner.SHARED.intern(readString(in));
+                MemoryEntity entity = null;
+                if (in.readBoolean()) {
+                    entity = new MemoryEntity(readString(in), readString(in), in.readDouble());
+                    entity.setName(name);
+                }
+                entities.put(name, entity);
+            }
+            Memory memory = new Memory(entities);
+            boolean reset = in.readBoolean();
+            int dirty = in.readInt();
+            List<String> names = new ArrayList<>(Math.max(0, dirty));
+            for (int i = 0; i < dirty; i++) {
+                names.add(readString(in));
+            }
+            memory.markDirty(reset, names);
+            conversation.setMemory(memory);
+        }
+
+        conversation.setAction(readAction(in));
+        int count = in.readInt();
+        if (count >= 0) {
+            Action[] nextActions = new Action[count];
+            for (int i = 0; i < count; i++) {
+                nextActions[i] = readAction(in);
+            }
+            conversation.setNextActions(nextActions);
+        }
+        return conversation;
+    }
+
+    private static void writeAction(DataOutputStream out, Action action) throws IOException {
+        out.writeBoolean(action != null);
+        if (action == null) {
+            return;
+        }
+        writeString(out, action.getSlug());
+        Boolean done = action.getDone();
+        out.writeByte(done == null ? DONE_NULL : done ? DONE_TRUE : DONE_FALSE);
+        writeString(out, action.getReply());
+    }
+
+    private static Action readAction(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        String slug = readString(in);
+        byte done = in.readByte();
+        return new Action(slug, done == DONE_NULL ? null : done == DONE_TRUE, readString(in));
+    }
+
+    // the length and UTF-8 bytes of the value, as writeUTF cannot write values of more than 64 KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
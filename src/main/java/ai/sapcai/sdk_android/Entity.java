@@ -1,9 +1,20 @@
 package ai.sapcai.sdk_android;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * The Entity class represents an entity found by SAP Conversational AI in the user input.
+ * The fields of the entity are stored compactly: the confidence and coordinates as primitives, the date of
+ * datetime entities as an epoch, and the other fields in a flat array of names and values.
  *
  * @author Francois Triquet
  * @version 2.0.0
@@ -11,17 +22,265 @@ import org.json.JSONObject;
  *
  */
 public class Entity {
+    public static final long NO_EPOCH = Long.MIN_VALUE;
+
+    private static final Object[] NO_FIELDS = new Object[0];
 
     private String name;
     private double confidence;
-    private JSONObject data;
+    private String raw;
+    private double lat = Double.NaN;
+    private double lng = Double.NaN;
+    private long epoch = NO_EPOCH;
+    // the other fields: name, value, name, value...
+    private Object[] fields = NO_FIELDS;
+
+    private Entity(String name) {
+        this.name = Interner.SHARED.intern(name);
+    }
 
     Entity (String name, JSONObject o) {
-        this.data = o;
-        this.name = name;
+        this(name);
         if(o != null){
-        	this.confidence = o.optDouble("confidence");
+            List<Object> others = new ArrayList<>();
+            this.confidence = Double.NaN;
+            Iterator<String> it = o.keys();
+            while (it.hasNext()) {
+                String field = it.next();
+                this.setField(field, normalize(o.opt(field)), others);
+            }
+            this.setFields(others);
+        }
+    }
+
+    static Entity read(String name, JsonPullParser reader) throws IOException {
+        Entity entity = new Entity(name);
+        if (reader.peek() != JsonPullParser.Token.BEGIN_OBJECT) {
+            reader.skipValue();
+            return entity;
+        }
+
+        List<Object> others = new ArrayList<>();
+        entity.confidence = Double.NaN;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek() == JsonPullParser.Token.NUMBER && entity.setNumber(field, reader)) {
+                continue;
+            }
+            entity.setField(field, reader.nextValue(), others);
+        }
+        reader.endObject();
+        entity.setFields(others);
+        return entity;
+    }
+
+    /**
+     * Reads the confidence and the coordinates without boxing them
+     * @return false if the field is another one, left unread
+     */
+    private boolean setNumber(String field, JsonPullParser reader) throws IOException {
+        switch (field) {
+            case "confidence":
+                this.confidence = reader.nextDouble();
+                return true;
+            case "lat":
+                this.lat = reader.nextDouble();
+                return true;
+            case "lng":
+                this.lng = reader.nextDouble();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param value The value, as returned by normalize or JsonPullParser.nextValue
+     */
+    private void setField(String field, Object value, List<Object> others) {
+        switch (field) {
+            case "confidence":
+                this.confidence = toDouble(value);
+                break;
+            case "raw":
+                this.raw = value == null ? null : value.toString();
+                break;
+            case "lat":
+                this.lat = toDouble(value);
+                break;
+            case "lng":
+                this.lng = toDouble(value);
+                break;
+            default:
+                others.add(Interner.SHARED.intern(field));
+                others.add(value);
+        }
+    }
+
+    /**
+     * Returns a number, or a string holding one, as JsonPullParser.nextDouble does: NaN for anything else
+     */
+    private static double toDouble(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
         }
+        if (value instanceof String) {
+            try {
+                return Double.parseDouble((String) value);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Converts a value of a JSONObject to the types JsonPullParser.nextValue returns, so that the fields are the
+     * same whichever way the response was parsed: objects and arrays as Map and List, JSONObject.NULL as null,
+     * and numbers as Integer, Long or Double
+     */
+    static Object normalize(Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            return null;
+        }
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            Map<String, Object> map = new LinkedHashMap<>();
+            Iterator<String> it = object.keys();
+            while (it.hasNext()) {
+                String name = it.next();
+                map.put(name, normalize(object.opt(name)));
+            }
+            return map;
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            List<Object> list = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                list.add(normalize(array.opt(i)));
+            }
+            return list;
+        }
+        if (value instanceof Number && !(value instanceof Integer || value instanceof Long || value instanceof Double)) {
+            return JsonPullParser.parseNumber(value.toString());
+        }
+        return value;
+    }
+
+    private void setFields(List<Object> others) {
+        if (!others.isEmpty()) {
+            this.fields = others.toArray();
+        }
+        // the date of datetime entities is in iso, or in value for the older versions of the API
+        Object date = this.field("iso");
+        if (date == null && "datetime".equals(this.name)) {
+            date = this.field("value");
+        }
+        if (date instanceof String) {
+            this.epoch = parseEpoch((String) date);
+        }
+    }
+
+    private Object field(String field) {
+        for (int i = 0; i < this.fields.length; i += 2) {
+            if (this.fields[i].equals(field)) {
+                return this.fields[i + 1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses an ISO 8601 date (2016-07-11T10:00:00+00:00), in UTC when it has no offset
+     * @return The date in milliseconds since the epoch, or NO_EPOCH if it is not a valid date
+     */
+    static long parseEpoch(String date) {
+        try {
+            int length = date.length();
+            if (length < 10 || date.charAt(4) != '-' || date.charAt(7) != '-') {
+                return NO_EPOCH;
+            }
+            long year = Integer.parseInt(date.substring(0, 4));
+            int month = Integer.parseInt(date.substring(5, 7));
+            int day = Integer.parseInt(date.substring(8, 10));
+            int hour = 0;
+            int minute = 0;
+            int second = 0;
+            int millis = 0;
+            int offset = 0;
+            int i = 10;
+
+            if (i < length && (date.charAt(i) == 'T' || date.charAt(i) == ' ')) {
+                hour = Integer.parseInt(date.substring(i + 1, i + 3));
+                minute = Integer.parseInt(date.substring(i + 4, i + 6));
+                i += 6;
+                if (i < length && date.charAt(i) == ':') {
+                    second = Integer.parseInt(date.substring(i + 1, i + 3));
+                    i += 3;
+                    if (i < length && date.charAt(i) == '.') {
+                        int digits = 0;
+                        for (i++; i < length && Character.isDigit(date.charAt(i)); i++, digits++) {
+                            if (digits < 3) {
+                                millis = millis * 10 + (date.charAt(i) - '0');
+                            }
+                        }
+                        for (; digits < 3; digits++) {
+                            millis *= 10;
+                        }
+                    }
+                }
+            }
+            if (i < length) {
+                char sign = date.charAt(i);
+                if (sign == 'Z') {
+                    i++;
+                } else if (sign == '+' || sign == '-') {
+                    int offsetHours = Integer.parseInt(date.substring(i + 1, i + 3));
+                    int minutesAt = date.length() > i + 3 && date.charAt(i + 3) == ':' ? i + 4 : i + 3;
+                    int offsetMinutes = minutesAt + 2 <= length ? Integer.parseInt(date.substring(minutesAt, minutesAt + 2)) : 0;
+                    offset = (offsetHours * 60 + offsetMinutes) * (sign == '-' ? -1 : 1);
+                    i = minutesAt + 2 <= length ? minutesAt + 2 : length;
+                }
+            }
+            if (i != length || month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+                return NO_EPOCH;
+            }
+
+            // days since 1970-01-01 in the proleptic Gregorian calendar
+            year -= month <= 2 ? 1 : 0;
+            long era = (year >= 0 ? year : year - 399) / 400;
+            long yearOfEra = year - era * 400;
+            long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+            long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+            long days = era * 146097 + dayOfEra - 719468;
+
+            return ((days * 24 + hour) * 60 + minute - offset) * 60000L + second * 1000L + millis;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return NO_EPOCH;
+        }
+    }
+
+    /**
+     * Reads the entities object of a response, whose keys are the names of the entities
+     * and whose values are the arrays of the entities found with that name
+     */
+    static Map<String, Entity[]> readAll(JsonPullParser reader) throws IOException {
+        Map<String, Entity[]> entities = new HashMap<String, Entity[]>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = Interner.SHARED.intern(reader.nextName());
+            List<Entity> values = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                values.add(read(name, reader));
+            }
+            reader.endArray();
+            entities.put(name, values.toArray(new Entity[values.size()]));
+        }
+        reader.endObject();
+        return entities;
     }
 
     /**
@@ -40,10 +299,108 @@ public class Entity {
         return this.confidence;
     }
 
+    /**
+     * Returns the raw text on which the entity was detected
+     * @return The raw text of the entity
+     */
+    public String getRaw() {
+        return this.raw;
+    }
+
+    /**
+     * Returns the latitude of a location entity
+     * @return The latitude, or NaN if the entity has none
+     */
+    public double getLat() {
+        return this.lat;
+    }
+
+    /**
+     * Returns the longitude of a location entity
+     * @return The longitude, or NaN if the entity has none
+     */
+    public double getLng() {
+        return this.lng;
+    }
+
+    /**
+     * Returns whether or not the entity has coordinates
+     * @return true if the latitude and longitude are known
+     */
+    public boolean hasCoordinates() {
+        return !Double.isNaN(this.lat) && !Double.isNaN(this.lng);
+    }
 
     /**
-     * Returns the fields described by the parameter if it exists or null otherwise
+     * Returns the date of a datetime entity
+     * @return The date in milliseconds since the epoch, or NO_EPOCH if the entity has none
+     */
+    public long getEpoch() {
+        return this.epoch;
+    }
+
+    /**
+     * Returns the fields described by the parameter if it exists or null otherwise.
+     * Objects are returned as Map, arrays as List and numbers as Integer, Long or Double.
      * @param name The name of the field
      * @return The value of the field or null
      */
+    public Object getField(String name) {
+        switch (name) {
+            case "confidence":
+                return Double.isNaN(this.confidence) ? null : Double.valueOf(this.confidence);
+            case "raw":
+                return this.raw;
+            case "lat":
+                return Double.isNaN(this.lat) ? null : Double.valueOf(this.lat);
+            case "lng":
+                return Double.isNaN(this.lng) ? null : Double.valueOf(this.lng);
+            default:
+                return this.field(name);
+        }
+    }
+
+    /**
+     * Returns a field as a string
+     * @param name The name of the field
+     * @return The value of the field, or null if the entity has no such field
+     */
+    public String getString(String name) {
+        Object value = this.getField(name);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Returns a numeric field
+     * @param name The name of the field
+     * @return The value of the field, or NaN if the entity has no such numeric field
+     */
+    public double getDouble(String name) {
+        Object value = this.getField(name);
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+    }
+
+    /**
+     * Returns the names of the fields of the entity
+     * @return The names of the fields
+     */
+    public List<String> getFieldNames() {
+        List<String> names = new ArrayList<>(this.fields.length / 2 + 4);
+        if (!Double.isNaN(this.confidence)) {
+            names.add("confidence");
+        }
+        if (this.raw != null) {
+            names.add("raw");
+        }
+        if (!Double.isNaN(this.lat)) {
+            names.add("lat");
+        }
+        if (!Double.isNaN(this.lng)) {
+            names.add("lng");
+        }
+        for (int i = 0; i < this.fields.length; i += 2) {
+            names.add((String) this.fields[i]);
+        }
+        return names;
+    }
 }
@@ -0,0 +1,38 @@
+package ai.sapcai.sdk_android;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The HttpConnector interface is the wire under an HttpTransport: it sends a request and returns the response, while
+ * the transport does everything else (authentication, compression, retries, rate limiting, circuit breaking, metrics
+ * and reading the body). The default connector is a pool of keep-alive HTTPS connections. LoopbackConnector answers
+ * in-process with canned payloads, to measure the cost of the SDK itself, and another HTTP client can be plugged in.
+ *
+ * @see HttpTransport#HttpTransport(HttpConnector)
+ */
+public interface HttpConnector extends Closeable {
+
+    /**
+     * Sends a request. The transport reads the body of the response, then closes it.
+     * @param request The request, with its headers and body
+     * @return The response
+     * @throws IOException if the request cannot be sent or the response cannot be received
+     */
+    CloseableHttpResponse execute(HttpUriRequest request) throws IOException;
+
+    /**
+     * Closes the expired connections and the ones unused for longer than idleTimeout, if the connector keeps any
+     * @param idleTimeout How long in milliseconds a connection may stay unused
+     */
+    void evictIdleConnections(long idleTimeout);
+
+    /**
+     * Releases the connections of the connector
+     */
+    @Override
+    void close();
+}
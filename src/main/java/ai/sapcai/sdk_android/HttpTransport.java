@@ -0,0 +1,754 @@
+package ai.sapcai.sdk_android;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * The HttpTransport class holds the pool of keep-alive connections used to reach SAP Conversational AI.
+ * A single transport is shared by default between every Client, Request and Conversation so that consecutive
+ * requests reuse the same TCP and TLS session instead of opening a new connection each time.
+ * Idle connections are evicted in the background and the whole pool is released by close().
+ * The transport also owns the bounded executor running the asynchronous requests, sized after the pool
+ * so that its threads never wait for a free connection.
+ * Failed and slow requests can be retried and hedged according to a RetryPolicy, limited by a RateLimiter
+ * and stopped by a CircuitBreaker while an endpoint is degraded.
+ * The requests go out through an HttpConnector, which can be replaced, and to endpoints under a base url
+ * which can be changed, for instance to reach a test server.
+ *
+ * @see Client#setTransport(HttpTransport)
+ */
+public class HttpTransport implements Closeable {
+
+    public static final int  DEFAULT_MAX_CONNECTIONS = 20;
+    public static final int  DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+    public static final long DEFAULT_KEEP_ALIVE = 30000;
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+    public static final int  DEFAULT_MAX_PENDING_REQUESTS = 1024;
+    public static final int  DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int  DEFAULT_SOCKET_TIMEOUT = 30000;
+    public static final String DEFAULT_BASE_URL = "https://api.cai.tools.sap";
+    public static final String REQUEST_PATH = "/v2/request";
+    public static final String CONVERSE_PATH = "/v2/converse";
+
+    private static HttpTransport            defaultTransport;
+
+    /**
+     * Reads the body of a successful response while it is received from the socket
+     */
+    interface BodyReader<T> {
+        /**
+         * @param body The body, already decompressed
+         * @param contentLength The length of the body, or -1 if it is unknown
+         * @param sizeHint The expected length of the body when it is unknown
+         */
+        T read(InputStream body, long contentLength, int sizeHint) throws IOException;
+    }
+
+    static final BodyReader<String> STRING_BODY = new BodyReader<String>() {
+        @Override
+        public String read(InputStream body, long contentLength, int sizeHint) throws IOException {
+            return contentLength >= 0 ? ResponseBodyReader.read(body, contentLength) : ResponseBodyReader.readWithHint(body, sizeHint);
+        }
+    };
+
+    private final HttpConnector             connector;
+    private volatile String                 baseUrl = DEFAULT_BASE_URL;
+    private volatile String                 requestUrl = DEFAULT_BASE_URL + REQUEST_PATH;
+    private volatile String                 converseUrl = DEFAULT_BASE_URL + CONVERSE_PATH;
+    private final ScheduledExecutorService  scheduler;
+    private final long                      idleTimeout;
+    private final ExecutorService           defaultExecutor;
+    private volatile Executor               executor;
+    private volatile RetryPolicy            retryPolicy;
+    private volatile RateLimiter            rateLimiter;
+    private volatile CircuitBreaker         circuitBreaker;
+    private volatile RequestConfig          requestConfig;
+    private volatile int                    compressionThreshold = -1;
+    private final TransportMetrics          metrics = new TransportMetrics();
+    private final RequestCoalescer          coalescer = new RequestCoalescer();
+    private final ConcurrentHashMap<String, LatencyTracker> latencies = new ConcurrentHashMap<>();
+    private volatile boolean                closed;
+
+    /**
+     * Initialize a transport with the default pool sizes and timeouts
+     */
+    public HttpTransport() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_KEEP_ALIVE, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Initialize a transport with a bounded connection pool
+     * @param maxConnections The maximum number of open connections
+     * @param maxConnectionsPerRoute The maximum number of open connections to the same host
+     * @param keepAlive How long in milliseconds a connection is kept alive when the server does not say otherwise
+     * @param idleTimeout How long in milliseconds an unused connection stays in the pool before being closed
+     */
+    public HttpTransport(int maxConnections, int maxConnectionsPerRoute, long keepAlive, long idleTimeout) {
+        this(maxConnections, maxConnectionsPerRoute, keepAlive, idleTimeout, null);
+    }
+
+    /**
+     * Initialize a transport whose HTTPS connections use their own SSLContext, for instance one trusting the
+     * self-signed certificate of a local test server
+     * @param sslContext The context of the HTTPS connections, or null for the default one
+     */
+    HttpTransport(int maxConnections, int maxConnectionsPerRoute, long keepAlive, long idleTimeout, SSLContext sslContext) {
+        this(new PooledHttpConnector(maxConnections, maxConnectionsPerRoute, keepAlive, sslContext), maxConnectionsPerRoute, idleTimeout);
+    }
+
+    /**
+     * Initialize a transport sending its requests through another connector, for instance a LoopbackConnector
+     * @param connector The connector sending the requests
+     * @see LoopbackConnector
+     */
+    public HttpTransport(HttpConnector connector) {
+        this(connector, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    private HttpTransport(HttpConnector connector, int maxConnectionsPerRoute, long idleTimeout) {
+        this.connector = connector;
+        this.idleTimeout = idleTimeout;
+        this.setTimeouts(DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "sapcai-transport-scheduler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(idleTimeout / 2, 1000);
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleConnections();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.defaultExecutor = new ThreadPoolExecutor(maxConnectionsPerRoute, maxConnectionsPerRoute,
+                idleTimeout, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(DEFAULT_MAX_PENDING_REQUESTS),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "sapcai-request-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        ((ThreadPoolExecutor) this.defaultExecutor).allowCoreThreadTimeOut(true);
+        this.executor = this.defaultExecutor;
+    }
+
+    /**
+     * Returns the transport shared by all the instances which were not given one explicitly.
+     * A new one is created if the previous one has been closed.
+     * @return The shared transport
+     */
+    public static synchronized HttpTransport getDefault() {
+        if (defaultTransport == null || defaultTransport.isClosed()) {
+            defaultTransport = new HttpTransport();
+        }
+        return defaultTransport;
+    }
+
+    /**
+     * Performs a POST request and returns the body of the response. The request is considered
+     * non idempotent, so it is neither retried nor hedged unless the retry policy allows it.
+     * @param url The url of the endpoint
+     * @param token The token used to authenticate to SAP Conversational AI
+     * @param entity The body of the request
+     * @return The body of the response
+     * @throws SapcaiException if the request fails or SAP Conversational AI does not answer with 200
+     */
+    public String post(String url, String token, HttpEntity entity) throws SapcaiException {
+        return this.post(url, token, entity, false);
+    }
+
+    /**
+     * Performs a POST request and returns the body of the response
+     * @param url The url of the endpoint
+     * @param token The token used to authenticate to SAP Conversational AI
+     * @param entity The body of the request
+     * @param idempotent Whether or not the request can safely be sent several times
+     * @return The body of the response
+     * @throws SapcaiException if the request fails or SAP Conversational AI does not answer with 200
+     */
+    public String post(String url, String token, HttpEntity entity, boolean idempotent) throws SapcaiException {
+        return this.execute(HttpPost.METHOD_NAME, url, token, entity, idempotent, STRING_BODY);
+    }
+
+    /**
+     * Performs a POST request and hands the body of the response to the reader as it is received
+     */
+    <T> T post(String url, String token, HttpEntity entity, boolean idempotent, BodyReader<T> reader) throws SapcaiException {
+        return this.execute(HttpPost.METHOD_NAME, url, token, entity, idempotent, reader);
+    }
+
+    /**
+     * Performs a PUT request and returns the body of the response
+     * @param url The url of the endpoint
+     * @param token The token used to authenticate to SAP Conversational AI
+     * @param entity The body of the request
+     * @return The body of the response
+     * @throws SapcaiException if the request fails or SAP Conversational AI does not answer with 200
+     */
+    public String put(String url, String token, HttpEntity entity) throws SapcaiException {
+        return this.execute(HttpPut.METHOD_NAME, url, token, entity, true, STRING_BODY);
+    }
+
+    /**
+     * Performs a DELETE request and returns the body of the response
+     * @param url The url of the endpoint
+     * @param token The token used to authenticate to SAP Conversational AI
+     * @return The body of the response
+     * @throws SapcaiException if the request fails or SAP Conversational AI does not answer with 200
+     */
+    public String delete(String url, String token) throws SapcaiException {
+        return this.execute(HttpDelete.METHOD_NAME, url, token, null, true, STRING_BODY);
+    }
+
+    /**
+     * Sets the url under which the endpoints of SAP Conversational AI are reached, for instance a local test server
+     * @param baseUrl The scheme, host and port, DEFAULT_BASE_URL by default
+     */
+    public void setBaseUrl(String baseUrl) {
+        String base = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.baseUrl = base;
+        this.requestUrl = base + REQUEST_PATH;
+        this.converseUrl = base + CONVERSE_PATH;
+    }
+
+    public String getBaseUrl() {
+        return this.baseUrl;
+    }
+
+    /**
+     * Returns the url of the text and audio requests
+     * @return The base url followed by REQUEST_PATH
+     */
+    public String getRequestUrl() {
+        return this.requestUrl;
+    }
+
+    /**
+     * Returns the url of the conversations
+     * @return The base url followed by CONVERSE_PATH
+     */
+    public String getConverseUrl() {
+        return this.converseUrl;
+    }
+
+    /**
+     * Returns the connector sending the requests
+     * @return The connector of the transport
+     */
+    public HttpConnector getConnector() {
+        return this.connector;
+    }
+
+    /**
+     * Sets the policy used to retry failed requests and hedge slow ones. By default requests are sent only once.
+     * @param retryPolicy The retry policy, or null to disable retries
+     * @see RetryPolicy
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return this.retryPolicy;
+    }
+
+    /**
+     * Sets the limiter keeping the requests of each token under a given rate. Every attempt of a request,
+     * retries included, takes a permit, and hedged copies are only sent when a permit is available right away.
+     * @param rateLimiter The rate limiter, or null to send the requests without limit (the default)
+     * @see RateLimiter
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return this.rateLimiter;
+    }
+
+    /**
+     * Sets the circuit breaker failing fast the requests to endpoints which are currently degraded
+     * @param circuitBreaker The circuit breaker, or null to always send the requests (the default)
+     * @see CircuitBreaker
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    /**
+     * Enables the gzip compression of the request bodies (memory updates...) larger than the threshold.
+     * Responses are always requested gzipped, whatever this setting.
+     * @param compressionThreshold The minimum size in bytes of a compressed body, or -1 to never compress (the default)
+     */
+    public void setRequestCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int getRequestCompressionThreshold() {
+        return this.compressionThreshold;
+    }
+
+    /**
+     * Returns the byte counters of the transport
+     * @return The metrics of the transport
+     * @see TransportMetrics
+     */
+    public TransportMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Returns the coalescer of the text requests sent through this transport
+     */
+    RequestCoalescer getCoalescer() {
+        return this.coalescer;
+    }
+
+    /**
+     * Sets the timeouts of the requests. Waiting for a free connection of the pool counts as connecting.
+     * @param connectTimeout The maximum time in milliseconds to get a connection, DEFAULT_CONNECT_TIMEOUT by default
+     * @param socketTimeout The maximum time in milliseconds without receiving data, DEFAULT_SOCKET_TIMEOUT by default
+     */
+    public void setTimeouts(int connectTimeout, int socketTimeout) {
+        this.requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(connectTimeout)
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout)
+                .build();
+    }
+
+    /**
+     * Sets the executor running the asynchronous requests. By default a bounded pool of as many threads as
+     * connections per route is used, and at most DEFAULT_MAX_PENDING_REQUESTS requests can wait for a thread.
+     * @param executor The executor to run the requests on
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the executor running the asynchronous requests
+     * @return The executor of the transport
+     */
+    public Executor getExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * Runs a request on the executor of the transport. If the executor refuses the task the returned
+     * future is completed with a SapcaiException instead of throwing.
+     * @param request The request to run
+     * @return A future completed with the result of the request
+     */
+    <T> CompletableFuture<T> submit(Supplier<T> request) {
+        try {
+            return CompletableFuture.supplyAsync(request, this.executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new SapcaiException("Too many pending requests", e));
+            return failed;
+        }
+    }
+
+    /**
+     * Runs a task on the executor of the transport after a delay. If the executor refuses the task it
+     * runs on the scheduler thread instead, so that it is never lost.
+     * @param task The task to run
+     * @param delay The delay in milliseconds
+     * @return The future of the scheduled task, to cancel it
+     */
+    ScheduledFuture<?> schedule(final Runnable task, long delay) {
+        return this.scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    task.run();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private HttpRequestBase newRequest(String method, String url, HttpEntity entity) {
+        HttpRequestBase request;
+        if (HttpDelete.METHOD_NAME.equals(method)) {
+            request = new HttpDelete(url);
+        } else {
+            HttpEntityEnclosingRequestBase withBody = HttpPut.METHOD_NAME.equals(method) ? new HttpPut(url) : new HttpPost(url);
+            withBody.setEntity(entity);
+            request = withBody;
+        }
+        request.setConfig(this.requestConfig);
+        return request;
+    }
+
+    <T> T execute(String method, String url, String token, HttpEntity body, boolean idempotent,
+                  BodyReader<T> reader) throws SapcaiException {
+        RetryPolicy policy = this.retryPolicy;
+        final HttpEntity entity = this.compress(body);
+        boolean     replayable = (idempotent || (policy != null && policy.isRetryNonIdempotent()))
+                && (entity == null || entity.isRepeatable());
+        int         attempts = policy != null && replayable ? policy.getMaxAttempts() : 1;
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (policy != null && replayable && policy.getHedgePercentile() > 0) {
+                    long delay = this.latencyTracker(url).percentile(policy.getHedgePercentile());
+                    if (delay >= 0) {
+                        return this.executeHedged(method, url, token, entity, reader, Math.max(delay, policy.getMinHedgeDelay()));
+                    }
+                }
+                return this.executeTimed(newRequest(method, url, entity), url, token, reader, false);
+            } catch (SapcaiException e) {
+                if (attempt >= attempts || !policy.isRetryable(e)) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(policy.backoff(attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SapcaiException("Interrupted while waiting to retry", e);
+            }
+        }
+    }
+
+    /**
+     * Sends the request from the calling thread and, if it has not answered after hedgeDelay, sends a copy of it
+     * from the executor. The first response wins and the other request is aborted.
+     */
+    private <T> T executeHedged(final String method, final String url, final String token, final HttpEntity entity,
+                                final BodyReader<T> reader, long hedgeDelay) throws SapcaiException {
+        final HttpRequestBase                   first = newRequest(method, url, entity);
+        final AtomicReference<HttpRequestBase>  second = new AtomicReference<>();
+        final AtomicReference<T>                winner = new AtomicReference<>();
+        final CompletableFuture<T>              hedge = new CompletableFuture<>();
+        // 0: hedge not started, 1: hedge running, 2: hedge cancelled
+        final AtomicInteger                     hedgeState = new AtomicInteger();
+
+        final Runnable hedgeTask = new Runnable() {
+            @Override
+            public void run() {
+                // published before the state flips, so that a primary winning from now on always finds it to abort
+                HttpRequestBase request = newRequest(method, url, entity);
+                second.set(request);
+                if (!hedgeState.compareAndSet(0, 1)) {
+                    return;
+                }
+                try {
+                    T body = executeTimed(request, url, token, reader, true);
+                    if (winner.compareAndSet(null, body)) {
+                        first.abort();
+                    }
+                    hedge.complete(body);
+                } catch (SapcaiException e) {
+                    hedge.completeExceptionally(e);
+                }
+            }
+        };
+        ScheduledFuture<?> timer = this.scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(hedgeTask);
+                } catch (RejectedExecutionException ignore) {}
+            }
+        }, hedgeDelay, TimeUnit.MILLISECONDS);
+
+        try {
+            T body = this.executeTimed(first, url, token, reader, false);
+            if (winner.compareAndSet(null, body)) {
+                hedgeState.compareAndSet(0, 2);
+                HttpRequestBase request = second.get();
+                if (request != null) {
+                    request.abort();
+                }
+            }
+            return winner.get();
+        } catch (SapcaiException e) {
+            if (winner.get() != null) {
+                return winner.get();
+            }
+            if (hedgeState.compareAndSet(0, 2)) {
+                throw e;
+            }
+            try {
+                return hedge.get();
+            } catch (ExecutionException ignore) {
+                throw e;
+            } catch (InterruptedException ignore) {
+                Thread.currentThread().interrupt();
+                throw e;
+            }
+        } finally {
+            timer.cancel(false);
+        }
+    }
+
+    private LatencyTracker latencyTracker(String url) {
+        LatencyTracker tracker = this.latencies.get(url);
+        if (tracker == null) {
+            LatencyTracker created = new LatencyTracker();
+            tracker = this.latencies.putIfAbsent(url, created);
+            if (tracker == null) {
+                tracker = created;
+            }
+        }
+        return tracker;
+    }
+
+    /**
+     * Sends a request through the circuit breaker and the rate limiter, and records its latency
+     * @param hedge true for the hedged copy of a request, which is only sent if a permit is available right away
+     */
+    private <T> T executeTimed(HttpRequestBase request, String url, String token, BodyReader<T> reader,
+                               boolean hedge) throws SapcaiException {
+        CircuitBreaker  breaker = this.circuitBreaker;
+        RateLimiter     limiter = this.rateLimiter;
+        long            start;
+        long            duration;
+        T               body;
+
+        if (hedge && request.isAborted()) {
+            // the primary request answered while the hedge was starting
+            throw new SapcaiException("Hedged request aborted");
+        }
+        if (breaker != null) {
+            breaker.allow(url);
+        }
+        try {
+            if (limiter != null && hedge && !limiter.tryAcquire(token)) {
+                throw new SapcaiException("Rate limit exceeded");
+            } else if (limiter != null && !hedge) {
+                limiter.acquire(token);
+            }
+        } catch (RuntimeException e) {
+            if (breaker != null) {
+                breaker.onIgnored(url);
+            }
+            throw e;
+        }
+
+        start = System.nanoTime();
+        try {
+            body = this.execute(request, token, reader);
+        } catch (SapcaiException e) {
+            if (breaker != null && request.isAborted()) {
+                breaker.onIgnored(url);
+            } else if (breaker != null) {
+                breaker.onError(url, e, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            // a bug of a custom connector or reader says nothing about the endpoint, but must free its probe slot
+            if (breaker != null) {
+                breaker.onIgnored(url);
+            }
+            throw e;
+        }
+        duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        this.latencyTracker(url).record(duration);
+        if (breaker != null) {
+            breaker.onSuccess(url, duration);
+        }
+        return body;
+    }
+
+    <T> T execute(HttpRequestBase request, String token, BodyReader<T> reader) throws SapcaiException {
+        CloseableHttpResponse   response;
+        int                     status;
+        T                       body;
+
+        if (this.closed) {
+            throw new SapcaiException("Transport is closed");
+        }
+        request.addHeader("Authorization", "Token " + token);
+        request.addHeader("Accept-Encoding", "gzip");
+        try {
+            response = this.connector.execute(request);
+        } catch (IOException e) {
+            throw new SapcaiException("Unable to read response from SAP Conversational AI", e);
+        }
+
+        try {
+            status = response.getStatusLine().getStatusCode();
+            if (status != 200) {
+                // the body must be consumed for the connection to go back to the pool
+                EntityUtils.consumeQuietly(response.getEntity());
+                throw new SapcaiException(status);
+            }
+            HttpEntity entity = response.getEntity();
+            body = this.readBody(entity != null ? entity : new ByteArrayEntity(new byte[0]), reader);
+        } catch (IOException e) {
+            throw new SapcaiException("Unable to read response from SAP Conversational AI", e);
+        } finally {
+            try {
+                response.close();
+            } catch (IOException ignore) {}
+        }
+        return body;
+    }
+
+    /**
+     * Reads the body of a response, decompressing it on the fly when the server sent it gzipped
+     */
+    private <T> T readBody(HttpEntity entity, BodyReader<T> reader) throws IOException {
+        CountingInputStream     wire = new CountingInputStream(entity.getContent());
+        Header                  encoding = entity.getContentEncoding();
+        long                    length = entity.getContentLength();
+        CountingInputStream     decoded = wire;
+        T                       body;
+
+        try {
+            if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue().trim())) {
+                // JSON usually shrinks 4 to 8 times, the compressed length is a good hint of the final size
+                int hint = length < 0 ? ResponseBodyReader.DEFAULT_SIZE : (int) Math.min(length * 6, ResponseBodyReader.MAX_SIZE);
+                decoded = new CountingInputStream(new GZIPInputStream(wire, 8192));
+                body = reader.read(decoded, -1, hint);
+            } else {
+                body = reader.read(wire, length, ResponseBodyReader.DEFAULT_SIZE);
+            }
+        } finally {
+            decoded.close();
+        }
+        this.metrics.onResponse(decoded.count, wire.count);
+        return body;
+    }
+
+    /**
+     * Gzips the body of a request when request compression is enabled and the body is large enough.
+     * Multipart bodies (audio) are left as they are.
+     */
+    private HttpEntity compress(HttpEntity entity) throws SapcaiException {
+        int threshold = this.compressionThreshold;
+        if (entity == null) {
+            return null;
+        }
+        long length = entity.getContentLength();
+        Header type = entity.getContentType();
+        if (threshold < 0 || length < threshold || !entity.isRepeatable()
+                || (type != null && type.getValue().startsWith("multipart/"))) {
+            this.metrics.onRequest(length, length);
+            return entity;
+        }
+        try {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) Math.min(length, Integer.MAX_VALUE) / 2 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            entity.writeTo(gzip);
+            gzip.close();
+            ByteArrayEntity gzipped = new ByteArrayEntity(compressed.toByteArray());
+            gzipped.setContentType(type);
+            gzipped.setContentEncoding("gzip");
+            this.metrics.onRequest(length, gzipped.getContentLength());
+            return gzipped;
+        } catch (IOException e) {
+            throw new SapcaiException("Unable to compress the request", e);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Closes the expired connections and the ones which have been idle for longer than the idle timeout
+     */
+    public void evictIdleConnections() {
+        this.connector.evictIdleConnections(this.idleTimeout);
+    }
+
+    /**
+     * Returns whether or not the transport has been closed
+     * @return true if close() has been called
+     */
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Closes every pooled connection and stops the eviction thread and the default executor.
+     * Requests made afterwards will fail.
+     */
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.scheduler.shutdownNow();
+        this.defaultExecutor.shutdown();
+        this.connector.close();
+    }
+}
@@ -2,12 +2,16 @@ package ai.sapcai.sdk_android;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 public class Intent {
     private String name;
     private double confidence;
 
     private Intent(String name, double confidence) {
-        this.name = name;
+        this.name = Interner.SHARED.intern(name);
         this.confidence = confidence;
     }
 
@@ -15,6 +19,35 @@ public class Intent {
         this(obj.optString("slug"), obj.optDouble("confidence"));
     }
 
+    static Intent read(JsonPullParser reader) throws IOException {
+        String slug = "";
+        double confidence = Double.NaN;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (field.equals("slug")) {
+                slug = reader.nextString();
+            } else if (field.equals("confidence")) {
+                confidence = reader.nextDouble();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Intent(slug, confidence);
+    }
+
+    static Intent[] readAll(JsonPullParser reader) throws IOException {
+        List<Intent> intents = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            intents.add(read(reader));
+        }
+        reader.endArray();
+        return intents.toArray(new Intent[intents.size()]);
+    }
+
     public double getConfidence() {
         return confidence;
     }
@@ -0,0 +1,46 @@
+package ai.sapcai.sdk_android;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Interner class shares a single instance of the short strings which repeat across responses
+ * (language codes, intent and action slugs, entity names...), so that long-lived sessions holding many
+ * responses do not keep a copy of them in each one. It is bounded: once full, new strings are returned as they are.
+ */
+final class Interner {
+    static final int DEFAULT_MAX_SIZE = 4096;
+    static final int MAX_LENGTH = 64;
+
+    static final Interner SHARED = new Interner(DEFAULT_MAX_SIZE);
+
+    private final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<>();
+    private final int                               maxSize;
+
+    Interner(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the shared instance of a string, registering it if there is room left
+     * @param s The string, which may be null
+     * @return The shared instance equal to s, or s itself
+     */
+    String intern(String s) {
+        if (s == null || s.length() > MAX_LENGTH) {
+            return s;
+        }
+        String shared = strings.get(s);
+        if (shared != null) {
+            return shared;
+        }
+        if (strings.size() >= maxSize) {
+            return s;
+        }
+        shared = strings.putIfAbsent(s, s);
+        return shared != null ? shared : s;
+    }
+
+    int size() {
+        return strings.size();
+    }
+}
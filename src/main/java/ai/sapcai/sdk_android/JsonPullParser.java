@@ -0,0 +1,533 @@
+package ai.sapcai.sdk_android;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The JsonPullParser class reads a JSON document token by token, so the SAP Conversational AI objects can be
+ * filled straight from the stream of a response without building the tree of the whole document first.
+ * Its interface mirrors android.util.JsonReader, which is not available to the unit tests and benchmarks run on the JVM.
+ */
+final class JsonPullParser implements Closeable {
+
+    enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT }
+
+    private static final int    IN_OBJECT = 1;
+    private static final int    IN_ARRAY = 2;
+
+    private final Reader    in;
+    private final char[]    buffer = new char[2048];
+    private int             pos;
+    private int             limit;
+
+    private int[]           stack = new int[32];
+    private int             depth;
+    // whether the next value of the current object or array is its first one
+    private boolean         first = true;
+    // whether a name has just been read and its value is expected
+    private boolean         afterName;
+    private Token           peeked;
+    private final StringBuilder sb = new StringBuilder(64);
+    // the start in the buffer of the value being captured by nextSource, or -1
+    private int             captureStart = -1;
+    private StringBuilder   capture;
+
+    /**
+     * Reads a JSON body straight from the stream of the response. When the raw JSON is kept, the body is first
+     * read whole, as a String or as bytes, and parsed from it, still without building a tree of the document.
+     */
+    abstract static class BodyReader<T> implements HttpTransport.BodyReader<T> {
+        private final Response.RawRetention retention;
+
+        BodyReader(Response.RawRetention retention) {
+            this.retention = retention;
+        }
+
+        @Override
+        public final T read(InputStream body, long contentLength, int sizeHint) throws IOException {
+            Object raw = null;
+            JsonPullParser parser;
+            if (this.retention == Response.RawRetention.STRING) {
+                String json = HttpTransport.STRING_BODY.read(body, contentLength, sizeHint);
+                parser = new JsonPullParser(new StringReader(json));
+                raw = json;
+            } else if (this.retention == Response.RawRetention.BYTES || this.retention == Response.RawRetention.COMPRESSED) {
+                byte[] json = ResponseBodyReader.readBytes(body, contentLength, sizeHint);
+                parser = new JsonPullParser(new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8));
+                raw = RawJson.retain(json, this.retention);
+            } else {
+                parser = new JsonPullParser(new InputStreamReader(body, StandardCharsets.UTF_8));
+            }
+            try {
+                T value = this.read(parser, raw);
+                parser.endDocument();
+                return value;
+            } catch (IllegalStateException | NumberFormatException e) {
+                throw new SapcaiException("Invalid JSON", e);
+            }
+        }
+
+        /**
+         * @param parser The parser positioned before the document
+         * @param raw The body of the response as retained (see RawJson), or null if it is not kept
+         */
+        abstract T read(JsonPullParser parser, Object raw) throws IOException;
+    }
+
+    JsonPullParser(Reader in) {
+        this.in = in;
+    }
+
+    private int nextChar() throws IOException {
+        if (pos == limit) {
+            if (captureStart >= 0) {
+                capture.append(buffer, captureStart, limit - captureStart);
+                captureStart = 0;
+            }
+            limit = in.read(buffer, 0, buffer.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos++];
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = nextChar();
+        } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+
+    private void pushBack() {
+        pos--;
+    }
+
+    /**
+     * A malformed document is not an I/O failure: sending the same request again would return it again, so it is
+     * raised as a SapcaiException, which is neither retried nor journaled nor counted by the circuit breaker
+     */
+    private SapcaiException syntaxError(String message) {
+        return new SapcaiException("Invalid JSON: " + message);
+    }
+
+    Token peek() throws IOException {
+        if (peeked != null) {
+            return peeked;
+        }
+        int c = nextNonWhitespace();
+        int scope = depth == 0 ? 0 : stack[depth - 1];
+
+        if (scope != 0 && !afterName) {
+            int close = scope == IN_OBJECT ? '}' : ']';
+            if (c == close) {
+                return peeked = scope == IN_OBJECT ? Token.END_OBJECT : Token.END_ARRAY;
+            }
+            if (!first) {
+                if (c != ',') {
+                    throw syntaxError("expected ',' or '" + (char) close + "'");
+                }
+                c = nextNonWhitespace();
+            }
+            if (scope == IN_OBJECT) {
+                if (c != '"') {
+                    throw syntaxError("expected a name");
+                }
+                return peeked = Token.NAME;
+            }
+        }
+        if (afterName) {
+            if (c != ':') {
+                throw syntaxError("expected ':'");
+            }
+            c = nextNonWhitespace();
+        }
+
+        switch (c) {
+            case -1:
+                if (depth != 0) {
+                    throw syntaxError("unexpected end of document");
+                }
+                return peeked = Token.END_DOCUMENT;
+            case '{':
+                return peeked = Token.BEGIN_OBJECT;
+            case '[':
+                return peeked = Token.BEGIN_ARRAY;
+            case '"':
+                return peeked = Token.STRING;
+            case 't':
+            case 'f':
+                pushBack();
+                return peeked = Token.BOOLEAN;
+            case 'n':
+                pushBack();
+                return peeked = Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    pushBack();
+                    return peeked = Token.NUMBER;
+                }
+                throw syntaxError("unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private void expect(Token token) throws IOException {
+        if (peek() != token) {
+            throw new IllegalStateException("Expected " + token + " but was " + peeked);
+        }
+        peeked = null;
+    }
+
+    /** Marks the end of a value of the current object or array */
+    private void valueRead() {
+        first = false;
+        afterName = false;
+    }
+
+    private void push(int scope) {
+        if (depth == stack.length) {
+            int[] larger = new int[depth * 2];
+            System.arraycopy(stack, 0, larger, 0, depth);
+            stack = larger;
+        }
+        stack[depth++] = scope;
+        first = true;
+        afterName = false;
+    }
+
+    void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(IN_OBJECT);
+    }
+
+    void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        depth--;
+        valueRead();
+    }
+
+    void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(IN_ARRAY);
+    }
+
+    void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        depth--;
+        valueRead();
+    }
+
+    boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    String nextName() throws IOException {
+        expect(Token.NAME);
+        String name = readQuoted();
+        first = false;
+        afterName = true;
+        return name;
+    }
+
+    /**
+     * Returns the next string, or the text of the next number or boolean. A null value is returned as null.
+     */
+    String nextString() throws IOException {
+        Token token = peek();
+        String value;
+        if (token == Token.STRING) {
+            peeked = null;
+            value = readQuoted();
+        } else if (token == Token.NUMBER) {
+            peeked = null;
+            value = readLiteral();
+            if (!isNumber(value)) {
+                throw syntaxError("invalid number '" + value + "'");
+            }
+        } else if (token == Token.BOOLEAN) {
+            peeked = null;
+            value = readLiteral();
+            if (!"true".equals(value) && !"false".equals(value)) {
+                throw syntaxError("invalid literal '" + value + "'");
+            }
+        } else if (token == Token.NULL) {
+            nextNull();
+            return null;
+        } else {
+            throw new IllegalStateException("Expected a string but was " + token);
+        }
+        valueRead();
+        return value;
+    }
+
+    double nextDouble() throws IOException {
+        Token token = peek();
+        if (token == Token.NULL) {
+            nextNull();
+            return Double.NaN;
+        }
+        String value = nextString();
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    int nextInt() throws IOException {
+        double value = nextDouble();
+        return (int) value;
+    }
+
+    boolean nextBoolean() throws IOException {
+        Token token = peek();
+        if (token == Token.NULL) {
+            nextNull();
+            return false;
+        }
+        return "true".equals(nextString());
+    }
+
+    void nextNull() throws IOException {
+        expect(Token.NULL);
+        if (!"null".equals(readLiteral())) {
+            throw syntaxError("expected null");
+        }
+        valueRead();
+    }
+
+    /**
+     * Checks that nothing but whitespace follows the top-level value
+     */
+    void endDocument() throws IOException {
+        if (peek() != Token.END_DOCUMENT) {
+            throw syntaxError("unexpected data after the document");
+        }
+    }
+
+    /**
+     * Reads the next value, whatever it is: strings, numbers (Integer, Long or Double), booleans, null,
+     * and objects and arrays as Map and List
+     */
+    Object nextValue() throws IOException {
+        switch (peek()) {
+            case BEGIN_OBJECT:
+                Map<String, Object> object = new LinkedHashMap<>();
+                beginObject();
+                while (hasNext()) {
+                    String name = nextName();
+                    object.put(name, nextValue());
+                }
+                endObject();
+                return object;
+            case BEGIN_ARRAY:
+                List<Object> array = new ArrayList<>();
+                beginArray();
+                while (hasNext()) {
+                    array.add(nextValue());
+                }
+                endArray();
+                return array;
+            case NUMBER:
+                return parseNumber(nextString());
+            case BOOLEAN:
+                return nextBoolean();
+            case NULL:
+                nextNull();
+                return null;
+            default:
+                return nextString();
+        }
+    }
+
+    /**
+     * Skips the next value and returns its JSON text, so that it can be parsed later with another parser
+     */
+    String nextSource() throws IOException {
+        Token token = peek();
+        if (token == Token.NAME || token == Token.END_OBJECT || token == Token.END_ARRAY || token == Token.END_DOCUMENT) {
+            throw new IllegalStateException("Expected a value but was " + token);
+        }
+        capture = new StringBuilder(256);
+        // the first character of objects, arrays and strings has already been consumed by peek
+        captureStart = token == Token.BEGIN_OBJECT || token == Token.BEGIN_ARRAY || token == Token.STRING ? pos - 1 : pos;
+        try {
+            skipValue();
+            capture.append(buffer, captureStart, pos - captureStart);
+            return capture.toString();
+        } finally {
+            captureStart = -1;
+            capture = null;
+        }
+    }
+
+    /**
+     * Returns whether -text- follows the JSON grammar of numbers: -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?
+     */
+    static boolean isNumber(String text) {
+        int i = 0;
+        int length = text.length();
+        if (i < length && text.charAt(i) == '-') {
+            i++;
+        }
+        if (i < length && text.charAt(i) == '0') {
+            i++;
+        } else {
+            int start = i;
+            i = skipDigits(text, i);
+            if (i == start) {
+                return false;
+            }
+        }
+        if (i < length && text.charAt(i) == '.') {
+            int start = ++i;
+            i = skipDigits(text, i);
+            if (i == start) {
+                return false;
+            }
+        }
+        if (i < length && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+                i++;
+            }
+            int start = i;
+            i = skipDigits(text, i);
+            if (i == start) {
+                return false;
+            }
+        }
+        return i == length;
+    }
+
+    private static int skipDigits(String text, int i) {
+        while (i < text.length() && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    static Number parseNumber(String text) {
+        if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+            try {
+                long value = Long.parseLong(text);
+                if (value == (int) value) {
+                    return (int) value;
+                }
+                return value;
+            } catch (NumberFormatException ignore) {}
+        }
+        return Double.parseDouble(text);
+    }
+
+    void skipValue() throws IOException {
+        switch (peek()) {
+            case BEGIN_OBJECT:
+                beginObject();
+                while (hasNext()) {
+                    nextName();
+                    skipValue();
+                }
+                endObject();
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case NULL:
+                nextNull();
+                break;
+            default:
+                nextString();
+        }
+    }
+
+    private String readLiteral() throws IOException {
+        sb.setLength(0);
+        int c;
+        while ((c = nextChar()) != -1) {
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == ':') {
+                pushBack();
+                break;
+            }
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    private String readQuoted() throws IOException {
+        sb.setLength(0);
+        for (;;) {
+            // copies the unescaped runs of the buffer at once
+            int start = pos;
+            while (pos < limit) {
+                char c = buffer[pos];
+                if (c == '"' || c == '\\') {
+                    break;
+                }
+                pos++;
+            }
+            sb.append(buffer, start, pos - start);
+            int c = nextChar();
+            if (c == -1) {
+                throw syntaxError("unterminated string");
+            }
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c == '\\') {
+                sb.append(readEscape());
+            } else {
+                sb.append((char) c);
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = nextChar();
+        switch (c) {
+            case 'n': return '\n';
+            case 't': return '\t';
+            case 'r': return '\r';
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(nextChar(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("invalid unicode escape");
+                    }
+                    value = value * 16 + digit;
+                }
+                return (char) value;
+            case -1:
+                throw syntaxError("unterminated string");
+            default:
+                // \" \\ \/
+                return (char) c;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,41 @@
+package ai.sapcai.sdk_android;
+
+import java.util.Arrays;
+
+/**
+ * The LatencyTracker class keeps the last latencies of an endpoint in a ring buffer to estimate their percentiles.
+ */
+class LatencyTracker {
+    static final int SIZE = 256;
+    static final int MIN_SAMPLES = 20;
+
+    private final long[]    samples = new long[SIZE];
+    private int             count;
+    private int             next;
+
+    synchronized void record(long latency) {
+        samples[next] = latency;
+        next = (next + 1) % SIZE;
+        if (count < SIZE) {
+            count++;
+        }
+    }
+
+    /**
+     * Returns the given percentile of the recorded latencies, or -1 if there are not enough of them yet
+     * @param percentile The percentile, between 0 and 1
+     * @return The latency in milliseconds
+     */
+    long percentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
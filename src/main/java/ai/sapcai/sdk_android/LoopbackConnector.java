@@ -0,0 +1,161 @@
+package ai.sapcai.sdk_android;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The LoopbackConnector class answers the requests of an HttpTransport in-process with canned payloads, without
+ * any network. The whole SDK still runs (encoding of the request, compression, rate limiting, retries, reading and
+ * parsing of the response), so its own cost can be profiled apart from the network time, at millions of calls per second.
+ * The request bodies are written to a sink, as they would be to a socket. The payloads are encoded, and
+ * optionally gzipped, once when they are set.
+ *
+ * <pre>
+ * LoopbackConnector loopback = new LoopbackConnector();
+ * loopback.setResponse(HttpTransport.REQUEST_PATH, 200, json);
+ * client.setTransport(new HttpTransport(loopback));
+ * </pre>
+ */
+public class LoopbackConnector implements HttpConnector {
+
+    private static class Payload {
+        final int       status;
+        final byte[]    body;
+        final boolean   gzipped;
+
+        Payload(int status, byte[] body, boolean gzipped) {
+            this.status = status;
+            this.body = body;
+            this.gzipped = gzipped;
+        }
+    }
+
+    private static class LoopbackResponse extends BasicHttpResponse implements CloseableHttpResponse {
+        LoopbackResponse(int status) {
+            super(HttpVersion.HTTP_1_1, status, null);
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private static final OutputStream SINK = new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+
+    private final ConcurrentHashMap<String, Payload> payloads = new ConcurrentHashMap<>();
+    private volatile boolean    gzip;
+    private final AtomicLong    requests = new AtomicLong();
+
+    /**
+     * Sets the response to every request to an endpoint, whatever its method
+     * @param path The path of the endpoint, for instance HttpTransport.REQUEST_PATH
+     * @param status The status of the response
+     * @param body The JSON body of the response
+     */
+    public void setResponse(String path, int status, String body) {
+        this.setResponse(null, path, status, body);
+    }
+
+    /**
+     * Sets the response to the requests to an endpoint with a given method
+     * @param method The method, for instance "PUT", or null for every method
+     * @param path The path of the endpoint, for instance HttpTransport.CONVERSE_PATH
+     * @param status The status of the response
+     * @param body The JSON body of the response
+     */
+    public void setResponse(String method, String path, int status, String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        boolean gzipped = this.gzip;
+        if (gzipped) {
+            try {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+                GZIPOutputStream out = new GZIPOutputStream(compressed);
+                out.write(bytes);
+                out.close();
+                bytes = compressed.toByteArray();
+            } catch (IOException e) {
+                throw new SapcaiException("Unable to compress the payload", e);
+            }
+        }
+        this.payloads.put(key(method, path), new Payload(status, bytes, gzipped));
+    }
+
+    /**
+     * Sets whether the payloads set from now on are served gzipped, as SAP Conversational AI does. Disabled by default.
+     * @param gzip true to gzip the payloads
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    public boolean isGzip() {
+        return this.gzip;
+    }
+
+    /**
+     * Returns the number of requests answered
+     * @return The number of requests
+     */
+    public long getRequestCount() {
+        return this.requests.get();
+    }
+
+    private static String key(String method, String path) {
+        return method == null ? path : method + ' ' + path;
+    }
+
+    /**
+     * Answers with the payload of the method and path of the request, or with a 404 if there is none
+     */
+    @Override
+    public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                entity.writeTo(SINK);
+            }
+        }
+        this.requests.incrementAndGet();
+
+        String path = request.getURI().getPath();
+        Payload payload = this.payloads.get(key(request.getMethod(), path));
+        if (payload == null) {
+            payload = this.payloads.get(path);
+        }
+        if (payload == null) {
+            return new LoopbackResponse(404);
+        }
+        LoopbackResponse response = new LoopbackResponse(payload.status);
+        ByteArrayEntity body = new ByteArrayEntity(payload.body, ContentType.APPLICATION_JSON);
+        if (payload.gzipped) {
+            body.setContentEncoding("gzip");
+        }
+        response.setEntity(body);
+        return response;
+    }
+
+    @Override
+    public void evictIdleConnections(long idleTimeout) {}
+
+    @Override
+    public void close() {}
+}
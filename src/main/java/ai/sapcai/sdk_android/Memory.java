@@ -1,14 +1,53 @@
 package ai.sapcai.sdk_android;
 
+import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.json.JSONObject;
 
+/**
+ * The Memory class holds the memory of a Conversation. It tracks the entries set and removed since the
+ * last synchronization with SAP Conversational AI, so that only those are sent.
+ */
 public class Memory {
 
 	private Map<String, MemoryEntity> entities;
+	// the names of the entries changed or removed since the last delta
+	private final Set<String> dirty = new LinkedHashSet<>();
+	// whether the whole memory has been replaced since the last delta
+	private boolean reset;
+
+	/**
+	 * The changes of a Memory since the previous delta
+	 */
+	static final class Delta {
+		final boolean reset;
+		// the new value of each changed entry, null for the removed ones
+		final Map<String, MemoryEntity> changes;
+
+		private Delta(boolean reset, Map<String, MemoryEntity> changes) {
+			this.reset = reset;
+			this.changes = changes;
+		}
+
+		/**
+		 * Returns the memory to send: the changed entries only, or the whole memory after a reset. The memory
+		 * sent is merged into the one of SAP Conversational AI, so a reset with entries must be sent after
+		 * a reset of the memory (null), which would otherwise be lost.
+		 */
+		String toJson() {
+			if (this.reset && this.changes.isEmpty()) {
+				return "null";
+			}
+			return Memory.toJson(this.changes);
+		}
+	}
 
 
 	Memory(JSONObject obj) {
@@ -30,30 +69,138 @@ public class Memory {
         }
 	}
 
-	public String convertMemory(){
-		String memory = "{";
-		for(Map.Entry<String, MemoryEntity> memap : this.entities.entrySet()){
+	Memory() {
+		this.entities = new HashMap<String,MemoryEntity>();
+	}
+
+	Memory(Map<String, MemoryEntity> entities) {
+		this.entities = entities;
+	}
+
+	static Memory read(JsonPullParser reader) throws IOException {
+		Memory memory = new Memory();
+		if (reader.peek() == JsonPullParser.Token.NULL) {
+			reader.nextNull();
+			return memory;
+		}
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String entityName = Interner.SHARED.intern(reader.nextName());
+			if (reader.peek() == JsonPullParser.Token.BEGIN_OBJECT) {
+				memory.entities.put(entityName, MemoryEntity.read(entityName, reader));
+			} else {
+				reader.skipValue();
+				memory.entities.put(entityName, null);
+			}
+		}
+		reader.endObject();
+		return memory;
+	}
+
+	public synchronized String convertMemory(){
+		return toJson(this.entities);
+	}
+
+	private static String toJson(Map<String, MemoryEntity> entries) {
+		StringBuilder memory = new StringBuilder(64 * entries.size() + 2);
+		memory.append('{');
+		for(Map.Entry<String, MemoryEntity> memap : entries.entrySet()){
 			String entityName = memap.getKey();
 			MemoryEntity me = memap.getValue();
+			if (memory.length() > 1) {
+				memory.append(',');
+			}
+			memory.append(JSONObject.quote(entityName));
 			if(me != null){
-				memory = memory + "\"" + entityName + "\":{\"raw\":\"" + me.getRaw() +
-			            "\", \"value\":\"" + me.getValue() + "\", \"confidence\":\"" +
-			            me.getConfidence() + "\"},";
+				memory.append(":{\"raw\":").append(JSONObject.quote(me.getRaw()))
+						.append(", \"value\":").append(JSONObject.quote(me.getValue()))
+						.append(", \"confidence\":\"").append(me.getConfidence()).append("\"}");
 			}else{
-				memory = memory + "\"" + entityName + "\": null,";
+				memory.append(": null");
 			}
 		}
-		memory = memory.substring(0, memory.length()-1);
-		memory = memory + "}";
-		return memory;
+		return memory.append('}').toString();
 	}
 
-	public void setMemory(String name, MemoryEntity newEntity){
+	public synchronized void setMemory(String name, MemoryEntity newEntity){
 		this.entities.put(name, newEntity);
+		this.dirty.add(name);
 	}
 
-	public void resetMemory(){
+	/**
+	 * Removes an entry of the memory
+	 * @param name The name of the entry
+	 */
+	public synchronized void removeMemory(String name){
+		this.entities.remove(name);
+		this.dirty.add(name);
+	}
+
+	public synchronized void resetMemory(){
 		this.entities = new HashMap<String,MemoryEntity>();
+		this.dirty.clear();
+		this.reset = true;
+	}
+
+	/**
+	 * Returns whether or not the memory has changes which have not been sent yet
+	 * @return true if entries have been set, removed or reset since the last delta
+	 */
+	public synchronized boolean isDirty() {
+		return this.reset || !this.dirty.isEmpty();
+	}
+
+	/**
+	 * Returns the changes since the previous delta and starts tracking from there
+	 * @return The changes, or null if there are none
+	 */
+	synchronized Delta takeDelta() {
+		if (!this.isDirty()) {
+			return null;
+		}
+		Map<String, MemoryEntity> changes = new LinkedHashMap<>();
+		for (String name : this.reset ? this.entities.keySet() : this.dirty) {
+			changes.put(name, this.entities.get(name));
+		}
+		Delta delta = new Delta(this.reset, changes);
+		this.dirty.clear();
+		this.reset = false;
+		return delta;
+	}
+
+	/**
+	 * Marks the changes of a delta which could not be sent as pending again
+	 */
+	synchronized void restoreDelta(Delta delta) {
+		if (delta.reset) {
+			this.reset = true;
+			this.dirty.clear();
+		} else if (!this.reset) {
+			this.dirty.addAll(delta.changes.keySet());
+		}
+	}
+
+	/**
+	 * Returns the names of the entries changed since the last delta. Call it while holding the lock of the memory.
+	 */
+	Set<String> getDirtyNames() {
+		return this.dirty;
+	}
+
+	/**
+	 * Returns whether the whole memory has been replaced since the last delta. Call it while holding the lock of the memory.
+	 */
+	boolean isReset() {
+		return this.reset;
+	}
+
+	/**
+	 * Marks changes as not sent yet, as they were when the memory was saved
+	 */
+	synchronized void markDirty(boolean reset, Collection<String> names) {
+		this.reset = reset;
+		this.dirty.addAll(names);
 	}
 
 	public Map<String, MemoryEntity> getEntities() {
@@ -61,8 +208,10 @@ public class Memory {
 	}
 
 
-	public void setEntities(Map<String, MemoryEntity> entities) {
+	public synchronized void setEntities(Map<String, MemoryEntity> entities) {
 		this.entities = entities;
+		this.dirty.clear();
+		this.reset = true;
 	}
 
 }
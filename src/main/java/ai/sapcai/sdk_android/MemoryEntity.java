@@ -2,6 +2,8 @@ package ai.sapcai.sdk_android;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 public class MemoryEntity {
 
 	private String name;
@@ -10,7 +12,7 @@ public class MemoryEntity {
 	private double confidence;
 
 	public MemoryEntity(String entityName, JSONObject obj) {
-		this.name = entityName;
+		this.name = Interner.SHARED.intern(entityName);
 		if(obj != null){
 			this.raw = obj.optString("raw");
 			this.value = obj.optString("value");
@@ -18,6 +20,27 @@ public class MemoryEntity {
 		}
 	}
 
+	static MemoryEntity read(String entityName, JsonPullParser reader) throws IOException {
+		MemoryEntity entity = new MemoryEntity("", "", Double.NaN);
+		entity.name = Interner.SHARED.intern(entityName);
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (field.equals("raw")) {
+				entity.raw = reader.nextString();
+			} else if (field.equals("value")) {
+				entity.value = reader.nextString();
+			} else if (field.equals("confidence")) {
+				entity.confidence = reader.nextDouble();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return entity;
+	}
+
 	public MemoryEntity(String raw, String value, double confidence){
 		this.raw = raw;
 		this.value = value;
@@ -1,57 +1,69 @@
 package ai.sapcai.sdk_android;
 
-import java.io.BufferedReader;
+import org.apache.http.entity.AbstractHttpEntity;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * This utility class provides an abstraction layer for sending multipart HTTP
  * POST requests to a web server.
+ * The body is never held in memory: the parts are only recorded until finish(),
+ * then streamed to the connection with their exact Content-Length, so the upload
+ * of a file starts as soon as its first bytes are read.
  *
  */
 class MultipartUtility {
     private final String boundary;
     private static final String LINE_FEED = "\r\n";
-    private HttpURLConnection httpConn;
+    private static final byte[] LINE_FEED_BYTES = LINE_FEED.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AUDIO_PART_HEADERS = ("Content-Type: audio/wav" + LINE_FEED
+            + "Content-Transfer-Encoding: binary" + LINE_FEED
+            + LINE_FEED).getBytes(StandardCharsets.US_ASCII);
+    static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> TRANSFER_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+        }
+    };
+    private final byte[] boundaryLine;
+    private final String requestURL;
+    private final String token;
+    private final HttpTransport transport;
     private String charset;
-    private OutputStream outputStream;
-    private PrintWriter writer;
+    private List<Part> parts;
 
     /**
      * This constructor initializes a new HTTP POST request with content type
      * is set to multipart/form-data
      * @param requestURL
      * @param charset
+     * @param token
+     * @param transport the transport the request is sent through
      * @throws IOException
      */
-    public MultipartUtility(String requestURL, String charset, String token)
+    public MultipartUtility(String requestURL, String charset, String token, HttpTransport transport)
             throws IOException {
+        this.requestURL = requestURL;
         this.charset = charset;
+        this.token = token;
+        this.transport = transport;
 
         // creates a unique boundary based on time stamp
         boundary = "===" + System.currentTimeMillis() + "===";
+        boundaryLine = ("--" + boundary + LINE_FEED).getBytes(StandardCharsets.US_ASCII);
 
-        URL url = new URL(requestURL);
-        httpConn = (HttpURLConnection) url.openConnection();
-        httpConn.setUseCaches(false);
-        httpConn.setDoOutput(true); // indicates POST method
-        httpConn.setDoInput(true);
-        httpConn.setRequestProperty("Content-Type",
-                "multipart/form-data; boundary=" + boundary);
-        httpConn.setRequestProperty("Authorization", "Token " + token);
-        outputStream = httpConn.getOutputStream();
-        writer = new PrintWriter(new OutputStreamWriter(outputStream, charset),
-                true);
+        parts = new ArrayList<>();
     }
 
     /**
@@ -59,15 +71,12 @@ class MultipartUtility {
      * @param name field name
      * @param value field value
      */
-    public void addFormField(String name, String value) {
-        writer.append("--" + boundary).append(LINE_FEED);
-        writer.append("Content-Disposition: form-data; name=\"" + name + "\"")
-                .append(LINE_FEED);
-        writer.append("Content-Type: text/plain; charset=" + charset).append(
-                LINE_FEED);
-        writer.append(LINE_FEED);
-        writer.append(value);
-        writer.flush();
+    public void addFormField(String name, String value) throws UnsupportedEncodingException {
+        parts.add(new BytesPart(boundaryLine));
+        addText("Content-Disposition: form-data; name=\"" + name + "\"" + LINE_FEED
+                + "Content-Type: text/plain; charset=" + charset + LINE_FEED
+                + LINE_FEED
+                + value);
     }
 
     /**
@@ -79,27 +88,30 @@ class MultipartUtility {
     public void addFilePart(String fieldName, File uploadFile)
             throws IOException {
         String fileName = uploadFile.getName();
-        writer.append("--" + boundary).append(LINE_FEED);
-        writer.append(
-                "Content-Disposition: form-data; name=\"" + fieldName
-                        + "\"; filename=\"" + fileName + "\"")
-                .append(LINE_FEED);
-        writer.append("Content-Type: audio/wav").append(LINE_FEED);
-        writer.append("Content-Transfer-Encoding: binary").append(LINE_FEED);
-        writer.append(LINE_FEED);
-        writer.flush();
-
-        FileInputStream inputStream = new FileInputStream(uploadFile);
-        byte[] buffer = new byte[4096];
-        int bytesRead = -1;
-        while ((bytesRead = inputStream.read(buffer)) != -1) {
-            outputStream.write(buffer, 0, bytesRead);
-        }
-        outputStream.flush();
-        inputStream.close();
-
-        writer.append(LINE_FEED);
-        writer.flush();
+        parts.add(new BytesPart(boundaryLine));
+        addText("Content-Disposition: form-data; name=\"" + fieldName
+                        + "\"; filename=\"" + fileName + "\"" + LINE_FEED);
+        parts.add(new BytesPart(AUDIO_PART_HEADERS));
+        parts.add(new FilePart(uploadFile));
+        parts.add(new BytesPart(LINE_FEED_BYTES));
+    }
+
+    /**
+     * Adds a upload file section whose content is read from a stream while the request is sent.
+     * As its length is not known in advance, the request is sent with chunked encoding.
+     * @param fieldName name attribute in <input type="file" name="..." />
+     * @param fileName the name of the uploaded file
+     * @param uploadStream the content of the file, read until its end
+     * @throws IOException
+     */
+    public void addStreamPart(String fieldName, String fileName, InputStream uploadStream)
+            throws IOException {
+        parts.add(new BytesPart(boundaryLine));
+        addText("Content-Disposition: form-data; name=\"" + fieldName
+                        + "\"; filename=\"" + fileName + "\"" + LINE_FEED);
+        parts.add(new BytesPart(AUDIO_PART_HEADERS));
+        parts.add(new StreamPart(uploadStream));
+        parts.add(new BytesPart(LINE_FEED_BYTES));
     }
 
     /**
@@ -107,42 +119,165 @@ class MultipartUtility {
      * @param name - name of the header field
      * @param value - value of the header field
      */
-    public void addHeaderField(String name, String value) {
-        writer.append(name + ": " + value).append(LINE_FEED);
-        writer.flush();
+    public void addHeaderField(String name, String value) throws UnsupportedEncodingException {
+        addText(name + ": " + value + LINE_FEED);
+    }
+
+    private void addText(String text) throws UnsupportedEncodingException {
+        parts.add(new BytesPart(text.getBytes(charset)));
     }
 
     /**
      * Completes the request and receives response from the server.
-     * @return a list of Strings as response in case the server returned
+     * @return the body of the response in case the server returned
      * status OK, otherwise an exception is thrown.
-     * @throws IOException
      */
-    public List<String> finish() {
-        List<String> response = new ArrayList<String>();
-
-        writer.append(LINE_FEED).flush();
-        writer.append("--" + boundary + "--").append(LINE_FEED);
-        writer.close();
-
-        try {
-            // checks server's status code first
-            int status = httpConn.getResponseCode();
-            if (status == HttpURLConnection.HTTP_OK) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(
-                        httpConn.getInputStream()));
-                String line = null;
-                while ((line = reader.readLine()) != null) {
-                    response.add(line);
+    public String finish() throws UnsupportedEncodingException {
+        return finish(HttpTransport.STRING_BODY);
+    }
+
+    /**
+     * Completes the request and hands the body of the response to the reader as it is received
+     */
+    <T> T finish(HttpTransport.BodyReader<T> reader) throws UnsupportedEncodingException {
+        addText(LINE_FEED + "--" + boundary + "--" + LINE_FEED);
+        return transport.post(requestURL, token, new MultipartEntity(), true, reader);
+    }
+
+    private interface Part {
+        /**
+         * @return the number of bytes of the part, or -1 if it is not known in advance
+         */
+        long getLength();
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static class BytesPart implements Part {
+        private final byte[] bytes;
+
+        BytesPart(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long getLength() {
+            return bytes.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads the file through its FileChannel into a per-thread buffer, so uploading
+     * does not allocate anything whatever the size of the file.
+     * The connection stream is not a channel (and is encrypted by TLS), so the bytes
+     * still have to go through a heap array: a direct buffer would only add a copy.
+     */
+    static class FilePart implements Part {
+        private final File file;
+
+        FilePart(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public long getLength() {
+            return file.length();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            FileInputStream inputStream = new FileInputStream(file);
+            try {
+                FileChannel channel = inputStream.getChannel();
+                ByteBuffer buffer = TRANSFER_BUFFER.get();
+                buffer.clear();
+                while (channel.read(buffer) != -1) {
+                    out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+                    buffer.clear();
                 }
-                reader.close();
-                httpConn.disconnect();
-            } else {
-                throw new SapcaiException(status);
+            } finally {
+                inputStream.close();
+            }
+        }
+    }
+
+    private static class StreamPart implements Part {
+        private final InputStream stream;
+
+        StreamPart(InputStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public long getLength() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            byte[] buffer = TRANSFER_BUFFER.get().array();
+            int bytesRead = -1;
+            while ((bytesRead = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+                // pushes the audio to the network as soon as it is recorded
+                out.flush();
             }
-        } catch (IOException e) {
-            throw new SapcaiException("Request Failed", e);
         }
-        return response;
+    }
+
+    /**
+     * Streams the recorded parts. The Content-Length is the sum of the parts,
+     * and the body falls back to chunked encoding when one of them is unknown.
+     */
+    private class MultipartEntity extends AbstractHttpEntity {
+        private final long length;
+
+        MultipartEntity() {
+            long total = 0;
+            for (Part part : parts) {
+                long partLength = part.getLength();
+                if (partLength < 0) {
+                    total = -1;
+                    break;
+                }
+                total += partLength;
+            }
+            this.length = total;
+            setContentType("multipart/form-data; boundary=" + boundary);
+            setChunked(total < 0);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return length >= 0;
+        }
+
+        @Override
+        public long getContentLength() {
+            return length;
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException("Multipart body can only be streamed");
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            for (Part part : parts) {
+                part.writeTo(out);
+            }
+            out.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
     }
 }
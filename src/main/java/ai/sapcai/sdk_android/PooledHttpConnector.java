@@ -0,0 +1,91 @@
+package ai.sapcai.sdk_android;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * The PooledHttpConnector class is the default HttpConnector: a bounded pool of keep-alive HTTPS connections,
+ * so that consecutive requests reuse the same TCP and TLS session instead of opening a new connection each time.
+ */
+final class PooledHttpConnector implements HttpConnector {
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient       httpClient;
+
+    /**
+     * @param maxConnections The maximum number of open connections
+     * @param maxConnectionsPerRoute The maximum number of open connections to the same host
+     * @param keepAlive How long in milliseconds a connection is kept alive when the server does not say otherwise
+     */
+    PooledHttpConnector(int maxConnections, int maxConnectionsPerRoute, long keepAlive) {
+        this(maxConnections, maxConnectionsPerRoute, keepAlive, null);
+    }
+
+    /**
+     * @param sslContext The context of the HTTPS connections, for instance trusting the certificate of a test
+     * server, or null for the default one of the platform
+     */
+    PooledHttpConnector(int maxConnections, int maxConnectionsPerRoute, final long keepAlive, SSLContext sslContext) {
+        if (sslContext == null) {
+            this.connectionManager = new PoolingHttpClientConnectionManager();
+        } else {
+            Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                    .register("https", new SSLConnectionSocketFactory(sslContext))
+                    .build();
+            this.connectionManager = new PoolingHttpClientConnectionManager(registry);
+        }
+        this.connectionManager.setMaxTotal(maxConnections);
+        this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+        ConnectionKeepAliveStrategy keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : keepAlive;
+            }
+        };
+
+        // responses are decompressed by the transport, to measure the bytes received on the wire
+        this.httpClient = HttpClientBuilder.create()
+                .disableContentCompression()
+                .setConnectionManager(this.connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .build();
+    }
+
+    @Override
+    public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        return this.httpClient.execute(request);
+    }
+
+    @Override
+    public void evictIdleConnections(long idleTimeout) {
+        this.connectionManager.closeExpiredConnections();
+        this.connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.httpClient.close();
+        } catch (IOException ignore) {}
+        this.connectionManager.shutdown();
+    }
+}
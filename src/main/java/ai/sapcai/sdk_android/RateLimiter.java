@@ -0,0 +1,141 @@
+package ai.sapcai.sdk_android;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The RateLimiter class keeps the requests sent with each token under a given rate, so that many bots
+ * sharing a process do not trip the throttling of SAP Conversational AI.
+ * Each token has its own token bucket, refilled at permitsPerSecond and holding up to burst permits.
+ * The buckets are lock-free: a request reserves its slot with a single compare-and-set.
+ * When the bucket of a token is empty, the Mode tells whether the caller waits for its turn (BLOCK),
+ * waits only up to a maximum delay (QUEUE) or gets a SapcaiException at once (FAIL_FAST).
+ *
+ * @see HttpTransport#setRateLimiter(RateLimiter)
+ */
+public class RateLimiter {
+
+    public enum Mode {
+        /** Waits as long as needed for a permit */
+        BLOCK,
+        /** Waits in line for a permit, unless the wait would exceed the maximum queue delay */
+        QUEUE,
+        /** Throws a SapcaiException when no permit is available right away */
+        FAIL_FAST
+    }
+
+    private final long      interval;
+    private final long      tolerance;
+    private final Mode      mode;
+    private final long      maxQueueDelay;
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * The bucket keeps the theoretical arrival time of the next request (GCRA): a request is allowed
+     * when that time is less than burst intervals in the future, and pushes it one interval further.
+     */
+    private class Bucket {
+        private final AtomicLong nextArrival = new AtomicLong(System.nanoTime());
+
+        /**
+         * @return the time to wait in nanoseconds before sending, or -1 if the request is refused
+         */
+        long reserve(Mode mode) {
+            for (;;) {
+                long now = System.nanoTime();
+                long arrival = nextArrival.get();
+                long start = arrival - now > 0 ? arrival : now;
+                long wait = start - now - tolerance;
+                if (wait > 0 && (mode == Mode.FAIL_FAST || (mode == Mode.QUEUE && wait > maxQueueDelay))) {
+                    return -1;
+                }
+                if (nextArrival.compareAndSet(arrival, start + interval)) {
+                    return Math.max(0, wait);
+                }
+            }
+        }
+    }
+
+    /**
+     * Initialize a limiter which blocks the callers until a permit is available
+     * @param permitsPerSecond The number of requests per second allowed for each token
+     * @param burst The number of requests which can be sent at once after a quiet period
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, Mode.BLOCK, 0);
+    }
+
+    /**
+     * Initialize a limiter
+     * @param permitsPerSecond The number of requests per second allowed for each token
+     * @param burst The number of requests which can be sent at once after a quiet period
+     * @param mode What to do when no permit is available
+     * @param maxQueueDelay The maximum time in milliseconds a request waits in QUEUE mode
+     */
+    public RateLimiter(double permitsPerSecond, int burst, Mode mode, long maxQueueDelay) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive");
+        }
+        this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.tolerance = this.interval * (Math.max(1, burst) - 1);
+        this.mode = mode;
+        this.maxQueueDelay = TimeUnit.MILLISECONDS.toNanos(maxQueueDelay);
+    }
+
+    private Bucket bucket(String token) {
+        String key = token == null ? "" : token;
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            Bucket created = new Bucket();
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Takes a permit for a request sent with the token, waiting for it according to the mode of the limiter
+     * @param token The token of the request
+     * @throws SapcaiException if no permit can be obtained or the thread is interrupted while waiting
+     */
+    public void acquire(String token) throws SapcaiException {
+        long wait = bucket(token).reserve(this.mode);
+        if (wait < 0) {
+            rejected.incrementAndGet();
+            throw new SapcaiException("Rate limit exceeded");
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SapcaiException("Interrupted while waiting for the rate limiter", e);
+            }
+        }
+    }
+
+    /**
+     * Takes a permit for a request sent with the token only if one is available right away
+     * @param token The token of the request
+     * @return true if the request can be sent
+     */
+    public boolean tryAcquire(String token) {
+        return bucket(token).reserve(Mode.FAIL_FAST) == 0;
+    }
+
+    /**
+     * Returns the number of requests refused because no permit was available
+     * @return The number of refused requests
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+}
@@ -0,0 +1,103 @@
+package ai.sapcai.sdk_android;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The RawJson class stores the raw JSON of a Response or a Conversation as cheaply as its RawRetention asks:
+ * as a String, as UTF-8 bytes (half the size of a String on Android, where a char takes two bytes), or deflated.
+ * The raw field of the responses holds a String, a byte[], or a RawJson for deflated bytes, and getRaw decodes
+ * it on every call instead of keeping the String around.
+ */
+final class RawJson {
+    private final byte[]    deflated;
+    private final int       length;
+
+    private RawJson(byte[] deflated, int length) {
+        this.deflated = deflated;
+        this.length = length;
+    }
+
+    /**
+     * Returns the value to keep in the raw field for the body of a response
+     * @param body The UTF-8 bytes of the body
+     * @param retention BYTES or COMPRESSED
+     */
+    static Object retain(byte[] body, Response.RawRetention retention) {
+        if (retention != Response.RawRetention.COMPRESSED) {
+            return body;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+            byte[] out = new byte[body.length / 2 + 64];
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            // JSON too small to shrink is kept as it is
+            return size < body.length ? new RawJson(Arrays.copyOf(out, size), body.length) : body;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decodes the value of a raw field
+     * @param raw A String, the UTF-8 bytes of the JSON, a RawJson or null
+     * @return The raw JSON, or null if it was not kept
+     */
+    static String decode(Object raw) {
+        if (raw == null || raw instanceof String) {
+            return (String) raw;
+        }
+        if (raw instanceof byte[]) {
+            return new String((byte[]) raw, StandardCharsets.UTF_8);
+        }
+        return ((RawJson) raw).inflate();
+    }
+
+    /**
+     * Returns the number of bytes retained by the value of a raw field
+     */
+    static int size(Object raw) {
+        if (raw == null) {
+            return 0;
+        }
+        if (raw instanceof String) {
+            return 2 * ((String) raw).length();
+        }
+        if (raw instanceof byte[]) {
+            return ((byte[]) raw).length;
+        }
+        return ((RawJson) raw).deflated.length;
+    }
+
+    private String inflate() {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(this.deflated);
+            byte[] body = new byte[this.length];
+            int size = 0;
+            while (size < body.length && !inflater.finished()) {
+                int inflated = inflater.inflate(body, size, body.length - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += inflated;
+            }
+            return new String(body, 0, size, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new SapcaiException("Invalid raw JSON", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
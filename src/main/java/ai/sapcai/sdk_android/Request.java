@@ -1,34 +1,129 @@
 package ai.sapcai.sdk_android;
 
-import android.os.Environment;
 import java.net.URL;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import javax.net.ssl.HttpsURLConnection;
+import org.apache.http.Consts;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.message.BasicNameValuePair;
+
 import java.net.MalformedURLException;
 import java.io.File;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 public class Request {
 
-	private static final String	sapcaiAPI = "https://api.cai.tools.sap/v2/request";
-	private static final String converseAPI = "https://api.cai.tools.sap/v2/converse";
-
 	public String token;
 	public String language;
 
+	private HttpTransport transport;
+	private ResponseCache cache;
+	private boolean coalescing;
+	private Response.RawRetention rawRetention = Response.RawRetention.STRING;
+	private boolean lazyParsing;
+	private RequestJournal journal;
+
 	public Request(String token){
 		this.token = token;
+		this.transport = HttpTransport.getDefault();
 	}
 
 	public Request(String token, String language){
 		this.token = token;
 		this.language = language;
+		this.transport = HttpTransport.getDefault();
+	}
+
+	/**
+	 * Sets the transport used to reach SAP Conversational AI
+	 * @param transport The transport to send the requests through
+	 * @see HttpTransport
+	 */
+	public void setTransport(HttpTransport transport) {
+		this.transport = transport;
+	}
+
+	public HttpTransport getTransport() {
+		return this.transport;
+	}
+
+	/**
+	 * Sets the cache answering the text requests. Pass null to disable it (the default).
+	 * @param cache The cache of the text requests
+	 * @see ResponseCache
+	 */
+	public void setResponseCache(ResponseCache cache) {
+		this.cache = cache;
+	}
+
+	public ResponseCache getResponseCache() {
+		return this.cache;
+	}
+
+	/**
+	 * Enables or disables the coalescing of text requests: when enabled, concurrent requests with the same token,
+	 * language and text share a single HTTP request and all get its Response. Disabled by default.
+	 * @param coalescing true to share identical in-flight requests
+	 */
+	public void setRequestCoalescing(boolean coalescing) {
+		this.coalescing = coalescing;
+	}
+
+	/**
+	 * Sets whether or not the Responses and Conversations keep the JSON they were read from.
+	 * When they do not, the response is parsed straight from the connection and getRaw returns null. Kept by default.
+	 * @param keepRaw true to keep the raw JSON of the responses as a String, false not to keep it
+	 */
+	public void setKeepRaw(boolean keepRaw) {
+		this.rawRetention = keepRaw ? Response.RawRetention.STRING : Response.RawRetention.NONE;
+	}
+
+	public boolean isKeepRaw() {
+		return this.rawRetention != Response.RawRetention.NONE;
+	}
+
+	/**
+	 * Sets how the Responses and Conversations keep the JSON they were read from
+	 * @param rawRetention How to keep the raw JSON, STRING by default
+	 * @see Response.RawRetention
+	 */
+	public void setRawRetention(Response.RawRetention rawRetention) {
+		this.rawRetention = rawRetention;
+	}
+
+	public Response.RawRetention getRawRetention() {
+		return this.rawRetention;
+	}
+
+	/**
+	 * Enables or disables lazy parsing: when enabled, the entities of the Responses and the next actions and memory
+	 * of the Conversations are kept as JSON and only parsed the first time they are read. Disabled by default.
+	 * @param lazyParsing true to parse the entities, next actions and memory on demand
+	 */
+	public void setLazyParsing(boolean lazyParsing) {
+		this.lazyParsing = lazyParsing;
+	}
+
+	public boolean isLazyParsing() {
+		return this.lazyParsing;
+	}
+
+	/**
+	 * Sets the journal keeping the text requests, and the memory updates and resets of the Conversations,
+	 * which fail because SAP Conversational AI cannot be reached. Pass null to disable it (the default).
+	 * @param journal The journal of the failed requests
+	 * @see RequestJournal
+	 */
+	public void setJournal(RequestJournal journal) {
+		this.journal = journal;
+	}
+
+	public RequestJournal getJournal() {
+		return this.journal;
 	}
 
 	/**
@@ -38,15 +133,37 @@ public class Request {
      * @throws SapcaiException if SAP Conversational AI can't process the text
      * @see Response
      */
-	public Response doTextRequest(String myText) throws SapcaiException {
-		URL obj;
+	public Response doTextRequest(final String myText) throws SapcaiException {
+		final URL obj;
+		final String token = this.token;
+		final String language = this.language;
+		Response response;
+		if (this.cache != null) {
+			Response cached = this.cache.get(token, language, myText);
+			if (cached != null) {
+				return cached;
+			}
+		}
 		try {
-			obj = new URL(sapcaiAPI);
-			String sapcaiJson = this.doApiRequest(myText, this.token, this.language, obj);
-			return new Response(sapcaiJson);
+			obj = new URL(this.transport.getRequestUrl());
 		} catch (MalformedURLException e) {
 			throw new SapcaiException("Invalid URL", e);
 		}
+		if (this.coalescing) {
+			String settings = obj + " " + this.rawRetention + ' ' + this.lazyParsing;
+			response = this.transport.getCoalescer().execute(token, language, myText, settings, new Supplier<Response>() {
+				@Override
+				public Response get() {
+					return postJournaled(myText, token, language, obj);
+				}
+			});
+		} else {
+			response = this.postJournaled(myText, token, language, obj);
+		}
+		if (this.cache != null) {
+			this.cache.put(token, language, myText, response);
+		}
+		return response;
 	}
 
 	/**
@@ -56,25 +173,80 @@ public class Request {
      * @throws SapcaiException if the file is invalid or SAP Conversational AI can't process the file
      */
 	public Response doFileRequest (String myfile) throws SapcaiException {
-		return new Response(this.sendAudioFile(myfile, this.token, this.language));
+		return this.sendAudioFile(myfile, this.token, this.language);
 	}
 
 	public Conversation doTextConverse (String myText) {
 		URL obj;
 		try {
-			obj = new URL(converseAPI);
-			String sapcaiJson = this.doApiRequest(myText, this.token, this.language, obj);
-			return new Conversation(sapcaiJson, this.token);
+			obj = new URL(this.transport.getConverseUrl());
+			Conversation conversation = this.postText(myText, this.token, this.language, obj,
+					Conversation.bodyReader(this.token, this.transport, this.rawRetention, this.lazyParsing));
+			conversation.setJournal(this.journal);
+			return conversation;
 		} catch (MalformedURLException e) {
 			throw new SapcaiException("Invalid URL", e);
 		}
 	}
 
-	private String sendAudioFile(String name, String token, String language) throws SapcaiException {
-        String sapcaiJson = "";
-		StringBuilder sb;
+	/**
+	 * Restores a Conversation saved with Conversation.saveSnapshot, using the transport and journal of the Request
+	 * @param snapshot The file of the snapshot
+	 * @return The Conversation, ready to go on without any request
+	 * @throws SapcaiException if the file cannot be read or is not a snapshot
+	 */
+	public Conversation restoreConversation(File snapshot) throws SapcaiException {
+		Conversation conversation = Conversation.restoreSnapshot(snapshot, this.token, this.transport);
+		conversation.setJournal(this.journal);
+		return conversation;
+	}
+
+	/**
+	 * Performs a text request to SAP Conversational AI without blocking the calling thread
+	 * @param myText The text to be processed
+	 * @return A future completed with the Response corresponding to the input, or with a SapcaiException
+	 */
+	public CompletableFuture<Response> doTextRequestAsync(final String myText) {
+		return this.transport.submit(new Supplier<Response>() {
+			@Override
+			public Response get() {
+				return doTextRequest(myText);
+			}
+		});
+	}
+
+	/**
+	 * Performs a voice file request to SAP Conversational AI without blocking the calling thread
+	 * @param myfile The name of the file
+	 * @return A future completed with the Response corresponding to your input, or with a SapcaiException
+	 */
+	public CompletableFuture<Response> doFileRequestAsync(final String myfile) {
+		return this.transport.submit(new Supplier<Response>() {
+			@Override
+			public Response get() {
+				return doFileRequest(myfile);
+			}
+		});
+	}
+
+	/**
+	 * Sends a message to the conversation without blocking the calling thread
+	 * @param myText The text to be processed
+	 * @return A future completed with the Conversation, or with a SapcaiException
+	 */
+	public CompletableFuture<Conversation> doTextConverseAsync(final String myText) {
+		return this.transport.submit(new Supplier<Conversation>() {
+			@Override
+			public Conversation get() {
+				return doTextConverse(myText);
+			}
+		});
+	}
+
+	private Response sendAudioFile(String name, String token, String language) throws SapcaiException {
+        Response sapcaiJson;
         try {
-            MultipartUtility multipart = new MultipartUtility(sapcaiAPI, "UTF-8", token);
+            MultipartUtility multipart = new MultipartUtility(this.transport.getRequestUrl(), "UTF-8", token, this.transport);
             File f = new File(name);
             if (!f.exists()) {
                 throw new SapcaiException("File not found: " + name);
@@ -85,67 +257,48 @@ public class Request {
 			} else if (this.language != null) {
                 multipart.addFormField("language", this.language);
             }
-            List<String> response = multipart.finish();
-			sb = new StringBuilder(response.size() * 2);
-            for (String line : response) {
-				sb.append(line);
-            }
+            sapcaiJson = multipart.finish(Response.bodyReader(this.rawRetention, this.lazyParsing));
+        } catch (SapcaiException e) {
+            // keeps the status and the kind of the error, like a CircuitOpenException
+            throw e;
         } catch (Exception e) {
-            e.printStackTrace();
             throw new SapcaiException("Error during request", e);
         }
-        return sb.toString();
+        return sapcaiJson;
 	}
 
 	public String doApiRequest(String text, String token, String language, URL obj) throws SapcaiException {
-//        URL					obj;
-        HttpsURLConnection	con;
-        OutputStream		os;
-        int					responseCode;
-        String				inputLine;
-        StringBuffer		responseBuffer;
-        String				sapcaiJson;
+		return this.postText(text, token, language, obj, HttpTransport.STRING_BODY);
+	}
 
-        try {
-//            obj = new URL(sapcaiAPI);
-            con = (HttpsURLConnection) obj.openConnection();
-            con.setRequestMethod("POST");
-            con.setRequestProperty("Authorization",  "Token " + token);
-            con.setDoOutput(true);
-            text = "text=" + text;
-            os = con.getOutputStream();
-            os.write(text.getBytes());
-			if (language != null) {
-				String l = "&language=" + language;
-				os.write(l.getBytes());
+	/**
+	 * Posts a text request, and adds it to the journal if it fails but may succeed later. With coalescing, only
+	 * the caller actually sending the request journals it, not the callers sharing its outcome.
+	 */
+	private Response postJournaled(String text, String token, String language, URL obj) throws SapcaiException {
+		try {
+			return this.postText(text, token, language, obj, Response.bodyReader(this.rawRetention, this.lazyParsing));
+		} catch (SapcaiException e) {
+			RequestJournal journal = this.journal;
+			if (journal != null && journal.isRetryable(e)) {
+				journal.addText(token, language, text);
 			}
-            os.flush();
-            os.close();
-
-            responseCode = con.getResponseCode();
-        } catch (MalformedURLException e) {
-            throw new SapcaiException("Invalid URL", e);
-        } catch (IOException e) {
-            throw new SapcaiException("Unable to read response from SAP Conversational AI", e);
-        }
+			throw e;
+		}
+	}
 
-        if (responseCode == HttpsURLConnection.HTTP_OK) {
-            try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(con.getInputStream()));
-                responseBuffer = new StringBuffer();
-                while ((inputLine = reader.readLine()) != null) {
-                    responseBuffer.append(inputLine);
-                }
-                reader.close();
-            } catch (IOException e) {
-                throw new SapcaiException("Unable to read response from SAP Conversational AI", e);
-            }
-            sapcaiJson = responseBuffer.toString();
-        } else {
-            System.out.println(responseCode);
-            throw new SapcaiException(responseCode);
+	private <T> T postText(String text, String token, String language, URL obj, HttpTransport.BodyReader<T> reader) throws SapcaiException {
+        List<NameValuePair>	params;
+
+        params = new ArrayList<>(2);
+        params.add(new BasicNameValuePair("text", text));
+        if (language != null) {
+            params.add(new BasicNameValuePair("language", language));
         }
-        return sapcaiJson;
+        // a converse request moves the conversation forward, so only the plain text request can be replayed
+        boolean idempotent = !obj.toString().equals(this.transport.getConverseUrl());
+        HttpEntity entity = new UrlEncodedFormEntity(params, Consts.UTF_8);
+        return this.transport.post(obj.toString(), token, entity, idempotent, reader);
 	}
 
 }
@@ -0,0 +1,60 @@
+package ai.sapcai.sdk_android;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * The RequestCoalescer class makes concurrent identical text requests share a single HTTP request:
+ * the first caller sends it while the others wait for its Response (or its exception).
+ * Each HttpTransport has its own, so requests sent to different endpoints or with different retry policies and
+ * timeouts are never shared. The key includes the token, so Clients of different bots never share requests,
+ * and the settings of the caller building the Response, so that each caller gets a Response it could have built.
+ *
+ * @see HttpTransport#getCoalescer()
+ */
+class RequestCoalescer {
+
+    private final ConcurrentHashMap<String, CompletableFuture<Response>> inFlight = new ConcurrentHashMap<>();
+
+    Response execute(String token, String language, String text, Supplier<Response> request) throws SapcaiException {
+        return this.execute(token, language, text, "", request);
+    }
+
+    /**
+     * @param settings What else the Response depends on, like the url and the parsing settings of the caller
+     */
+    Response execute(String token, String language, String text, String settings, Supplier<Response> request) throws SapcaiException {
+        String key = ResponseCache.key(token, language, text) + '\u0000' + settings;
+        CompletableFuture<Response> mine = new CompletableFuture<>();
+        CompletableFuture<Response> existing = inFlight.putIfAbsent(key, mine);
+
+        if (existing != null) {
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                throw Client.toSapcaiException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SapcaiException("Interrupted while waiting for the response", e);
+            }
+        }
+
+        try {
+            Response response = request.get();
+            mine.complete(response);
+            return response;
+        } catch (Throwable e) {
+            // even an Error must release the callers waiting for this request
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    int inFlightCount() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,956 @@
+package ai.sapcai.sdk_android;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * The RequestJournal class keeps on disk the requests which failed because SAP Conversational AI could not be
+ * reached, and sends them again once it can. The journal is an append-only file of checksummed records: a request
+ * is appended when it fails and a completion record when it has been replayed, so each request is sent at least once.
+ * Concurrent appends share a single fsync, which can be delayed to gather more of them.
+ * The replay sends a bounded number of requests at a time, at a bounded rate, and while the requests still
+ * fail to get through it starts over after a randomized exponential backoff, so that the clients do not all
+ * come back at once. The memory updates of a conversation are merged into a single one, and a conversation
+ * reset drops the memory updates made before it.
+ *
+ * @see Client#setJournal(RequestJournal)
+ */
+public class RequestJournal implements Closeable {
+    public static final int     DEFAULT_REPLAY_CONCURRENCY = 4;
+    public static final double  DEFAULT_REPLAY_RATE = 10;
+    public static final long    DEFAULT_MIN_RETRY_DELAY = 1000;
+    public static final long    DEFAULT_MAX_RETRY_DELAY = 5 * 60 * 1000;
+    public static final int     DEFAULT_MAX_ATTEMPTS = 10;
+    public static final long    DEFAULT_MAX_AGE = 24 * 60 * 60 * 1000;
+    private static final int    FORMAT_VERSION = 1;
+    private static final int    HEADER_SIZE = 4;
+    private static final int    RECORD_OVERHEAD = 8;
+    private static final int    MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final long   COMPACTION_THRESHOLD = 64 * 1024;
+
+    private static final byte   RECORD_TEXT = 1;
+    private static final byte   RECORD_MEMORY = 2;
+    private static final byte   RECORD_RESET = 3;
+    private static final byte   RECORD_DONE = 4;
+
+    public enum Kind {
+        /** A text request */
+        TEXT,
+        /** An update of the memory of a conversation */
+        MEMORY,
+        /** A conversation reset */
+        RESET_CONVERSATION
+    }
+
+    /**
+     * Receives the outcome of the replayed requests
+     */
+    public interface Listener {
+        /**
+         * Called once a request of the journal has been replayed
+         * @param entry The request
+         * @param response The Response of a text request, or null for the other kinds and the failed requests
+         * @param error The error which made the request fail for good, or null if it succeeded
+         */
+        void onReplayed(Entry entry, Response response, SapcaiException error);
+    }
+
+    /**
+     * A request of the journal
+     */
+    public static final class Entry {
+        private final long      id;
+        private final Kind      kind;
+        private final long      time;
+        private final String    token;
+        private final String    language;
+        private final String    text;
+        private final String    conversationToken;
+        private final boolean   memoryReset;
+        private final String    memory;
+        // the size of the record on disk
+        int                     size;
+        // the entries of the journal this one stands for once merged
+        List<Entry>             covered;
+        // the replays it failed to get through during this run
+        int                     attempts;
+
+        Entry(long id, Kind kind, long time, String token, String language, String text,
+              String conversationToken, boolean memoryReset, String memory) {
+            this.id = id;
+            this.kind = kind;
+            this.time = time;
+            this.token = token;
+            this.language = language;
+            this.text = text;
+            this.conversationToken = conversationToken;
+            this.memoryReset = memoryReset;
+            this.memory = memory;
+            this.covered = Collections.singletonList(this);
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * Returns when the request was added to the journal
+         * @return The time in milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getLanguage() {
+            return language;
+        }
+
+        /**
+         * Returns the text of a text request
+         * @return The text, or null for the other kinds
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Returns the conversation of a memory update or conversation reset
+         * @return The conversation token, or null for a text request
+         */
+        public String getConversationToken() {
+            return conversationToken;
+        }
+
+        /**
+         * Returns the JSON of a memory update: the entries which changed, with null for the removed ones
+         * @return The memory sent, or null for the other kinds
+         */
+        public String getMemory() {
+            return memory;
+        }
+
+        /**
+         * Returns whether or not a memory update replaces the whole memory
+         * @return true if the memory was reset before the update
+         */
+        public boolean isMemoryReset() {
+            return memoryReset;
+        }
+    }
+
+    private final File                  file;
+    private RandomAccessFile            out;
+    private FileChannel                 channel;
+    // the end of the file, guarded by this
+    private long                        written;
+    // the end of the file at the last fsync, guarded by syncLock
+    private long                        synced;
+    private final Object                syncLock = new Object();
+    private final LinkedHashMap<Long, Entry> pending = new LinkedHashMap<>();
+    private long                        pendingBytes;
+    private long                        nextId = 1;
+    private boolean                     closed;
+
+    private volatile HttpTransport      transport;
+    private volatile Listener           listener;
+    private volatile long               syncDelay;
+    private volatile int                replayConcurrency = DEFAULT_REPLAY_CONCURRENCY;
+    private volatile RateLimiter        replayLimiter = new RateLimiter(DEFAULT_REPLAY_RATE, 1);
+    private volatile long               minRetryDelay = DEFAULT_MIN_RETRY_DELAY;
+    private volatile long               maxRetryDelay = DEFAULT_MAX_RETRY_DELAY;
+    private volatile int                maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long               maxAge = DEFAULT_MAX_AGE;
+    private final RetryPolicy           retryPolicy = new RetryPolicy();
+    // the replay in progress, or null, guarded by this
+    private CompletableFuture<Integer>  replaying;
+    private ScheduledFuture<?>          retry;
+    private int                         failedReplays;
+
+    /**
+     * Opens a journal replaying its requests through the default transport
+     * @param file The file of the journal, created if needed
+     * @throws SapcaiException if the file cannot be read or created
+     */
+    public RequestJournal(File file) throws SapcaiException {
+        this(file, HttpTransport.getDefault());
+    }
+
+    /**
+     * Opens a journal. The requests it holds from a previous run are sent by the next replay.
+     * @param file The file of the journal, created if needed
+     * @param transport The transport to replay the requests through
+     * @throws SapcaiException if the file cannot be read or created
+     */
+    public RequestJournal(File file, HttpTransport transport) throws SapcaiException {
+        this.file = file;
+        this.transport = transport;
+        try {
+            this.open();
+        } catch (IOException e) {
+            throw new SapcaiException("Cannot open the journal " + file, e);
+        }
+    }
+
+    private void open() throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        long valid = file.length() >= HEADER_SIZE ? this.recover() : 0;
+        this.out = new RandomAccessFile(file, "rw");
+        this.channel = out.getChannel();
+        if (valid < HEADER_SIZE) {
+            channel.truncate(0);
+            channel.write(ByteBuffer.allocate(HEADER_SIZE).putInt(0, FORMAT_VERSION));
+            channel.force(false);
+            valid = HEADER_SIZE;
+        } else if (valid < channel.size()) {
+            // drops the record torn by a crash and whatever follows it
+            channel.truncate(valid);
+            channel.force(false);
+        }
+        channel.position(valid);
+        this.written = valid;
+        this.synced = valid;
+    }
+
+    /**
+     * Reads the records of the file until its end or the first incomplete or corrupted one
+     * @return The length of the valid part of the file, or 0 if it is not a journal
+     */
+    private long recover() throws IOException {
+        long length = file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FORMAT_VERSION) {
+                return 0;
+            }
+            long offset = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            for (;;) {
+                int size;
+                try {
+                    size = in.readInt();
+                } catch (EOFException e) {
+                    return offset;
+                }
+                if (size <= 0 || size > MAX_RECORD_SIZE || offset + RECORD_OVERHEAD + size > length) {
+                    return offset;
+                }
+                int checksum = in.readInt();
+                byte[] payload = new byte[size];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, size);
+                if ((int) crc.getValue() != checksum) {
+                    return offset;
+                }
+                this.apply(payload, RECORD_OVERHEAD + size);
+                offset += RECORD_OVERHEAD + size;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void apply(byte[] payload, int size) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        long id = in.readLong();
+        nextId = Math.max(nextId, id + 1);
+        if (type == RECORD_DONE) {
+            Entry done = pending.remove(id);
+            if (done != null) {
+                pendingBytes -= done.size;
+            }
+            return;
+        }
+        long time = in.readLong();
+        String token = readString(in);
+        Entry entry;
+        if (type == RECORD_TEXT) {
+            String language = readString(in);
+            entry = new Entry(id, Kind.TEXT, time, token, language, readString(in), null, false, null);
+        } else if (type == RECORD_MEMORY) {
+            String conversationToken = readString(in);
+            boolean memoryReset = in.readBoolean();
+            entry = new Entry(id, Kind.MEMORY, time, token, null, null, conversationToken, memoryReset, readString(in));
+        } else if (type == RECORD_RESET) {
+            entry = new Entry(id, Kind.RESET_CONVERSATION, time, token, null, null, readString(in), false, null);
+        } else {
+            return;
+        }
+        entry.size = size;
+        pending.put(id, entry);
+        pendingBytes += size;
+    }
+
+    private static byte[] record(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream data = new DataOutputStream(bytes);
+        if (entry.kind == Kind.TEXT) {
+            data.writeByte(RECORD_TEXT);
+        } else {
+            data.writeByte(entry.kind == Kind.MEMORY ? RECORD_MEMORY : RECORD_RESET);
+        }
+        data.writeLong(entry.id);
+        data.writeLong(entry.time);
+        writeString(data, entry.token);
+        if (entry.kind == Kind.TEXT) {
+            writeString(data, entry.language);
+            writeString(data, entry.text);
+        } else if (entry.kind == Kind.MEMORY) {
+            writeString(data, entry.conversationToken);
+            data.writeBoolean(entry.memoryReset);
+            writeString(data, entry.memory);
+        } else {
+            writeString(data, entry.conversationToken);
+        }
+        return frame(bytes.toByteArray());
+    }
+
+    private static byte[] doneRecord(long id) {
+        return frame(ByteBuffer.allocate(9).put(RECORD_DONE).putLong(id).array());
+    }
+
+    private static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return ByteBuffer.allocate(RECORD_OVERHEAD + payload.length)
+                .putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .put(payload)
+                .array();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void write(byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        written += record.length;
+    }
+
+    /**
+     * Waits until the file is synced up to -end-. The first caller syncs every record appended so far,
+     * so the callers waiting behind it usually find their record already synced.
+     */
+    private void sync(long end) throws SapcaiException {
+        synchronized (this.syncLock) {
+            if (this.synced >= end) {
+                return;
+            }
+            long delay = this.syncDelay;
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            long target;
+            FileChannel toSync;
+            synchronized (this) {
+                target = this.written;
+                toSync = this.channel;
+            }
+            try {
+                toSync.force(false);
+            } catch (IOException e) {
+                throw new SapcaiException("Cannot sync the journal", e);
+            }
+            this.synced = target;
+        }
+    }
+
+    private Entry add(Kind kind, String token, String language, String text, String conversationToken,
+                      boolean memoryReset, String memory) throws SapcaiException {
+        Entry entry;
+        long end;
+        synchronized (this) {
+            if (this.closed) {
+                throw new SapcaiException("The journal is closed");
+            }
+            entry = new Entry(nextId++, kind, System.currentTimeMillis(), token, language, text,
+                    conversationToken, memoryReset, memory);
+            try {
+                byte[] record = record(entry);
+                this.write(record);
+                entry.size = record.length;
+            } catch (IOException e) {
+                throw new SapcaiException("Cannot write to the journal", e);
+            }
+            pending.put(entry.id, entry);
+            pendingBytes += entry.size;
+            end = this.written;
+        }
+        this.sync(end);
+        this.scheduleReplay();
+        return entry;
+    }
+
+    /**
+     * Adds a text request to the journal
+     * @param token The token of the request
+     * @param language The language of the request, or null
+     * @param text The text to be processed
+     * @return The entry of the request
+     * @throws SapcaiException if the journal cannot be written
+     */
+    public Entry addText(String token, String language, String text) throws SapcaiException {
+        return this.add(Kind.TEXT, token, language, text, null, false, null);
+    }
+
+    /**
+     * Adds an update of the memory of a conversation to the journal
+     * @param token The token of the request
+     * @param conversationToken The conversation
+     * @param memoryReset Whether the update replaces the whole memory
+     * @param memory The JSON of the entries which changed, with null for the removed ones
+     * @return The entry of the request
+     * @throws SapcaiException if the journal cannot be written
+     */
+    public Entry addMemory(String token, String conversationToken, boolean memoryReset, String memory) throws SapcaiException {
+        return this.add(Kind.MEMORY, token, null, null, conversationToken, memoryReset, memory);
+    }
+
+    /**
+     * Adds a conversation reset to the journal
+     * @param token The token of the request
+     * @param conversationToken The conversation
+     * @return The entry of the request
+     * @throws SapcaiException if the journal cannot be written
+     */
+    public Entry addConversationReset(String token, String conversationToken) throws SapcaiException {
+        return this.add(Kind.RESET_CONVERSATION, token, null, null, conversationToken, false, null);
+    }
+
+    /**
+     * Marks entries as replayed. The completion records are not synced: if they are lost, the requests are sent again.
+     */
+    private synchronized void complete(List<Entry> entries) {
+        for (Entry entry : entries) {
+            if (pending.remove(entry.id) == null) {
+                continue;
+            }
+            pendingBytes -= entry.size;
+            if (!this.closed) {
+                try {
+                    this.write(doneRecord(entry.id));
+                } catch (IOException ignore) {
+                    // the request will be sent again
+                }
+            }
+        }
+    }
+
+    /**
+     * Empties the file once every request has been replayed, or rewrites it with the pending requests only
+     * once the replayed ones take most of it
+     */
+    private void compact() throws IOException {
+        synchronized (this.syncLock) {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                if (pending.isEmpty()) {
+                    channel.truncate(HEADER_SIZE);
+                    channel.position(HEADER_SIZE);
+                    channel.force(false);
+                    this.written = HEADER_SIZE;
+                    this.synced = HEADER_SIZE;
+                    return;
+                }
+                if (this.written < COMPACTION_THRESHOLD || this.written < 2 * (pendingBytes + HEADER_SIZE)) {
+                    return;
+                }
+                File tmp = new File(file.getPath() + ".tmp");
+                RandomAccessFile copy = new RandomAccessFile(tmp, "rw");
+                try {
+                    FileChannel copyChannel = copy.getChannel();
+                    copyChannel.truncate(0);
+                    copyChannel.write(ByteBuffer.allocate(HEADER_SIZE).putInt(0, FORMAT_VERSION));
+                    for (Entry entry : pending.values()) {
+                        ByteBuffer buffer = ByteBuffer.wrap(record(entry));
+                        while (buffer.hasRemaining()) {
+                            copyChannel.write(buffer);
+                        }
+                    }
+                    copyChannel.force(false);
+                } finally {
+                    copy.close();
+                }
+                out.close();
+                if (!tmp.renameTo(file)) {
+                    tmp.delete();
+                }
+                this.out = new RandomAccessFile(file, "rw");
+                this.channel = out.getChannel();
+                this.written = channel.size();
+                this.synced = this.written;
+                channel.position(this.written);
+            }
+        }
+    }
+
+    /**
+     * Returns whether or not the journal holds requests of a conversation. While it does, the later memory updates
+     * and resets of the conversation must be added to the journal too, so that they are sent after them.
+     * @param token The token of the requests
+     * @param conversationToken The conversation
+     * @return true if requests of the conversation are waiting to be replayed
+     */
+    public synchronized boolean isPending(String token, String conversationToken) {
+        for (Entry entry : pending.values()) {
+            if (entry.kind != Kind.TEXT && conversationToken != null && conversationToken.equals(entry.conversationToken)
+                    && (token == null ? entry.token == null : token.equals(entry.token))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether or not a failed request should be added to the journal: the network or SAP Conversational AI
+     * was unavailable, as opposed to a request which would fail again
+     * @param e The error of the request
+     * @return true if the request may succeed later
+     */
+    public boolean isRetryable(SapcaiException e) {
+        return e instanceof CircuitOpenException || this.retryPolicy.isRetryable(e);
+    }
+
+    /**
+     * Groups the entries into the requests to send: each text request on its own, and for each conversation
+     * its last reset then its memory updates merged into one. The requests of a group are sent in order.
+     */
+    static List<List<Entry>> plan(Collection<Entry> entries) throws SapcaiException {
+        List<List<Entry>> groups = new ArrayList<>();
+        Map<String, List<Entry>> conversations = new LinkedHashMap<>();
+        for (Entry entry : entries) {
+            if (entry.kind == Kind.TEXT) {
+                groups.add(Collections.singletonList(entry));
+                continue;
+            }
+            String key = entry.token + '\u0000' + entry.conversationToken;
+            List<Entry> records = conversations.get(key);
+            if (records == null) {
+                records = new ArrayList<>();
+                conversations.put(key, records);
+            }
+            records.add(entry);
+        }
+        for (List<Entry> records : conversations.values()) {
+            int lastReset = -1;
+            for (int i = 0; i < records.size(); i++) {
+                if (records.get(i).kind == Kind.RESET_CONVERSATION) {
+                    lastReset = i;
+                }
+            }
+            List<Entry> group = new ArrayList<>(2);
+            if (lastReset >= 0) {
+                // the reset wipes the conversation, and its memory with it
+                Entry reset = records.get(lastReset);
+                Entry merged = new Entry(reset.id, reset.kind, reset.time, reset.token, null, null,
+                        reset.conversationToken, false, null);
+                merged.covered = new ArrayList<>(records.subList(0, lastReset + 1));
+                group.add(merged);
+            }
+            if (lastReset < records.size() - 1) {
+                group.add(mergeMemory(records.subList(lastReset + 1, records.size())));
+            }
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    private static Entry mergeMemory(List<Entry> updates) throws SapcaiException {
+        Entry last = updates.get(updates.size() - 1);
+        if (updates.size() == 1) {
+            return last;
+        }
+        boolean memoryReset = false;
+        Map<String, String> changes = new LinkedHashMap<>();
+        for (Entry update : updates) {
+            if (update.memoryReset) {
+                memoryReset = true;
+                changes.clear();
+            }
+            JsonPullParser parser = new JsonPullParser(new StringReader(update.memory));
+            try {
+                if (parser.peek() == JsonPullParser.Token.NULL) {
+                    continue;
+                }
+                parser.beginObject();
+                while (parser.hasNext()) {
+                    String name = parser.nextName();
+                    // the latest value of an entry wins
+                    changes.remove(name);
+                    changes.put(name, parser.nextSource());
+                }
+                parser.endObject();
+            } catch (IOException | RuntimeException e) {
+                throw new SapcaiException("Invalid JSON", e);
+            }
+        }
+        String memory;
+        if (memoryReset && changes.isEmpty()) {
+            memory = "null";
+        } else {
+            StringBuilder sb = new StringBuilder(64 * changes.size() + 2).append('{');
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append(JSONObject.quote(change.getKey())).append(':').append(change.getValue());
+            }
+            memory = sb.append('}').toString();
+        }
+        Entry merged = new Entry(last.id, Kind.MEMORY, last.time, last.token, null, null,
+                last.conversationToken, memoryReset, memory);
+        merged.covered = new ArrayList<>(updates);
+        return merged;
+    }
+
+    /**
+     * Sends the requests of the journal now, with at most -replayConcurrency- in flight. The replay stops at the
+     * first request which fails to get through, and starts over after a backoff. A request which fails for another
+     * reason, fails to get through -maxAttempts- times or is older than -maxAge- is removed from the journal and
+     * reported to the listener with its error.
+     * Call it when the network comes back, and once the listener is set to send the requests left by a previous run.
+     * @return A future completed with the number of requests replayed, merged requests counting once
+     */
+    public CompletableFuture<Integer> replay() {
+        final CompletableFuture<Integer> future;
+        final List<List<Entry>> groups;
+        synchronized (this) {
+            if (this.replaying != null) {
+                return this.replaying;
+            }
+            if (this.retry != null) {
+                this.retry.cancel(false);
+                this.retry = null;
+            }
+            future = new CompletableFuture<>();
+            if (this.closed || pending.isEmpty()) {
+                future.complete(0);
+                return future;
+            }
+            try {
+                groups = plan(pending.values());
+            } catch (SapcaiException e) {
+                future.completeExceptionally(e);
+                return future;
+            }
+            this.replaying = future;
+        }
+
+        final ConcurrentLinkedQueue<List<Entry>> queue = new ConcurrentLinkedQueue<>(groups);
+        final AtomicInteger replayed = new AtomicInteger();
+        final AtomicBoolean unreachable = new AtomicBoolean();
+        final int workers = Math.max(1, Math.min(this.replayConcurrency, groups.size()));
+        final AtomicInteger running = new AtomicInteger(workers);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<Entry> group;
+                    while (!unreachable.get() && (group = queue.poll()) != null) {
+                        if (!replayGroup(group, replayed)) {
+                            unreachable.set(true);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    unreachable.set(true);
+                } finally {
+                    if (running.decrementAndGet() == 0) {
+                        finishReplay(replayed.get(), unreachable.get());
+                    }
+                }
+            }
+        };
+        for (int i = 0; i < workers; i++) {
+            try {
+                this.transport.getExecutor().execute(worker);
+            } catch (RejectedExecutionException e) {
+                unreachable.set(true);
+                if (running.decrementAndGet() == 0) {
+                    finishReplay(replayed.get(), true);
+                }
+            }
+        }
+        return future;
+    }
+
+    /**
+     * @return false if a request failed to get through, leaving it and the rest of the group in the journal
+     */
+    private boolean replayGroup(List<Entry> group, AtomicInteger replayed) {
+        for (Entry entry : group) {
+            Response response = null;
+            SapcaiException error = null;
+            // a merged entry has the time of the latest request it stands for
+            if (System.currentTimeMillis() - entry.time > this.maxAge) {
+                error = new SapcaiException("The request expired before it could be replayed");
+            } else {
+                this.replayLimiter.acquire(entry.token);
+                try {
+                    response = this.send(entry);
+                } catch (SapcaiException e) {
+                    if (this.isRetryable(e) && countAttempt(entry) < this.maxAttempts) {
+                        return false;
+                    }
+                    error = e;
+                }
+            }
+            this.complete(entry.covered);
+            replayed.incrementAndGet();
+            Listener listener = this.listener;
+            if (listener != null) {
+                listener.onReplayed(entry, response, error);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts a failed attempt of each entry an entry stands for
+     * @return The attempts of the most recent of them, so that merging in a new request gives the group more time
+     */
+    private static int countAttempt(Entry entry) {
+        int attempts = Integer.MAX_VALUE;
+        for (Entry covered : entry.covered) {
+            attempts = Math.min(attempts, ++covered.attempts);
+        }
+        return attempts;
+    }
+
+    private Response send(Entry entry) throws SapcaiException {
+        HttpTransport transport = this.transport;
+        if (entry.kind == Kind.TEXT) {
+            return transport.post(transport.getRequestUrl(), entry.token, Client.textEntity(entry.text, entry.language), true,
+                    Response.bodyReader(Response.RawRetention.STRING, false));
+        }
+        if (entry.kind == Kind.MEMORY) {
+            if (entry.memoryReset && !"null".equals(entry.memory)) {
+                // the memory sent is merged into the one of SAP Conversational AI: the reset is sent first,
+                // or the entries set before it would survive it
+                transport.put(transport.getConverseUrl(), entry.token,
+                        new StringEntity(Conversation.memoryBody(entry.conversationToken, "null"), ContentType.APPLICATION_JSON));
+            }
+            transport.put(transport.getConverseUrl(), entry.token,
+                    new StringEntity(Conversation.memoryBody(entry.conversationToken, entry.memory), ContentType.APPLICATION_JSON));
+        } else {
+            transport.delete(transport.getConverseUrl(), entry.token);
+        }
+        return null;
+    }
+
+    private void finishReplay(int replayed, boolean unreachable) {
+        CompletableFuture<Integer> future;
+        synchronized (this) {
+            future = this.replaying;
+            this.replaying = null;
+            this.failedReplays = unreachable ? this.failedReplays + 1 : 0;
+        }
+        try {
+            this.compact();
+        } catch (IOException ignore) {
+            // the file is compacted after the next replay
+        }
+        this.scheduleReplay();
+        future.complete(replayed);
+    }
+
+    /**
+     * Schedules a replay of the pending requests, sooner after a successful replay and later after each failed one
+     */
+    private synchronized void scheduleReplay() {
+        if (this.closed || this.replaying != null || this.retry != null || pending.isEmpty()) {
+            return;
+        }
+        long delay = this.minRetryDelay << Math.min(this.failedReplays, 20);
+        if (delay <= 0 || delay > this.maxRetryDelay) {
+            delay = this.maxRetryDelay;
+        }
+        // from half to the whole delay, so that the clients cut off together do not come back together
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        this.retry = this.transport.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (RequestJournal.this) {
+                    retry = null;
+                }
+                replay();
+            }
+        }, delay);
+    }
+
+    /**
+     * Returns the requests waiting to be replayed, in the order they were added
+     * @return A copy of the pending entries
+     */
+    public synchronized List<Entry> getPendingEntries() {
+        return new ArrayList<>(pending.values());
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public Listener getListener() {
+        return this.listener;
+    }
+
+    public void setTransport(HttpTransport transport) {
+        this.transport = transport;
+    }
+
+    public HttpTransport getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * Sets how long an append waits before syncing the file, so that the appends made meanwhile share the same fsync
+     * @param syncDelay The delay in milliseconds, 0 by default
+     */
+    public void setSyncDelay(long syncDelay) {
+        this.syncDelay = syncDelay;
+    }
+
+    public long getSyncDelay() {
+        return this.syncDelay;
+    }
+
+    /**
+     * Sets the maximum number of requests in flight during a replay
+     * @param replayConcurrency The number of requests, DEFAULT_REPLAY_CONCURRENCY by default
+     */
+    public void setReplayConcurrency(int replayConcurrency) {
+        this.replayConcurrency = replayConcurrency;
+    }
+
+    public int getReplayConcurrency() {
+        return this.replayConcurrency;
+    }
+
+    /**
+     * Sets the maximum rate of the replayed requests of each token
+     * @param requestsPerSecond The number of requests per second, DEFAULT_REPLAY_RATE by default
+     */
+    public void setReplayRate(double requestsPerSecond) {
+        this.replayLimiter = new RateLimiter(requestsPerSecond, 1);
+    }
+
+    /**
+     * Sets the delays before replaying the requests: minRetryDelay after a request has been added or a replay
+     * has succeeded, then doubled after each failed replay up to maxRetryDelay
+     * @param minRetryDelay The first delay in milliseconds, DEFAULT_MIN_RETRY_DELAY by default
+     * @param maxRetryDelay The longest delay in milliseconds, DEFAULT_MAX_RETRY_DELAY by default
+     */
+    public void setRetryDelays(long minRetryDelay, long maxRetryDelay) {
+        this.minRetryDelay = minRetryDelay;
+        this.maxRetryDelay = maxRetryDelay;
+    }
+
+    /**
+     * Sets when a request which keeps failing to get through is given up, so that it cannot hold back the
+     * requests behind it forever. The attempts are counted from the start of the application, the age from
+     * when the request was added to the journal.
+     * @param maxAttempts The number of replays a request may fail to get through, DEFAULT_MAX_ATTEMPTS by default
+     * @param maxAge The age in milliseconds past which a request is not sent anymore, DEFAULT_MAX_AGE by default
+     */
+    public void setReplayLimits(int maxAttempts, long maxAge) {
+        this.maxAttempts = maxAttempts;
+        this.maxAge = maxAge;
+    }
+
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    public long getMaxAge() {
+        return this.maxAge;
+    }
+
+    /**
+     * Stops the replays and closes the file. The pending requests are kept for the next run.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this.syncLock) {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                if (this.retry != null) {
+                    this.retry.cancel(false);
+                    this.retry = null;
+                }
+                channel.force(false);
+                out.close();
+            }
+        }
+    }
+}
@@ -2,11 +2,11 @@ package ai.sapcai.sdk_android;
 
 import org.json.*;
 
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.io.StringReader;
 
 /**
  * The Response class handles responses from SAP Conversational AI API
@@ -19,10 +19,13 @@ import java.util.regex.Matcher;
 public class Response {
     private String		  source;
     private Intent[]	          intents;
-    private Map<String, Entity[]> entities;
+    private volatile Map<String, Entity[]> entities;
+    // the JSON of the entities until they are first needed, in lazy mode
+    private String                entitiesSource;
     private String		  version;
     private String		  timestamp;
-    private String		  raw;
+    // a String, UTF-8 bytes or deflated bytes, see RawJson
+    private Object		  raw;
     private int			  status;
     private String		  language;
     private String                processing_language;
@@ -32,7 +35,10 @@ public class Response {
     private String sentiment;
     private String act;
     private String type;
-    private String subtype;
+    // classifications precomputed from the strings above
+    private Sentiment sentimentKind;
+    private Act actKind;
+    private QuestionType questionType;
 
     public static final String ACT_ASSERT = "assert";
     public static final String ACT_COMMAND = "command";
@@ -43,8 +49,8 @@ public class Response {
     public static final String TYPE_ENTITY = "enty:";
     public static final String TYPE_DESCRIPTION = "desc:";
     public static final String TYPE_HUMAN = "hum:";
-    public static final String TYPE_NUMBER = "loc:";
-    public static final String TYPE_LOCATION = "num:";
+    public static final String TYPE_NUMBER = "num:";
+    public static final String TYPE_LOCATION = "loc:";
 
     public static final String SENTIMENT_POSITIVE = "positive";
     public static final String SENTIMENT_VERY_POSITIVE = "vpositive";
@@ -52,11 +58,145 @@ public class Response {
     public static final String SENTIMENT_VERY_NEGATIVE = "vnegative";
     public static final String SENTIMENT_NEUTRAL = "neutral";
 
+    /**
+     * How the Responses and Conversations read from SAP Conversational AI keep their raw JSON
+     */
+    public enum RawRetention {
+        /** The raw JSON is not kept: the response is parsed straight from the connection and getRaw returns null */
+        NONE,
+        /** The raw JSON is kept as a String */
+        STRING,
+        /** The raw JSON is kept as UTF-8 bytes, decoded by each call to getRaw */
+        BYTES,
+        /** The raw JSON is kept as deflated UTF-8 bytes, inflated by each call to getRaw */
+        COMPRESSED
+    }
+
+    /**
+     * The act of the sentence
+     */
+    public enum Act {
+        ASSERT(ACT_ASSERT), COMMAND(ACT_COMMAND), WH_QUERY(ACT_WH_QUERY), YN_QUERY(ACT_YN_QUERY), UNKNOWN(null);
+
+        private static final Act[] VALUES = values();
+        private final String value;
+
+        Act(String value) {
+            this.value = value;
+        }
+
+        /**
+         * Returns the string used by SAP Conversational AI for this act, or null for UNKNOWN
+         * @return The value of the act
+         */
+        public String getValue() {
+            return value;
+        }
+
+        static Act fromValue(String value) {
+            for (Act act : VALUES) {
+                if (act.value != null && act.value.equals(value)) {
+                    return act;
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * The sentiment of the sentence
+     */
+    public enum Sentiment {
+        VERY_POSITIVE(SENTIMENT_VERY_POSITIVE), POSITIVE(SENTIMENT_POSITIVE), NEUTRAL(SENTIMENT_NEUTRAL),
+        NEGATIVE(SENTIMENT_NEGATIVE), VERY_NEGATIVE(SENTIMENT_VERY_NEGATIVE), UNKNOWN(null);
+
+        private static final Sentiment[] VALUES = values();
+        private final String value;
+
+        Sentiment(String value) {
+            this.value = value;
+        }
+
+        /**
+         * Returns the string used by SAP Conversational AI for this sentiment, or null for UNKNOWN
+         * @return The value of the sentiment
+         */
+        public String getValue() {
+            return value;
+        }
+
+        static Sentiment fromValue(String value) {
+            for (Sentiment sentiment : VALUES) {
+                if (sentiment.value != null && sentiment.value.equals(value)) {
+                    return sentiment;
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * The kind of answer a question expects, given by the prefix of its type
+     */
+    public enum QuestionType {
+        ABBREVIATION(TYPE_ABBREVIATION), ENTITY(TYPE_ENTITY), DESCRIPTION(TYPE_DESCRIPTION), HUMAN(TYPE_HUMAN),
+        LOCATION(TYPE_LOCATION), NUMBER(TYPE_NUMBER), UNKNOWN(null);
+
+        private static final QuestionType[] VALUES = values();
+        private final String prefix;
+
+        QuestionType(String prefix) {
+            this.prefix = prefix;
+        }
+
+        /**
+         * Returns the prefix of the types of this kind ("desc:" for "desc:manner"), or null for UNKNOWN
+         * @return The prefix of the type
+         */
+        public String getPrefix() {
+            return prefix;
+        }
+
+        /**
+         * Finds the kind of a type from its subtype: the first word followed by a colon in the type,
+         * or the whole type if there is none
+         */
+        static QuestionType fromType(String type) {
+            if (type == null) {
+                return UNKNOWN;
+            }
+            String subtype = type;
+            for (int colon = type.indexOf(':'); colon >= 0; colon = type.indexOf(':', colon + 1)) {
+                int start = colon;
+                while (start > 0 && isWordChar(type.charAt(start - 1))) {
+                    start--;
+                }
+                if (start < colon) {
+                    subtype = type.substring(start, colon + 1);
+                    break;
+                }
+            }
+            for (QuestionType questionType : VALUES) {
+                if (questionType.prefix != null && questionType.prefix.equals(subtype)) {
+                    return questionType;
+                }
+            }
+            return UNKNOWN;
+        }
+
+        private static boolean isWordChar(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+        }
+    }
+
+
+    private Response() {
+        this.status = -1;
+    }
 
     Response(String json) throws SapcaiException {
         JSONArray	resultIntents = null;
         JSONObject	result;
-        Pattern typePattern;
         this.raw = json;
 
         try {
@@ -97,20 +237,121 @@ public class Response {
                 this.intents[i] = new Intent(resultIntents.getJSONObject(i));
             }
 
-            if(this.type != null){
-            	typePattern = Pattern.compile("(\\w+:).*");
-                Matcher m = typePattern.matcher(this.type);
-                if (m.find()) {
-                    this.subtype = m.group(1);
-                } else {
-                    this.subtype = this.type;
-                }
-            }
+            this.classify();
         } catch (Exception e) {
             throw new SapcaiException("Invalid JSON", e);
         }
     }
 
+    /**
+     * Returns the reader filling a Response straight from the stream of the HTTP response
+     * @param retention How getRaw keeps the JSON of the response
+     * @param lazy Whether or not the entities are only parsed when they are first needed
+     */
+    static HttpTransport.BodyReader<Response> bodyReader(RawRetention retention, final boolean lazy) {
+        return new JsonPullParser.BodyReader<Response>(retention) {
+            @Override
+            Response read(JsonPullParser parser, Object raw) throws IOException {
+                return Response.read(parser, raw, lazy);
+            }
+        };
+    }
+
+    /**
+     * Fills a Response in a single pass over the JSON, without building its tree
+     * @param reader The parser positioned before the document
+     * @param raw The JSON of the response as retained (see RawJson), or null if it is not kept
+     * @param lazy Whether or not the entities are kept as JSON until they are first needed
+     */
+    static Response read(JsonPullParser reader, Object raw, boolean lazy) throws IOException {
+        Response response = new Response();
+        response.raw = raw;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("results")) {
+                response.readResults(reader, lazy);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (response.source == null || response.version == null || response.timestamp == null || response.status < 0
+                || response.language == null || response.processing_language == null || response.act == null
+                || response.sentiment == null || response.uuid == null || response.intents == null
+                || (response.entities == null && response.entitiesSource == null)) {
+            throw new SapcaiException("Invalid JSON");
+        }
+        response.classify();
+        return response;
+    }
+
+    private void readResults(JsonPullParser reader, boolean lazy) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "source": this.source = reader.nextString(); break;
+                case "version": this.version = reader.nextString(); break;
+                case "timestamp": this.timestamp = reader.nextString(); break;
+                case "status": this.status = reader.nextInt(); break;
+                case "language": this.language = reader.nextString(); break;
+                case "processing_language": this.processing_language = reader.nextString(); break;
+                case "type": this.type = reader.nextString(); break;
+                case "act": this.act = reader.nextString(); break;
+                case "sentiment": this.sentiment = reader.nextString(); break;
+                case "uuid": this.uuid = reader.nextString(); break;
+                case "entities":
+                    if (lazy) {
+                        this.entitiesSource = reader.nextSource();
+                    } else {
+                        this.entities = Entity.readAll(reader);
+                    }
+                    break;
+                case "intents": this.intents = Intent.readAll(reader); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Precomputes the act, sentiment and question type, and replaces the repeated strings by shared instances
+     */
+    private void classify() {
+        this.actKind = Act.fromValue(this.act);
+        this.act = this.actKind != Act.UNKNOWN ? this.actKind.getValue() : Interner.SHARED.intern(this.act);
+        this.sentimentKind = Sentiment.fromValue(this.sentiment);
+        this.sentiment = this.sentimentKind != Sentiment.UNKNOWN ? this.sentimentKind.getValue() : Interner.SHARED.intern(this.sentiment);
+        this.questionType = QuestionType.fromType(this.type);
+        this.type = Interner.SHARED.intern(this.type);
+        this.language = Interner.SHARED.intern(this.language);
+        this.processing_language = Interner.SHARED.intern(this.processing_language);
+        this.version = Interner.SHARED.intern(this.version);
+    }
+
+    /**
+     * Returns the entities, parsing them on first access in lazy mode
+     */
+    private Map<String, Entity[]> entities() {
+        Map<String, Entity[]> parsed = this.entities;
+        if (parsed == null) {
+            synchronized (this) {
+                parsed = this.entities;
+                if (parsed == null) {
+                    try {
+                        parsed = Entity.readAll(new JsonPullParser(new StringReader(this.entitiesSource)));
+                    } catch (IOException | RuntimeException e) {
+                        throw new SapcaiException("Invalid JSON", e);
+                    }
+                    this.entities = parsed;
+                    this.entitiesSource = null;
+                }
+            }
+        }
+        return parsed;
+    }
+
     /**
      * Returns the user input
      * @return The input sent to SAP Conversational AI
@@ -154,10 +395,18 @@ public class Response {
 
     /**
      * Returns the json received from SAP Conversational AI
-     * @return The raw json string
+     * @return The raw json string, or null if the Client does not keep it
+     * @see Client#setRawRetention(RawRetention)
      */
     public String getRaw() {
-        return this.raw;
+        return RawJson.decode(this.raw);
+    }
+
+    /**
+     * Returns the number of bytes taken by the raw JSON kept by the Response
+     */
+    int getRawSize() {
+        return RawJson.size(this.raw);
     }
 
 
@@ -194,7 +443,7 @@ public class Response {
     public Entity getEntity(String name) {
         Entity e;
 
-        Entity[] ents = this.entities.get(name);
+        Entity[] ents = this.entities().get(name);
         if (ents == null || ents.length == 0) {
             return null;
         }
@@ -208,7 +457,7 @@ public class Response {
      * @see Entity
      */
     public Entity[] getEntities(String name) {
-        return this.entities.get(name);
+        return this.entities().get(name);
     }
 
     public String getAct() {
@@ -223,58 +472,70 @@ public class Response {
         return sentiment;
     }
 
+    public Act getActKind() {
+        return actKind;
+    }
+
+    public Sentiment getSentimentKind() {
+        return sentimentKind;
+    }
+
+    public QuestionType getQuestionType() {
+        return questionType;
+    }
+
     public boolean isCommand() {
-        return this.act.equals(ACT_COMMAND);
+        return this.actKind == Act.COMMAND;
     }
 
     public boolean isAssert() {
-        return this.act.equals(ACT_ASSERT);
+        return this.actKind == Act.ASSERT;
     }
 
     public boolean isWhQuery() {
-        return this.act.equals(ACT_WH_QUERY);
+        return this.actKind == Act.WH_QUERY;
     }
 
     public boolean isYesNoQuery() {
-        return this.act.equals(ACT_YN_QUERY);
+        return this.actKind == Act.YN_QUERY;
     }
 
-    public boolean isPositive() { return this.sentiment.equals(SENTIMENT_POSITIVE); }
+    public boolean isPositive() { return this.sentimentKind == Sentiment.POSITIVE; }
 
     public boolean isVeryPositive() {
-        return this.sentiment.equals(SENTIMENT_VERY_POSITIVE);
+        return this.sentimentKind == Sentiment.VERY_POSITIVE;
     }
 
     public boolean isNeutral() {
-        return this.sentiment.equals(SENTIMENT_NEUTRAL);
+        return this.sentimentKind == Sentiment.NEUTRAL;
     }
 
     public boolean isNegative() {
-        return this.sentiment.equals(SENTIMENT_NEGATIVE);
+        return this.sentimentKind == Sentiment.NEGATIVE;
     }
 
     public boolean isVeryNegative() {
-        return this.sentiment.equals(SENTIMENT_VERY_NEGATIVE);
+        return this.sentimentKind == Sentiment.VERY_NEGATIVE;
     }
 
     public boolean isAbbreviation() {
-        return this.subtype.equals(TYPE_ABBREVIATION);
+        return this.questionType == QuestionType.ABBREVIATION;
     }
 
-    public boolean isEntity() { return this.subtype.equals(TYPE_ENTITY); }
+    public boolean isEntity() { return this.questionType == QuestionType.ENTITY; }
 
-    public boolean isDescription() { return this.subtype.equals(TYPE_DESCRIPTION); }
+    public boolean isDescription() { return this.questionType == QuestionType.DESCRIPTION; }
 
     public boolean isHuman() {
-        return this.subtype.equals(TYPE_HUMAN);
+        return this.questionType == QuestionType.HUMAN;
     }
 
     public boolean isLocation() {
-        return this.subtype.equals(TYPE_LOCATION);
+        return this.questionType == QuestionType.LOCATION;
     }
 
     public boolean isNumber() {
-        return this.subtype.equals(TYPE_NUMBER);
+        return this.questionType == QuestionType.NUMBER;
     }
 
 }
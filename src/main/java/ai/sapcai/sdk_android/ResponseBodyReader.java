@@ -0,0 +1,100 @@
+package ai.sapcai.sdk_android;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The ResponseBodyReader class reads the body of a response straight into a byte array and decodes it
+ * from UTF-8 exactly once. When the Content-Length is known the array has exactly its size, so the body is
+ * copied only once from the socket; otherwise a hint sizes the array, which grows as needed.
+ */
+final class ResponseBodyReader {
+    static final int DEFAULT_SIZE = 8192;
+    static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    private ResponseBodyReader() {}
+
+    /**
+     * Reads a body of known length
+     * @param in The stream of the body
+     * @param contentLength The length announced for the body, or -1 if it is unknown
+     * @return The body decoded from UTF-8
+     * @throws IOException if the stream fails or ends before contentLength bytes
+     */
+    static String read(InputStream in, long contentLength) throws IOException {
+        if (contentLength < 0) {
+            return readWithHint(in, DEFAULT_SIZE);
+        }
+        byte[] body = readBytes(in, contentLength, DEFAULT_SIZE);
+        return new String(body, 0, body.length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a body of unknown length
+     * @param in The stream of the body
+     * @param sizeHint The expected size of the body, used to size the first buffer
+     * @return The body decoded from UTF-8
+     * @throws IOException if the stream fails
+     */
+    static String readWithHint(InputStream in, int sizeHint) throws IOException {
+        byte[] body = new byte[Math.max(sizeHint, 256)];
+        int length = 0;
+        int read;
+        while ((read = in.read(body, length, body.length - length)) != -1) {
+            length += read;
+            if (length == body.length) {
+                if (length >= MAX_SIZE) {
+                    throw new IOException("Response too large");
+                }
+                body = Arrays.copyOf(body, (int) Math.min((long) length * 2, MAX_SIZE));
+            }
+        }
+        return new String(body, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a body into an array of exactly its size, without decoding it. The Content-Length only sizes the array:
+     * the body is still read up to the end of the stream, so that a wrong length never truncates it.
+     * @param in The stream of the body
+     * @param contentLength The length announced for the body, or -1 if it is unknown
+     * @param sizeHint The expected size of the body when its length is unknown
+     * @return The bytes of the body
+     * @throws IOException if the stream fails or ends before contentLength bytes
+     */
+    static byte[] readBytes(InputStream in, long contentLength, int sizeHint) throws IOException {
+        if (contentLength > MAX_SIZE) {
+            throw new IOException("Response too large: " + contentLength);
+        }
+        boolean known = contentLength >= 0;
+        byte[] body = new byte[known ? (int) contentLength : Math.max(sizeHint, 256)];
+        int length = 0;
+        int read;
+        while (true) {
+            if (length == body.length) {
+                // a single byte tells whether the body is over, without growing an array of the exact size
+                int next = in.read();
+                if (next == -1) {
+                    break;
+                }
+                if (length >= MAX_SIZE) {
+                    throw new IOException("Response too large");
+                }
+                body = Arrays.copyOf(body, (int) Math.min(Math.max((long) length * 2, 256), MAX_SIZE));
+                body[length++] = (byte) next;
+                known = false;
+            }
+            read = in.read(body, length, body.length - length);
+            if (read == -1) {
+                if (known) {
+                    throw new EOFException("Response shorter than its Content-Length");
+                }
+                break;
+            }
+            length += read;
+        }
+        return length == body.length ? body : Arrays.copyOf(body, length);
+    }
+}
@@ -0,0 +1,502 @@
+package ai.sapcai.sdk_android;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The ResponseCache class keeps the Responses of text requests so that the same sentence is not sent twice.
+ * Entries are keyed by token, language and text (trimmed, with whitespace runs collapsed) and expire after a TTL.
+ * The memory tier is an LRU bounded by an estimated size in bytes. An optional directory holds a second tier
+ * of gzipped entries which survives restarts, also an LRU bounded by the size of its files. The entries are
+ * written to disk by a background thread, so that a request never waits for the disk.
+ * All the entries are dropped as soon as a Response comes with another API version than the cached ones.
+ *
+ * @see Client#setResponseCache(ResponseCache)
+ */
+public class ResponseCache {
+    public static final long    DEFAULT_MAX_DISK_BYTES = 16L * 1024 * 1024;
+    // writes beyond this many waiting for the disk are dropped, a missing entry only costs a request
+    private static final int    MAX_PENDING_WRITES = 256;
+    private static final int    ENTRY_OVERHEAD = 64;
+    private static final int    DISK_FORMAT_VERSION = 2;
+
+    private final long                          maxBytes;
+    private final long                          ttl;
+    private final File                          directory;
+    private final long                          maxDiskBytes;
+    private final LinkedHashMap<String, Entry>  entries;
+    private long                                bytes;
+    private String                              version;
+    private final ThreadPoolExecutor            writer;
+    // the files of the disk tier and their sizes, least recently used first, listed on first use
+    private LinkedHashMap<String, Long>         diskFiles;
+    private long                                diskBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+    private final Object     diskLock = new Object();
+
+    private static class Entry {
+        final Response  response;
+        final long      expiresAt;
+        final long      size;
+
+        Entry(Response response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+            this.size = ENTRY_OVERHEAD + response.getRawSize();
+        }
+    }
+
+    /**
+     * Initialize a memory only cache
+     * @param maxBytes The estimated size in bytes the entries may take in memory
+     * @param ttl How long in milliseconds an entry stays valid
+     */
+    public ResponseCache(long maxBytes, long ttl) {
+        this(maxBytes, ttl, null);
+    }
+
+    /**
+     * Initialize a cache backed by a directory holding at most DEFAULT_MAX_DISK_BYTES
+     * @param maxBytes The estimated size in bytes the entries may take in memory
+     * @param ttl How long in milliseconds an entry stays valid
+     * @param directory The directory holding the disk tier, or null for a memory only cache
+     */
+    public ResponseCache(long maxBytes, long ttl, File directory) {
+        this(maxBytes, ttl, directory, DEFAULT_MAX_DISK_BYTES);
+    }
+
+    /**
+     * Initialize a cache backed by a directory
+     * @param maxBytes The estimated size in bytes the entries may take in memory
+     * @param ttl How long in milliseconds an entry stays valid
+     * @param directory The directory holding the disk tier, or null for a memory only cache
+     * @param maxDiskBytes The size in bytes the files of the disk tier may take, the least recently used are deleted beyond
+     */
+    public ResponseCache(long maxBytes, long ttl, File directory, long maxDiskBytes) {
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        if (directory == null) {
+            this.writer = null;
+            return;
+        }
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        this.writer = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_PENDING_WRITES),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "sapcai-cache-writer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.DiscardPolicy());
+        this.writer.allowCoreThreadTimeOut(true);
+    }
+
+    static String key(String token, String language, String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 48);
+        sb.append(token).append('\u0000').append(language).append('\u0000');
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && sb.charAt(sb.length() - 1) != '\u0000') {
+                sb.append(' ');
+            }
+            space = false;
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the cached Response of a text request, or null if there is none
+     * @param token The token of the request
+     * @param language The language of the request
+     * @param text The text of the request
+     * @return The cached Response or null
+     */
+    public Response get(String token, String language, String text) {
+        String key = key(token, language, text);
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expiresAt > now) {
+                    hits.incrementAndGet();
+                    return entry.response;
+                }
+                remove(key);
+            }
+        }
+
+        Response response = this.readFromDisk(key, now);
+        if (response == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        diskHits.incrementAndGet();
+        return response;
+    }
+
+    /**
+     * Stores the Response of a text request. Responses read without their raw JSON are not cached.
+     * @param token The token of the request
+     * @param language The language of the request
+     * @param text The text of the request
+     * @param response The Response to cache
+     */
+    public void put(String token, String language, String text, Response response) {
+        if (response.getRawSize() == 0) {
+            return;
+        }
+        String key = key(token, language, text);
+        Entry entry = new Entry(response, System.currentTimeMillis() + ttl);
+
+        synchronized (this) {
+            checkVersion(response.getVersion());
+            store(key, entry);
+        }
+        this.scheduleWrite(key, entry);
+    }
+
+    private void checkVersion(String responseVersion) {
+        if (responseVersion == null || responseVersion.equals(this.version)) {
+            return;
+        }
+        if (this.version != null) {
+            clear();
+        }
+        this.version = responseVersion;
+    }
+
+    private void store(String key, Entry entry) {
+        if (entry.size > maxBytes) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+        bytes += entry.size;
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().getValue().size;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.size;
+        }
+    }
+
+    private File fileFor(String key) {
+        return new File(directory, Integer.toHexString(key.hashCode()) + "-" + key.length() + ".json.gz");
+    }
+
+    private Response readFromDisk(String key, long now) {
+        if (directory == null) {
+            return null;
+        }
+        File file = fileFor(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        Entry entry = null;
+        try {
+            DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() == DISK_FORMAT_VERSION && readString(in).equals(key)) {
+                    long expiresAt = in.readLong();
+                    String entryVersion = readString(in);
+                    byte[] raw = new byte[in.readInt()];
+                    in.readFully(raw);
+                    synchronized (this) {
+                        if (expiresAt > now && (this.version == null || this.version.equals(entryVersion))) {
+                            entry = new Entry(new Response(new String(raw, "UTF-8")), expiresAt);
+                            checkVersion(entryVersion);
+                            store(key, entry);
+                        }
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException | SapcaiException e) {
+            entry = null;
+        }
+        if (entry == null) {
+            this.deleteFile(file);
+            return null;
+        }
+        synchronized (this.diskLock) {
+            // a hit makes the file the most recently used
+            this.diskFiles().get(file.getName());
+        }
+        return entry.response;
+    }
+
+    private void scheduleWrite(final String key, final Entry entry) {
+        if (this.writer == null) {
+            return;
+        }
+        this.writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeToDisk(key, entry);
+            }
+        });
+    }
+
+    /**
+     * Waits until the entries put so far are on disk
+     */
+    void awaitWrites() {
+        if (this.writer == null) {
+            return;
+        }
+        FutureTask<Void> barrier = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {}
+        }, null);
+        this.writer.execute(barrier);
+        try {
+            barrier.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ignore) {}
+    }
+
+    private void writeToDisk(String key, Entry entry) {
+        if (directory == null) {
+            return;
+        }
+        File file = fileFor(key);
+        File tmp = new File(directory, file.getName() + ".tmp");
+        try {
+            byte[] raw = entry.response.getRaw().getBytes("UTF-8");
+            DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(DISK_FORMAT_VERSION);
+                writeString(out, key);
+                out.writeLong(entry.expiresAt);
+                writeString(out, entry.response.getVersion() == null ? "" : entry.response.getVersion());
+                out.writeInt(raw.length);
+                out.write(raw);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            return;
+        }
+        this.onFileWritten(file);
+    }
+
+    /**
+     * Strings are written as their length and their UTF-8 bytes, unlike writeUTF which is limited to 64 KB
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid cache entry");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Lists the files of the disk tier the first time it is needed, the oldest first
+     */
+    private LinkedHashMap<String, Long> diskFiles() {
+        if (this.diskFiles == null) {
+            this.diskFiles = new LinkedHashMap<>(16, 0.75f, true);
+            File[] files = this.directory.listFiles();
+            if (files != null) {
+                Arrays.sort(files, new Comparator<File>() {
+                    @Override
+                    public int compare(File a, File b) {
+                        return Long.compare(a.lastModified(), b.lastModified());
+                    }
+                });
+                for (File f : files) {
+                    if (f.getName().endsWith(".json.gz")) {
+                        this.diskFiles.put(f.getName(), f.length());
+                        this.diskBytes += f.length();
+                    }
+                }
+            }
+        }
+        return this.diskFiles;
+    }
+
+    private void onFileWritten(File file) {
+        synchronized (this.diskLock) {
+            LinkedHashMap<String, Long> files = this.diskFiles();
+            Long previous = files.put(file.getName(), file.length());
+            this.diskBytes += file.length() - (previous == null ? 0 : previous);
+
+            Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+            while (this.diskBytes > this.maxDiskBytes && it.hasNext()) {
+                Map.Entry<String, Long> oldest = it.next();
+                new File(this.directory, oldest.getKey()).delete();
+                this.diskBytes -= oldest.getValue();
+                it.remove();
+                this.diskEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void deleteFile(File file) {
+        synchronized (this.diskLock) {
+            file.delete();
+            Long size = this.diskFiles().remove(file.getName());
+            if (size != null) {
+                this.diskBytes -= size;
+            }
+        }
+    }
+
+    /**
+     * Drops every entry, in memory and on disk
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+        if (directory != null) {
+            synchronized (this.diskLock) {
+                File[] files = directory.listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        if (f.getName().endsWith(".json.gz") || f.getName().endsWith(".json.gz.tmp")) {
+                            f.delete();
+                        }
+                    }
+                }
+                this.diskFiles = null;
+                this.diskBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of requests answered from memory
+     * @return The number of memory hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests answered from the disk tier
+     * @return The number of disk hits
+     */
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    /**
+     * Returns the number of requests which were not cached
+     * @return The number of misses
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of entries dropped from memory to stay under the size budget
+     * @return The number of evictions
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of files deleted from the disk tier to stay under its size budget
+     * @return The number of disk evictions
+     */
+    public long getDiskEvictionCount() {
+        return diskEvictions.get();
+    }
+
+    /**
+     * Returns the size in bytes of the files of the disk tier, or 0 for a memory only cache
+     * @return The size of the disk tier
+     */
+    public long getDiskBytes() {
+        if (directory == null) {
+            return 0;
+        }
+        synchronized (this.diskLock) {
+            this.diskFiles();
+            return this.diskBytes;
+        }
+    }
+
+    /**
+     * Returns the number of entries in memory
+     * @return The number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the estimated size in bytes of the entries in memory
+     * @return The estimated size of the memory tier
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,151 @@
+package ai.sapcai.sdk_android;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The RetryPolicy class tells an HttpTransport how to retry failed requests and when to hedge slow ones.
+ * A request is retried when it fails with a retryable status (503 by default) or an I/O error, waiting an
+ * exponential backoff with full jitter between attempts. Only idempotent requests are retried: the text and
+ * file requests and the memory PUT and DELETE calls, but not the converse POST unless setRetryNonIdempotent is set.
+ * With hedging enabled, an idempotent request which has not answered once the given latency percentile of its
+ * endpoint is elapsed is sent a second time, and the first answer wins.
+ *
+ * @see HttpTransport#setRetryPolicy(RetryPolicy)
+ */
+public class RetryPolicy {
+    public static final int     DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long    DEFAULT_BASE_DELAY = 100;
+    public static final long    DEFAULT_MAX_DELAY = 2000;
+
+    private int         maxAttempts;
+    private long        baseDelay;
+    private long        maxDelay;
+    private int[]       retryableStatuses;
+    private boolean     retryNonIdempotent;
+    private double      hedgePercentile;
+    private long        minHedgeDelay;
+
+    /**
+     * Initialize a policy with DEFAULT_MAX_ATTEMPTS attempts and the default delays, without hedging
+     */
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Initialize a policy without hedging
+     * @param maxAttempts The maximum number of attempts of a request, including the first one
+     * @param baseDelay The delay in milliseconds before the first retry, doubled at each retry
+     * @param maxDelay The maximum delay in milliseconds between two attempts
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.retryableStatuses = new int[] {503};
+        this.retryNonIdempotent = false;
+        this.hedgePercentile = 0;
+        this.minHedgeDelay = 0;
+    }
+
+    /**
+     * Returns the delay to wait before the given retry: a random duration between 0 and
+     * baseDelay * 2^(retry - 1), capped to maxDelay
+     * @param retry The number of the retry, starting at 1
+     * @return The delay in milliseconds
+     */
+    long backoff(int retry) {
+        long ceiling = baseDelay << Math.min(retry - 1, 30);
+        if (ceiling <= 0 || ceiling > maxDelay) {
+            ceiling = maxDelay;
+        }
+        return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    boolean isRetryable(SapcaiException e) {
+        if (e.getCause() instanceof IOException) {
+            return true;
+        }
+        for (int status : retryableStatuses) {
+            if (e.getStatusCode() == status) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    public void setBaseDelay(long baseDelay) {
+        this.baseDelay = baseDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    public int[] getRetryableStatuses() {
+        return Arrays.copyOf(retryableStatuses, retryableStatuses.length);
+    }
+
+    /**
+     * Sets the HTTP statuses which make a request retried. I/O errors are always retried.
+     * @param retryableStatuses The retryable statuses, 503 by default
+     */
+    public void setRetryableStatuses(int... retryableStatuses) {
+        this.retryableStatuses = Arrays.copyOf(retryableStatuses, retryableStatuses.length);
+    }
+
+    public boolean isRetryNonIdempotent() {
+        return retryNonIdempotent;
+    }
+
+    /**
+     * Allows retrying and hedging the converse POST, which may then be processed twice by the bot
+     * @param retryNonIdempotent true to retry non idempotent requests too
+     */
+    public void setRetryNonIdempotent(boolean retryNonIdempotent) {
+        this.retryNonIdempotent = retryNonIdempotent;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Enables hedging: a second request is sent when the first one is slower than this percentile
+     * of the recent latencies of its endpoint
+     * @param hedgePercentile The percentile, between 0 and 1 (0.95 for instance), or 0 to disable hedging
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public long getMinHedgeDelay() {
+        return minHedgeDelay;
+    }
+
+    /**
+     * Sets the minimum delay in milliseconds before a hedged request is sent, whatever the observed latencies
+     * @param minHedgeDelay The minimum delay
+     */
+    public void setMinHedgeDelay(long minHedgeDelay) {
+        this.minHedgeDelay = minHedgeDelay;
+    }
+}
@@ -23,7 +23,10 @@ public class SapcaiException extends RuntimeException {
         Map<Integer, String> errorMessages = new HashMap<>();
         errorMessages.put(400, "400: Bad request");
         errorMessages.put(415, "415: Unsupported media type");
+        errorMessages.put(429, "429: Too many requests");
+        errorMessages.put(502, "502: Bad gateway");
         errorMessages.put(503, "503: Service unavailable");
+        errorMessages.put(504, "504: Gateway timeout");
         errorMessages.put(401, "401: Unauthorized");
         return errorMessages.get(statusCode);
     }
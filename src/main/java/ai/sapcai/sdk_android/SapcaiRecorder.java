@@ -6,8 +6,11 @@ import android.media.AudioRecord;
 import android.media.MediaRecorder;
 import android.util.Log;
 
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 
 class SapcaiRecorder {
@@ -24,9 +27,38 @@ class SapcaiRecorder {
    private int mSize;
    private byte[] mBuffer;
    private RandomAccessFile mFileWriter;
+   private OutputStream mStream;
 
    SapcaiRecorder (String file) throws SapcaiException {
        mFilepath = file;
+       init();
+       try {
+           this.initOutputFile();
+       } catch (IOException e) {
+           throw new SapcaiException("Unable to open output file for recording");
+       }
+   }
+
+   /**
+    * Streams the recording instead of writing it to a file: the WAV header is written with
+    * unknown sizes (0xFFFFFFFF) since they cannot be patched afterwards, then the PCM data is
+    * written to the stream as soon as it is captured. The stream is closed by stopRecording.
+    * It is written from the thread of the AudioRecord listener, usually the main one, so it must never block: see AudioPipe.
+    */
+   SapcaiRecorder (OutputStream stream) throws SapcaiException {
+       mStream = stream;
+       init();
+       try {
+           DataOutputStream header = new DataOutputStream(mStream);
+           writeWavHeader(header, -1);
+           header.flush();
+       } catch (IOException e) {
+           throw new SapcaiException("Unable to open output stream for recording");
+       }
+       mBuffer = new byte[mFramePeriod * 16 / 8 * 1];
+   }
+
+   private void init() throws SapcaiException {
        mSize = 0;
 
        mFramePeriod = SAMPLE_RATE * 120 / 1000;
@@ -49,11 +81,6 @@ class SapcaiRecorder {
            throw new SapcaiException("Record initialization failed");
        }
        mBuffer = new byte[mBufferSize];
-       try {
-           this.initOutputFile();
-       } catch (IOException e) {
-           throw new SapcaiException("Unable to open output file for recording");
-       }
 
        AudioRecord.OnRecordPositionUpdateListener updater = new AudioRecord.OnRecordPositionUpdateListener() {
            @Override
@@ -66,7 +93,13 @@ class SapcaiRecorder {
                try {
                    int read = recorder.read(mBuffer, 0, mBuffer.length);
                    mSize += read;
-                   mFileWriter.write(mBuffer);
+                   if (mStream != null) {
+                       if (read > 0) {
+                           mStream.write(mBuffer, 0, read);
+                       }
+                   } else {
+                       mFileWriter.write(mBuffer);
+                   }
                } catch (IOException e) {
                    Log.w(TAG, "An error occured while reading audio input, aborting");
                    done();
@@ -89,22 +122,26 @@ class SapcaiRecorder {
        //WAV audio header
        mFileWriter = new RandomAccessFile(mFilepath, "rw");
        mFileWriter.setLength(0);
-               mFileWriter.writeBytes("RIFF");
-               mFileWriter.writeInt(0);
-               mFileWriter.writeBytes("WAVE");
-               mFileWriter.writeBytes("fmt ");
-               mFileWriter.writeInt(Integer.reverseBytes(16)); // Sub-chunk size, 16 for PCM
-               mFileWriter.writeShort(Short.reverseBytes((short) 1)); // AudioFormat, 1 for PCM
-               mFileWriter.writeShort(Short.reverseBytes((short)1));// Number of channels, 1 for mono, 2 for stereo
-               mFileWriter.writeInt(Integer.reverseBytes(SAMPLE_RATE)); // Sample rate
-               mFileWriter.writeInt(Integer.reverseBytes(SAMPLE_RATE * 16 * 1 / 8)); // Byte rate, SampleRate*NumberOfChannels*BitsPerSample/8
-               mFileWriter.writeShort(Short.reverseBytes((short) (CHANNELS * 16 / 8))); // Block align, NumberOfChannels*BitsPerSample/8
-               mFileWriter.writeShort(Short.reverseBytes((short)16)); // Bits per sample
-               mFileWriter.writeBytes("data");
-               mFileWriter.writeInt(0); // Data chunk size not known yet, write 0
+       writeWavHeader(mFileWriter, 0); // Data chunk size not known yet, write 0
        mBuffer = new byte[mFramePeriod * 16 / 8 * 1];
    }
 
+   private static void writeWavHeader(DataOutput out, int chunkSize) throws IOException {
+               out.writeBytes("RIFF");
+               out.writeInt(chunkSize);
+               out.writeBytes("WAVE");
+               out.writeBytes("fmt ");
+               out.writeInt(Integer.reverseBytes(16)); // Sub-chunk size, 16 for PCM
+               out.writeShort(Short.reverseBytes((short) 1)); // AudioFormat, 1 for PCM
+               out.writeShort(Short.reverseBytes((short)1));// Number of channels, 1 for mono, 2 for stereo
+               out.writeInt(Integer.reverseBytes(SAMPLE_RATE)); // Sample rate
+               out.writeInt(Integer.reverseBytes(SAMPLE_RATE * 16 * 1 / 8)); // Byte rate, SampleRate*NumberOfChannels*BitsPerSample/8
+               out.writeShort(Short.reverseBytes((short) (CHANNELS * 16 / 8))); // Block align, NumberOfChannels*BitsPerSample/8
+               out.writeShort(Short.reverseBytes((short)16)); // Bits per sample
+               out.writeBytes("data");
+               out.writeInt(chunkSize);
+   }
+
    public void done() {
        if (mRecorder != null) {
            mRecorder.stop();
@@ -123,6 +160,10 @@ class SapcaiRecorder {
    public void stopRecording() throws IOException {
        mRecording = false;
        done();
+       if (mStream != null) {
+           mStream.close();
+           return;
+       }
        mFileWriter.seek(4);
        mFileWriter.writeInt(Integer.reverseBytes(36 + mSize));
        mFileWriter.seek(40);
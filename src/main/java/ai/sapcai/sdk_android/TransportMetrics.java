@@ -0,0 +1,88 @@
+package ai.sapcai.sdk_android;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The TransportMetrics class counts the bytes sent and received by an HttpTransport, before and after compression,
+ * to tell how much gzip saves on the wire.
+ *
+ * @see HttpTransport#getMetrics()
+ */
+public class TransportMetrics {
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong requestBodyBytes = new AtomicLong();
+    private final AtomicLong requestWireBytes = new AtomicLong();
+    private final AtomicLong responseBodyBytes = new AtomicLong();
+    private final AtomicLong responseWireBytes = new AtomicLong();
+
+    void onRequest(long bodyBytes, long wireBytes) {
+        requests.incrementAndGet();
+        if (bodyBytes >= 0 && wireBytes >= 0) {
+            requestBodyBytes.addAndGet(bodyBytes);
+            requestWireBytes.addAndGet(wireBytes);
+        }
+    }
+
+    void onResponse(long bodyBytes, long wireBytes) {
+        responseBodyBytes.addAndGet(bodyBytes);
+        responseWireBytes.addAndGet(wireBytes);
+    }
+
+    /**
+     * Returns the number of requests sent
+     * @return The number of requests
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the size of the request bodies before compression. Streamed bodies of unknown length are not counted.
+     * @return The number of bytes
+     */
+    public long getRequestBodyBytes() {
+        return requestBodyBytes.get();
+    }
+
+    /**
+     * Returns the size of the request bodies as sent on the wire
+     * @return The number of bytes
+     */
+    public long getRequestWireBytes() {
+        return requestWireBytes.get();
+    }
+
+    /**
+     * Returns the size of the response bodies once decompressed
+     * @return The number of bytes
+     */
+    public long getResponseBodyBytes() {
+        return responseBodyBytes.get();
+    }
+
+    /**
+     * Returns the size of the response bodies as received on the wire
+     * @return The number of bytes
+     */
+    public long getResponseWireBytes() {
+        return responseWireBytes.get();
+    }
+
+    /**
+     * Returns the size on the wire of the request bodies divided by their uncompressed size
+     * @return The compression ratio of the requests, 1 when nothing was compressed
+     */
+    public double getRequestCompressionRatio() {
+        long body = requestBodyBytes.get();
+        return body == 0 ? 1 : (double) requestWireBytes.get() / body;
+    }
+
+    /**
+     * Returns the size on the wire of the response bodies divided by their uncompressed size
+     * @return The compression ratio of the responses, 1 when nothing was compressed
+     */
+    public double getResponseCompressionRatio() {
+        long body = responseBodyBytes.get();
+        return body == 0 ? 1 : (double) responseWireBytes.get() / body;
+    }
+}
@@ -8,6 +8,47 @@ import org.mockito.exceptions.misusing.UnfinishedStubbingException;
 import org.mockito.runners.MockitoJUnitRunner;
 import static org.junit.Assert.*;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+
 @RunWith(MockitoJUnitRunner.class)
 public class SdkTests {
     static final String FAKE_JSON = "{" +
@@ -65,6 +106,12 @@ public class SdkTests {
             "   \"message\": \"Requests rendered with success\"" +
             "}";
 
+    static final String CONVERSE_JSON = "{\"results\": {\"source\": \"Hello\", \"replies\": [\"Hi\", \"!\"]," +
+            " \"action\": {\"slug\": \"greetings\", \"done\": true, \"reply\": \"Hi\"}, \"next_actions\": []," +
+            " \"memory\": {\"city\": null}, \"entities\": {}, \"intents\": [], \"sentiment\": \"neutral\"," +
+            " \"conversation_token\": \"c1\", \"language\": \"en\", \"processing_language\": \"en\"," +
+            " \"version\": \"2.0.0\", \"timestamp\": \"\", \"uuid\": \"u1\", \"status\": 200}}";
+
     static final String INVALID_JSON = "{" +
             "},";
     @Mock
@@ -144,4 +191,1294 @@ public class SdkTests {
         assertTrue(i.getConfidence() == 0.88);
         assertTrue(i.getName().equals("weather"));
     }
+
+    @Test
+    public void testResponseCache() {
+        ResponseCache cache = new ResponseCache(1 << 20, 60000);
+        Response r = new Response(FAKE_JSON);
+
+        cache.put("token", "en", "  What is the   weather ", r);
+        assertTrue(cache.get("token", "en", "What is the weather") == r);
+        assertTrue(cache.get("token", "fr", "What is the weather") == null);
+        assertTrue(cache.get("other", "en", "What is the weather") == null);
+        assertTrue(cache.getHitCount() == 1);
+        assertTrue(cache.getMissCount() == 2);
+
+        ResponseCache tiny = new ResponseCache(2 * FAKE_JSON.length() + 100, 60000);
+        tiny.put("token", "en", "one", r);
+        tiny.put("token", "en", "two", r);
+        assertTrue(tiny.size() == 1);
+        assertTrue(tiny.get("token", "en", "one") == null);
+        assertTrue(tiny.getEvictionCount() == 1);
+
+        ResponseCache expired = new ResponseCache(1 << 20, -1);
+        expired.put("token", "en", "one", r);
+        assertTrue(expired.get("token", "en", "one") == null);
+    }
+
+    @Test
+    public void testResponseCacheDisk() throws Exception {
+        File directory = File.createTempFile("sapcai", ".cache");
+        directory.delete();
+        Response r = new Response(FAKE_JSON);
+        StringBuilder longText = new StringBuilder();
+        while (longText.length() < 70000) {
+            longText.append("What is the weather in London tomorrow? ");
+        }
+
+        ResponseCache cache = new ResponseCache(1 << 20, 60000, directory, 3000);
+        cache.put("token", "en", longText.toString(), r);
+        cache.awaitWrites();
+        ResponseCache restarted = new ResponseCache(1 << 20, 60000, directory, 3000);
+        assertTrue(restarted.get("token", "en", longText.toString()).getRaw().equals(FAKE_JSON));
+        assertTrue(restarted.getDiskHitCount() == 1);
+
+        // the disk tier stays under its budget by deleting the least recently used files
+        for (int i = 0; i < 20; i++) {
+            cache.put("token", "en", "text " + i, r);
+        }
+        cache.awaitWrites();
+        assertTrue(cache.getDiskBytes() <= 3000);
+        assertTrue(cache.getDiskEvictionCount() > 0);
+        long files = 0;
+        for (File f : directory.listFiles()) {
+            files += f.length();
+        }
+        assertTrue(files <= 3000);
+        restarted = new ResponseCache(1 << 20, 60000, directory, 3000);
+        assertTrue(restarted.get("token", "en", "text 19") != null);
+        assertTrue(restarted.get("token", "en", "text 0") == null);
+
+        cache.clear();
+        assertTrue(cache.getDiskBytes() == 0);
+        assertTrue(directory.listFiles().length == 0);
+        directory.delete();
+    }
+
+    @Test
+    public void testRequestCoalescing() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final Response r = new Response(FAKE_JSON);
+        final CountDownLatch sent = new CountDownLatch(1);
+        final CountDownLatch answered = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Response[] results = new Response[2];
+
+        Thread leader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                results[0] = coalescer.execute("token", "en", "hello", new Supplier<Response>() {
+                    @Override
+                    public Response get() {
+                        calls.incrementAndGet();
+                        sent.countDown();
+                        try {
+                            answered.await();
+                        } catch (InterruptedException ignore) {}
+                        return r;
+                    }
+                });
+            }
+        });
+        leader.start();
+        sent.await();
+
+        Thread follower = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                results[1] = coalescer.execute("token", "en", "hello", new Supplier<Response>() {
+                    @Override
+                    public Response get() {
+                        calls.incrementAndGet();
+                        return null;
+                    }
+                });
+            }
+        });
+        follower.start();
+        while (follower.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        answered.countDown();
+        leader.join();
+        follower.join();
+
+        assertTrue(calls.get() == 1);
+        assertTrue(results[0] == r);
+        assertTrue(results[1] == r);
+        assertTrue(coalescer.inFlightCount() == 0);
+
+        // requests built with other settings are not shared, and an Error of the leader releases its followers
+        final CountDownLatch failing = new CountDownLatch(1);
+        final CountDownLatch fail = new CountDownLatch(1);
+        final Throwable[] errors = new Throwable[2];
+        Thread failingLeader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    coalescer.execute("token", "en", "hello", "lazy", new Supplier<Response>() {
+                        @Override
+                        public Response get() {
+                            failing.countDown();
+                            try {
+                                fail.await();
+                            } catch (InterruptedException ignore) {}
+                            throw new StackOverflowError();
+                        }
+                    });
+                } catch (Throwable e) {
+                    errors[0] = e;
+                }
+            }
+        });
+        failingLeader.start();
+        failing.await();
+        assertTrue(coalescer.execute("token", "en", "hello", "eager", new Supplier<Response>() {
+            @Override
+            public Response get() {
+                return r;
+            }
+        }) == r);
+        Thread failingFollower = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    coalescer.execute("token", "en", "hello", "lazy", new Supplier<Response>() {
+                        @Override
+                        public Response get() {
+                            return r;
+                        }
+                    });
+                } catch (Throwable e) {
+                    errors[1] = e;
+                }
+            }
+        });
+        failingFollower.start();
+        while (failingFollower.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        fail.countDown();
+        failingLeader.join();
+        failingFollower.join(5000);
+        assertFalse(failingFollower.isAlive());
+        assertTrue(errors[0] instanceof StackOverflowError);
+        assertTrue(errors[1] instanceof SapcaiException && errors[1].getCause() instanceof StackOverflowError);
+        assertTrue(coalescer.inFlightCount() == 0);
+        HttpTransport first = new HttpTransport(new LoopbackConnector());
+        HttpTransport second = new HttpTransport(new LoopbackConnector());
+        assertTrue(first.getCoalescer() != second.getCoalescer());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void testRetryPolicy() {
+        RetryPolicy policy = new RetryPolicy(4, 100, 250);
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(policy.backoff(1) <= 100);
+            assertTrue(policy.backoff(3) <= 250);
+            assertTrue(policy.backoff(40) >= 0);
+        }
+        assertTrue(policy.isRetryable(new SapcaiException(503)));
+        assertFalse(policy.isRetryable(new SapcaiException(401)));
+        assertTrue(policy.isRetryable(new SapcaiException("Unable to read response", new java.io.IOException())));
+
+        LatencyTracker tracker = new LatencyTracker();
+        assertTrue(tracker.percentile(0.95) == -1);
+        for (int i = 1; i <= 100; i++) {
+            tracker.record(i);
+        }
+        assertTrue(tracker.percentile(0.95) == 95);
+        assertTrue(tracker.percentile(0.5) == 50);
+    }
+
+    @Test
+    public void testRateLimiter() {
+        RateLimiter limiter = new RateLimiter(1, 3, RateLimiter.Mode.FAIL_FAST, 0);
+
+        assertTrue(limiter.tryAcquire("token"));
+        assertTrue(limiter.tryAcquire("token"));
+        assertTrue(limiter.tryAcquire("token"));
+        assertFalse(limiter.tryAcquire("token"));
+        assertTrue(limiter.tryAcquire("other"));
+        try {
+            limiter.acquire("token");
+            fail();
+        } catch (SapcaiException e) {
+            assertTrue(limiter.getRejectedCount() == 1);
+        }
+
+        RateLimiter fast = new RateLimiter(1000, 1);
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            fast.acquire("token");
+        }
+        assertTrue(System.nanoTime() - start >= 15000000L);
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        final List<CircuitBreaker.State> transitions = new ArrayList<>();
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setMinimumCalls(4);
+        breaker.setOpenDuration(10);
+        breaker.setProbes(1);
+        breaker.addListener(new CircuitBreaker.Listener() {
+            @Override
+            public void onStateChange(String endpoint, CircuitBreaker.State from, CircuitBreaker.State to) {
+                transitions.add(to);
+            }
+        });
+
+        String endpoint = "https://api.cai.tools.sap/v2/request";
+        for (int i = 0; i < 4; i++) {
+            breaker.allow(endpoint);
+            breaker.onError(endpoint, new SapcaiException(503), 10);
+        }
+        assertTrue(breaker.getState(endpoint) == CircuitBreaker.State.OPEN);
+        assertTrue(breaker.getState("https://api.cai.tools.sap/v2/converse") == CircuitBreaker.State.CLOSED);
+        try {
+            breaker.allow(endpoint);
+            fail();
+        } catch (CircuitOpenException e) {
+            assertTrue(e.getEndpoint().equals(endpoint));
+        }
+
+        Thread.sleep(20);
+        breaker.allow(endpoint);
+        assertTrue(breaker.getState(endpoint) == CircuitBreaker.State.HALF_OPEN);
+        breaker.onSuccess(endpoint, 10);
+        assertTrue(breaker.getState(endpoint) == CircuitBreaker.State.CLOSED);
+        assertTrue(transitions.equals(Arrays.asList(CircuitBreaker.State.OPEN, CircuitBreaker.State.HALF_OPEN, CircuitBreaker.State.CLOSED)));
+
+        // a probe failing with another RuntimeException than a SapcaiException gives its slot back
+        final AtomicInteger calls = new AtomicInteger();
+        ScriptedConnector connector = new ScriptedConnector() {
+            @Override
+            int status(String method, String path, String body) {
+                int call = calls.incrementAndGet();
+                if (call == 5) {
+                    throw new IllegalStateException("Connector bug");
+                }
+                return call < 5 ? 503 : 200;
+            }
+        };
+        HttpTransport transport = new HttpTransport(connector);
+        breaker = new CircuitBreaker();
+        breaker.setMinimumCalls(4);
+        breaker.setOpenDuration(10);
+        breaker.setProbes(1);
+        transport.setCircuitBreaker(breaker);
+        Client client = new Client("token", "en");
+        client.setTransport(transport);
+        for (int i = 0; i < 4; i++) {
+            try {
+                client.textRequest("Hello");
+                fail();
+            } catch (SapcaiException expected) {}
+        }
+        endpoint = transport.getRequestUrl();
+        assertTrue(breaker.getState(endpoint) == CircuitBreaker.State.OPEN);
+        Thread.sleep(20);
+        try {
+            client.textRequest("Hello");
+            fail();
+        } catch (IllegalStateException expected) {}
+        assertTrue(client.textRequest("Hello").getStatus() == 200);
+        assertTrue(breaker.getState(endpoint) == CircuitBreaker.State.CLOSED);
+        transport.close();
+
+        // file requests keep the status of a failure and do not wrap an open circuit
+        connector = new ScriptedConnector() {
+            @Override
+            int status(String method, String path, String body) {
+                return 503;
+            }
+        };
+        transport = new HttpTransport(connector);
+        breaker = new CircuitBreaker();
+        breaker.setMinimumCalls(2);
+        breaker.setOpenDuration(60000);
+        transport.setCircuitBreaker(breaker);
+        client.setTransport(transport);
+        Request request = new Request("token", "en");
+        request.setTransport(transport);
+        File audio = File.createTempFile("sapcai", ".wav");
+        FileOutputStream out = new FileOutputStream(audio);
+        out.write(new byte[64]);
+        out.close();
+        try {
+            client.fileRequest(audio.getPath());
+            fail();
+        } catch (SapcaiException e) {
+            assertTrue(e.getStatusCode() == 503);
+        }
+        try {
+            request.doFileRequest(audio.getPath());
+            fail();
+        } catch (SapcaiException e) {
+            assertTrue(e.getStatusCode() == 503);
+        }
+        try {
+            client.fileRequest(audio.getPath());
+            fail();
+        } catch (CircuitOpenException expected) {}
+        try {
+            request.doFileRequest(audio.getPath());
+            fail();
+        } catch (CircuitOpenException expected) {}
+        assertTrue(connector.requests.get() == 2);
+        audio.delete();
+        transport.close();
+    }
+
+    @Test
+    public void testStreamingResponse() throws Exception {
+        Response tree = new Response(FAKE_JSON);
+        Response streamed = Response.read(new JsonPullParser(new StringReader(FAKE_JSON)), null, false);
+        assertTrue(streamed.getRaw() == null);
+        assertTrue(streamed.getSource().equals(tree.getSource()));
+        assertTrue(streamed.getStatus() == tree.getStatus());
+        assertTrue(streamed.getAct().equals(tree.getAct()));
+        assertTrue(streamed.getIntents().length == tree.getIntents().length);
+        assertTrue(streamed.getEntities("location").length == tree.getEntities("location").length);
+
+        byte[] body = FAKE_JSON.getBytes(StandardCharsets.UTF_8);
+        Response kept = Response.bodyReader(Response.RawRetention.STRING, false).read(new ByteArrayInputStream(body), body.length, 0);
+        assertTrue(kept.getRaw().equals(FAKE_JSON));
+        assertTrue(kept.getUuid().equals(tree.getUuid()));
+
+        try {
+            Response.read(new JsonPullParser(new StringReader("{\"results\": {}}")), null, false);
+            fail();
+        } catch (SapcaiException e) {
+            assertTrue(e.getMessage().equals("Invalid JSON"));
+        }
+    }
+
+    @Test
+    public void testMalformedJson() throws Exception {
+        String[] malformed = {"{\"a\": tru}", "{\"a\": nul}", "{\"a\": 12x}", "{\"a\": 01}", "{\"a\": -}",
+                "{\"a\": 1}x", "{}{}", "{\"a\": 1"};
+        for (String json : malformed) {
+            JsonPullParser parser = new JsonPullParser(new StringReader(json));
+            try {
+                parser.nextValue();
+                parser.endDocument();
+                fail(json);
+            } catch (SapcaiException e) {
+                assertTrue(e.getMessage().startsWith("Invalid JSON: "));
+                assertTrue(!(e.getCause() instanceof IOException));
+            }
+        }
+        JsonPullParser valid = new JsonPullParser(new StringReader(" {\"a\": [true, false, null, -0.5e+3, 10]} \n"));
+        assertTrue(valid.nextValue() instanceof Map);
+        valid.endDocument();
+
+        // a malformed body is neither retried, nor journaled, nor counted as a failure of the endpoint
+        ScriptedConnector connector = new ScriptedConnector() {
+            @Override
+            String payload(String method, String path, String body) {
+                return FAKE_JSON + "x";
+            }
+        };
+        HttpTransport transport = new HttpTransport(connector);
+        RetryPolicy policy = new RetryPolicy(3, 1, 5);
+        transport.setRetryPolicy(policy);
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setMinimumCalls(4);
+        transport.setCircuitBreaker(breaker);
+        File file = File.createTempFile("sapcai", ".journal");
+        RequestJournal journal = new RequestJournal(file);
+        journal.setRetryDelays(3600 * 1000, 3600 * 1000);
+        Client client = new Client("token", "en");
+        client.setTransport(transport);
+        client.setJournal(journal);
+        for (int i = 0; i < 20; i++) {
+            try {
+                client.textRequest("Hello");
+                fail();
+            } catch (SapcaiException e) {
+                assertTrue(e.getMessage().startsWith("Invalid JSON: "));
+                assertTrue(!policy.isRetryable(e));
+            }
+        }
+        assertTrue(connector.requests.get() == 20);
+        assertTrue(journal.getPendingCount() == 0);
+        assertTrue(breaker.getState(transport.getRequestUrl()) == CircuitBreaker.State.CLOSED);
+        journal.close();
+        file.delete();
+        transport.close();
+    }
+
+    @Test
+    public void testLazyResponse() throws Exception {
+        Response lazy = Response.read(new JsonPullParser(new StringReader(FAKE_JSON)), null, true);
+        assertTrue(lazy.getIntents().length == 1);
+        assertTrue(lazy.isDescription());
+        assertTrue(lazy.getEntities("location").length == 2);
+        assertTrue(lazy.getEntity("location") == lazy.getEntities("location")[0]);
+        assertTrue(lazy.getEntity("datetime").getConfidence() == 0.83);
+        assertTrue(lazy.getEntity("unknown") == null);
+    }
+
+    @Test
+    public void testClassification() {
+        Response r = new Response(FAKE_JSON);
+        assertTrue(r.getActKind() == Response.Act.WH_QUERY);
+        assertTrue(r.getSentimentKind() == Response.Sentiment.NEUTRAL);
+        assertTrue(r.getQuestionType() == Response.QuestionType.DESCRIPTION);
+        assertTrue(Response.QuestionType.fromType("loc:city") == Response.QuestionType.LOCATION);
+        assertTrue(Response.QuestionType.fromType("num:count") == Response.QuestionType.NUMBER);
+        assertTrue(Response.QuestionType.fromType("nothing") == Response.QuestionType.UNKNOWN);
+
+        Response other = new Response(FAKE_JSON);
+        assertTrue(other.getLanguage() == r.getLanguage());
+        assertTrue(other.getIntent().getName() == r.getIntent().getName());
+        assertTrue(other.getEntity("location").getName() == r.getEntity("location").getName());
+    }
+
+    @Test
+    public void testInterner() {
+        Interner interner = new Interner(2);
+        String a = interner.intern(new String("en"));
+        assertTrue(interner.intern(new String("en")) == a);
+        interner.intern("fr");
+        String de = new String("de");
+        assertTrue(interner.intern(de) == de);
+        assertTrue(interner.size() == 2);
+        assertTrue(interner.intern(null) == null);
+    }
+
+    @Test
+    public void testEntityFields() throws Exception {
+        Response tree = new Response(FAKE_JSON);
+        Response streamed = Response.read(new JsonPullParser(new StringReader(FAKE_JSON)), null, false);
+        for (Response r : Arrays.asList(tree, streamed)) {
+            Entity london = r.getEntity("location");
+            assertTrue(london.hasCoordinates());
+            assertTrue(london.getLat() == 51.5073509);
+            assertTrue(london.getLng() == -0.1277583);
+            assertTrue(london.getRaw().equals("London"));
+            assertTrue(london.getString("formated").startsWith("London"));
+            assertTrue(Double.isNaN(london.getDouble("formated")));
+
+            Entity tomorrow = r.getEntity("datetime");
+            assertTrue(tomorrow.getEpoch() == 1468231200000L);
+            assertFalse(tomorrow.hasCoordinates());
+            assertTrue(r.getEntity("action").getEpoch() == Entity.NO_EPOCH);
+            assertTrue(r.getEntity("action").getField("tense").equals("present"));
+            assertTrue(r.getEntity("action").getField("missing") == null);
+        }
+        assertTrue(Entity.parseEpoch("2016-07-11T12:00:00+02:00") == 1468231200000L);
+        assertTrue(Entity.parseEpoch("tomorrow") == Entity.NO_EPOCH);
+
+        // both ways of parsing an entity give it the same fields, of the same types
+        String json = "{\"lat\": \"48.85\", \"lng\": \"east\", \"confidence\": \"0.5\", \"raw\": 75,"
+                + " \"place\": {\"zip\": 75001, \"tags\": [\"city\", null, 1.5, 12345678901]}, \"none\": null}";
+        Entity fromTree = new Entity("location", new JSONObject(json));
+        Entity fromStream = Entity.read("location", new JsonPullParser(new StringReader(json)));
+        for (Entity entity : Arrays.asList(fromTree, fromStream)) {
+            assertTrue(entity.getLat() == 48.85);
+            assertTrue(Double.isNaN(entity.getLng()));
+            assertFalse(entity.hasCoordinates());
+            assertTrue(entity.getConfidence() == 0.5);
+            assertTrue(entity.getRaw().equals("75"));
+            assertTrue(entity.getField("none") == null);
+            Map<?, ?> place = (Map<?, ?>) entity.getField("place");
+            assertTrue(place.get("zip").equals(75001));
+            assertTrue(place.get("tags").equals(Arrays.asList("city", null, 1.5, 12345678901L)));
+        }
+        assertTrue(fromTree.getField("place").equals(fromStream.getField("place")));
+        assertTrue(new HashSet<>(fromTree.getFieldNames()).equals(new HashSet<>(fromStream.getFieldNames())));
+    }
+
+    @Test
+    public void testRawRetention() throws Exception {
+        byte[] body = FAKE_JSON.getBytes(StandardCharsets.UTF_8);
+        for (Response.RawRetention retention : Response.RawRetention.values()) {
+            Response r = Response.bodyReader(retention, false).read(new ByteArrayInputStream(body), -1, 64);
+            assertTrue(r.getUuid().equals("34b3f548-4aaf-4e3a-add1-f8f29f30e7fb"));
+            if (retention == Response.RawRetention.NONE) {
+                assertTrue(r.getRaw() == null);
+                assertTrue(r.getRawSize() == 0);
+            } else {
+                assertTrue(r.getRaw().equals(FAKE_JSON));
+            }
+        }
+        Response bytes = Response.bodyReader(Response.RawRetention.BYTES, false).read(new ByteArrayInputStream(body), body.length, 0);
+        Response compressed = Response.bodyReader(Response.RawRetention.COMPRESSED, false).read(new ByteArrayInputStream(body), body.length, 0);
+        assertTrue(bytes.getRawSize() == body.length);
+        assertTrue(compressed.getRawSize() < bytes.getRawSize());
+
+        // the Content-Length only sizes the buffer: a missing, empty or short one never truncates the body
+        for (long declared : new long[] {-1, 0, 1, body.length / 2, body.length - 1, body.length}) {
+            for (int hint : new int[] {0, 64, body.length * 2}) {
+                assertTrue(Arrays.equals(ResponseBodyReader.readBytes(new ByteArrayInputStream(body), declared, hint), body));
+                assertTrue(HttpTransport.STRING_BODY.read(new ByteArrayInputStream(body), declared, hint).equals(FAKE_JSON));
+                for (Response.RawRetention retention : Response.RawRetention.values()) {
+                    for (boolean lazy : new boolean[] {false, true}) {
+                        Response r = Response.bodyReader(retention, lazy).read(new ByteArrayInputStream(body), declared, hint);
+                        assertTrue(r.getUuid().equals("34b3f548-4aaf-4e3a-add1-f8f29f30e7fb"));
+                        assertTrue(r.getEntities("location").length == 2);
+                        assertTrue(r.getStatus() == 200);
+                        if (retention != Response.RawRetention.NONE) {
+                            assertTrue(r.getRaw().equals(FAKE_JSON));
+                        }
+                    }
+                }
+            }
+        }
+        assertTrue(ResponseBodyReader.readBytes(new ByteArrayInputStream(new byte[0]), 0, 0).length == 0);
+        try {
+            ResponseBodyReader.readBytes(new ByteArrayInputStream(body), body.length + 1, 0);
+            fail();
+        } catch (EOFException expected) {}
+    }
+
+    @Test
+    public void testMemoryDelta() throws Exception {
+        String json = "{\"city\":{\"raw\":\"Paris\",\"value\":\"Paris\",\"confidence\":0.9},\"name\":{\"raw\":\"Paul\",\"value\":\"Paul\",\"confidence\":0.8}}";
+        Memory memory = Memory.read(new JsonPullParser(new StringReader(json)));
+        assertTrue(!memory.isDirty());
+        assertTrue(memory.takeDelta() == null);
+
+        memory.setMemory("city", memory.getEntities().get("name"));
+        memory.setMemory("city", null);
+        memory.removeMemory("name");
+        assertTrue(memory.isDirty());
+        Memory.Delta delta = memory.takeDelta();
+        assertTrue(delta.changes.size() == 2);
+        assertTrue(delta.toJson().equals("{\"city\": null,\"name\": null}"));
+        assertTrue(!memory.isDirty());
+
+        memory.restoreDelta(delta);
+        assertTrue(memory.takeDelta().changes.size() == 2);
+
+        memory.resetMemory();
+        assertTrue(memory.takeDelta().toJson().equals("null"));
+        assertTrue(memory.convertMemory().equals("{}"));
+
+        // a reset then a set in the same window: the reset is sent first, so that the other entries do not survive
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        ScriptedConnector connector = new ScriptedConnector() {
+            @Override
+            int status(String method, String path, String body) {
+                sent.add(body);
+                return 200;
+            }
+        };
+        HttpTransport transport = new HttpTransport(connector);
+        Conversation conversation = new Conversation("token", transport);
+        conversation.setConversationToken("c1");
+        conversation.setMemory(Memory.read(new JsonPullParser(new StringReader(json))));
+        conversation.setAutoFlushWindow(3600 * 1000);
+        conversation.resetMemory();
+        conversation.setMemoryEntity("city", new MemoryEntity("Rome", "rome", 0.9));
+        conversation.flushMemory();
+        assertTrue(sent.size() == 2);
+        assertTrue(sent.get(0).contains("\"memory\":null"));
+        assertTrue(sent.get(1).contains("rome") && !sent.get(1).contains("Paul"));
+
+        // a reset alone is a single request
+        conversation.resetMemory();
+        conversation.flushMemory();
+        assertTrue(sent.size() == 3);
+        assertTrue(sent.get(2).contains("\"memory\":null"));
+        transport.close();
+    }
+
+    @Test
+    public void testRequestJournal() throws Exception {
+        File file = File.createTempFile("sapcai", ".journal");
+        RequestJournal journal = new RequestJournal(file);
+        journal.setRetryDelays(3600 * 1000, 3600 * 1000);
+        journal.addText("token", "en", "Hello");
+        journal.addMemory("token", "c1", false, "{\"city\":null}");
+        journal.addConversationReset("token", "c1");
+        journal.addMemory("token", "c1", false, "{\"city\":{\"raw\":\"Paris\"},\"name\":null}");
+        journal.addMemory("token", "c1", false, "{\"name\":{\"raw\":\"Paul\"}}");
+        journal.close();
+
+        FileOutputStream torn = new FileOutputStream(file, true);
+        torn.write(new byte[] {0, 0, 0, 42, 1, 2});
+        torn.close();
+        journal = new RequestJournal(file);
+        journal.setRetryDelays(3600 * 1000, 3600 * 1000);
+        assertTrue(journal.getPendingCount() == 5);
+        assertTrue(journal.isPending("token", "c1"));
+        assertTrue(!journal.isPending("token", "c2"));
+
+        List<List<RequestJournal.Entry>> plan = RequestJournal.plan(journal.getPendingEntries());
+        assertTrue(plan.size() == 2);
+        assertTrue(plan.get(0).get(0).getText().equals("Hello"));
+        List<RequestJournal.Entry> conversation = plan.get(1);
+        assertTrue(conversation.size() == 2);
+        assertTrue(conversation.get(0).getKind() == RequestJournal.Kind.RESET_CONVERSATION);
+        assertTrue(conversation.get(0).covered.size() == 2);
+        assertTrue(conversation.get(1).getMemory().equals("{\"city\":{\"raw\":\"Paris\"},\"name\":{\"raw\":\"Paul\"}}"));
+        journal.close();
+        file.delete();
+
+        // a memory reset then a set replay as a reset of the memory then the set, so that the old entries are gone
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        ScriptedConnector connector = new ScriptedConnector() {
+            @Override
+            int status(String method, String path, String body) {
+                sent.add(body);
+                return 200;
+            }
+        };
+        HttpTransport transport = new HttpTransport(connector);
+        journal = new RequestJournal(file, transport);
+        journal.setRetryDelays(3600 * 1000, 3600 * 1000);
+        journal.addMemory("token", "c2", false, "{\"city\":{\"raw\":\"Paris\"}}");
+        journal.addMemory("token", "c2", true, "null");
+        journal.addMemory("token", "c2", false, "{\"name\":{\"raw\":\"Paul\"}}");
+        assertTrue(journal.replay().get(5, TimeUnit.SECONDS) == 1);
+        assertTrue(journal.getPendingCount() == 0);
+        assertTrue(sent.size() == 2);
+        assertTrue(sent.get(0).contains("\"memory\":null"));
+        assertTrue(sent.get(1).contains("Paul") && !sent.get(1).contains("Paris"));
+        journal.close();
+        file.delete();
+        transport.close();
+    }
+
+    @Test
+    public void testJournalReplayLimits() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        ScriptedConnector connector = new ScriptedConnector() {
+            @Override
+            int status(String method, String path, String body) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return 503;
+            }
+        };
+        HttpTransport transport = new HttpTransport(connector);
+        File file = File.createTempFile("sapcai", ".journal");
+        RequestJournal journal = new RequestJournal(file, transport);
+        journal.setRetryDelays(3600 * 1000, 3600 * 1000);
+        final Client client = new Client("token", "en");
+        client.setTransport(transport);
+        client.setJournal(journal);
+        client.setRequestCoalescing(true);
+
+        // the callers sharing a coalesced request do not journal it again
+        Thread[] callers = new Thread[5];
+        for (int i = 0; i < callers.length; i++) {
+            callers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        client.textRequest("Hello");
+                    } catch (SapcaiException expected) {}
+                }
+            });
+            callers[i].start();
+            while (i == 0 && connector.requests.get() == 0) {
+                Thread.sleep(1);
+            }
+            while (i > 0 && callers[i].getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+        }
+        release.countDown();
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        assertTrue(connector.requests.get() == 1);
+        assertTrue(journal.getPendingCount() == 1);
+
+        // a request which never gets through is given up after the last attempt
+        final List<SapcaiException> errors = Collections.synchronizedList(new ArrayList<SapcaiException>());
+        journal.setListener(new RequestJournal.Listener() {
+            @Override
+            public void onReplayed(RequestJournal.Entry entry, Response response, SapcaiException error) {
+                errors.add(error);
+            }
+        });
+        journal.setReplayLimits(3, RequestJournal.DEFAULT_MAX_AGE);
+        assertTrue(journal.replay().get(5, TimeUnit.SECONDS) == 0);
+        assertTrue(journal.replay().get(5, TimeUnit.SECONDS) == 0);
+        assertTrue(journal.getPendingCount() == 1);
+        assertTrue(journal.replay().get(5, TimeUnit.SECONDS) == 1);
+        assertTrue(journal.getPendingCount() == 0);
+        assertTrue(errors.size() == 1 && errors.get(0).getStatusCode() == 503);
+        assertTrue(connector.requests.get() == 4);
+
+        // a request older than the maximum age is given up without being sent
+        journal.addText("token", "en", "Too late");
+        journal.setReplayLimits(3, 0);
+        Thread.sleep(5);
+        assertTrue(journal.replay().get(5, TimeUnit.SECONDS) == 1);
+        assertTrue(journal.getPendingCount() == 0);
+        assertTrue(errors.size() == 2 && errors.get(1).getStatusCode() == -1);
+        assertTrue(connector.requests.get() == 4);
+        journal.close();
+        file.delete();
+        transport.close();
+    }
+
+    @Test
+    public void testConversationSnapshot() throws Exception {
+        Conversation conversation = new Conversation("token", HttpTransport.getDefault());
+        conversation.setConversationToken("c1");
+        conversation.setLanguage("en");
+        Map<String, MemoryEntity> entities = new HashMap<>();
+        entities.put("city", new MemoryEntity("Paris", "paris", 0.9));
+        entities.put("name", null);
+        conversation.setMemory(new Memory(entities));
+        conversation.setAction(new Action("greetings", true, "Hello"));
+        conversation.setNextActions(new Action[] {new Action("weather", null, "Where?")});
+
+        File file = File.createTempFile("sapcai", ".snapshot");
+        conversation.saveSnapshot(file);
+        Conversation restored = Conversation.restoreSnapshot(file, "token");
+        file.delete();
+
+        assertTrue(restored.getConversationToken().equals("c1"));
+        assertTrue(restored.getLanguage().equals("en"));
+        assertTrue(restored.getMemory().getEntities().size() == 2);
+        assertTrue(restored.getMemory().getEntities().get("city").getValue().equals("paris"));
+        assertTrue(restored.getMemory().getEntities().get("city").getConfidence() == 0.9);
+        assertTrue(restored.getMemory().getEntities().get("name") == null);
+        assertTrue(!restored.getMemory().isDirty());
+        assertTrue(restored.getAction().getSlug().equals("greetings") && restored.getAction().getDone());
+        assertTrue(restored.getNextActions().length == 1);
+        assertTrue(restored.getNextActions()[0].getDone() == null);
+        assertTrue(restored.getNextActions()[0].getReply().equals("Where?"));
+
+        // values of more than 64 KB, and the memory changes not sent yet
+        StringBuilder huge = new StringBuilder();
+        while (huge.length() < 100000) {
+            huge.append("caf\u00e9 ");
+        }
+        conversation.getMemory().setMemory("notes", new MemoryEntity(huge.toString(), "notes", 0.5));
+        conversation.getMemory().removeMemory("name");
+        conversation.saveSnapshot(file);
+        restored = Conversation.restoreSnapshot(file, "token");
+        file.delete();
+        assertTrue(!new File(file.getPath() + ".tmp").exists());
+        assertTrue(restored.getMemory().getEntities().get("notes").getRaw().equals(huge.toString()));
+        assertTrue(restored.getMemory().isDirty());
+        Memory.Delta delta = restored.getMemory().takeDelta();
+        assertFalse(delta.reset);
+        assertTrue(delta.changes.keySet().equals(new HashSet<>(Arrays.asList("notes", "name"))));
+        assertTrue(delta.changes.get("name") == null);
+
+        conversation.getMemory().resetMemory();
+        conversation.saveSnapshot(file);
+        restored = Conversation.restoreSnapshot(file, "token");
+        file.delete();
+        assertTrue(restored.getMemory().getEntities().isEmpty());
+        assertTrue(restored.getMemory().takeDelta().toJson().equals("null"));
+    }
+
+    @Test
+    public void testLoopbackConnector() throws Exception {
+        LoopbackConnector loopback = new LoopbackConnector();
+        loopback.setGzip(true);
+        loopback.setResponse(HttpTransport.REQUEST_PATH, 200, FAKE_JSON);
+        HttpTransport transport = new HttpTransport(loopback);
+        Client client = new Client("token", "en");
+        client.setTransport(transport);
+
+        Response response = client.textRequest("What is the weather in London tomorrow?");
+        assertTrue(response.getUuid().equals("34b3f548-4aaf-4e3a-add1-f8f29f30e7fb"));
+        assertTrue(response.getRaw().equals(FAKE_JSON));
+        assertTrue(loopback.getRequestCount() == 1);
+        assertTrue(transport.getMetrics().getResponseWireBytes() < transport.getMetrics().getResponseBodyBytes());
+
+        transport.setBaseUrl("http://localhost:8080/");
+        assertTrue(transport.getRequestUrl().equals("http://localhost:8080/v2/request"));
+        loopback.setResponse("POST", HttpTransport.REQUEST_PATH, 503, "{}");
+        try {
+            client.textRequest("Hello");
+            fail();
+        } catch (SapcaiException e) {
+            assertTrue(e.getStatusCode() == 503);
+        }
+        transport.close();
+    }
+
+    @Test
+    public void testBatchTextRequests() throws Exception {
+        ScriptedConnector connector = new ScriptedConnector() {
+            @Override
+            int status(String method, String path, String body) throws IOException {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ignore) {}
+                return text(body).startsWith("fail") ? 500 : 200;
+            }
+
+            @Override
+            String payload(String method, String path, String body) {
+                return FAKE_JSON.replace("What is the weather in London tomorrow? And in Paris?", text(body));
+            }
+        };
+        HttpTransport transport = new HttpTransport(connector);
+        Client client = new Client("token", "en");
+        client.setTransport(transport);
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            texts.add((i % 7 == 3 ? "fail " : "text ") + i);
+        }
+
+        List<BatchResult> results = client.textRequests(texts, new HashMap<String, String>(), 3);
+        assertTrue(results.size() == 20);
+        for (int i = 0; i < 20; i++) {
+            BatchResult result = results.get(i);
+            assertTrue(result.getText().equals(texts.get(i)));
+            if (i % 7 == 3) {
+                assertTrue(!result.isSuccess() && result.getError().getStatusCode() == 500);
+            } else {
+                assertTrue(result.isSuccess() && result.getResponse().getSource().equals(texts.get(i)));
+            }
+        }
+        assertTrue(connector.maxInFlight.get() <= 3);
+        assertTrue(connector.requests.get() == 20);
+
+        // a concurrency above the threads of the executor is lowered to them
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        transport.setExecutor(executor);
+        connector.maxInFlight.set(0);
+        results = client.textRequests(texts, new HashMap<String, String>(), 8);
+        assertTrue(results.size() == 20);
+        assertTrue(connector.maxInFlight.get() <= 2);
+        executor.shutdown();
+        transport.close();
+    }
+
+    @Test
+    public void testAsyncRequests() throws Exception {
+        ScriptedConnector connector = new ScriptedConnector() {
+            @Override
+            int status(String method, String path, String body) {
+                return body.contains("text=fail") ? 503 : 200;
+            }
+        };
+        HttpTransport transport = new HttpTransport(connector);
+        Client client = new Client("token", "en");
+        client.setTransport(transport);
+        Request request = new Request("token", "en");
+        request.setTransport(transport);
+        File audio = File.createTempFile("sapcai", ".wav");
+        FileOutputStream out = new FileOutputStream(audio);
+        out.write(new byte[4096]);
+        out.close();
+
+        assertTrue(client.textRequestAsync("Hello").get().getUuid().equals("34b3f548-4aaf-4e3a-add1-f8f29f30e7fb"));
+        assertTrue(client.fileRequestAsync(audio.getPath()).get().getStatus() == 200);
+        assertTrue(request.doTextRequestAsync("Hello").get().getStatus() == 200);
+        assertTrue(request.doFileRequestAsync(audio.getPath()).get().getStatus() == 200);
+        Conversation conversation = request.doTextConverseAsync("Hello").get();
+        assertTrue(conversation.getConversationToken().equals("c1"));
+        assertTrue(conversation.joinedReplies().equals("Hi!"));
+        try {
+            client.textRequestAsync("fail").get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SapcaiException);
+            assertTrue(((SapcaiException) e.getCause()).getStatusCode() == 503);
+        }
+        audio.delete();
+
+        // a full executor fails the future instead of throwing
+        transport.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        });
+        CompletableFuture<Response> rejected = client.textRequestAsync("Hello");
+        assertTrue(rejected.isCompletedExceptionally());
+        transport.close();
+    }
+
+    @Test
+    public void testStreamingAudioUpload() throws Exception {
+        ScriptedConnector connector = new ScriptedConnector();
+        connector.readDelay = 20;
+        final HttpTransport transport = new HttpTransport(connector);
+        final Client client = new Client("token", "en");
+        client.setTransport(transport);
+        final AudioPipe pipe = new AudioPipe(1 << 20);
+
+        CompletableFuture<Response> upload = transport.submit(new Supplier<Response>() {
+            @Override
+            public Response get() {
+                return client.sendAudioStream(pipe.getSource(), "token", "en");
+            }
+        });
+        // the recorder writes much faster than the upload reads, without ever waiting for it
+        OutputStream sink = pipe.getSink();
+        byte[] frame = new byte[10584];
+        long start = System.nanoTime();
+        for (int i = 0; i < 50; i++) {
+            Arrays.fill(frame, (byte) i);
+            sink.write(frame);
+        }
+        assertTrue(System.nanoTime() - start < 100000000L);
+        sink.close();
+        assertTrue(upload.get().getStatus() == 200);
+        assertTrue(connector.lastBody.contains("filename=\"sapcai_audio.wav\""));
+        assertTrue(connector.lastBody.length() > 50 * frame.length);
+        int audio = connector.lastBody.indexOf(new String(new char[frame.length]));
+        for (int i = 0; i < 50; i++) {
+            char[] sent = new char[frame.length];
+            Arrays.fill(sent, (char) i);
+            assertTrue(connector.lastBody.startsWith(new String(sent), audio + i * frame.length));
+        }
+
+        // a stalled upload makes the writes fail at once instead of blocking, and the upload fails too
+        AudioPipe stalled = new AudioPipe(2 * frame.length);
+        stalled.getSink().write(frame);
+        stalled.getSink().write(frame);
+        try {
+            stalled.getSink().write(frame);
+            fail();
+        } catch (IOException expected) {}
+        try {
+            stalled.getSource().read(new byte[10]);
+            fail();
+        } catch (IOException expected) {}
+
+        // a cancelled upload makes the next write fail
+        AudioPipe cancelled = new AudioPipe(1 << 20);
+        cancelled.getSource().close();
+        try {
+            cancelled.getSink().write(frame);
+            fail();
+        } catch (IOException expected) {}
+        transport.close();
+    }
+
+    @Test
+    public void testRequestCompression() throws Exception {
+        ScriptedConnector connector = new ScriptedConnector();
+        HttpTransport transport = new HttpTransport(connector);
+        transport.setRequestCompressionThreshold(256);
+        Client client = new Client("token", "en");
+        client.setTransport(transport);
+        char[] chars = new char[400];
+        Arrays.fill(chars, 'a');
+        String text = new String(chars);
+
+        // a text request above the threshold is gzipped
+        client.textRequest(text);
+        assertTrue("gzip".equals(connector.lastEncoding));
+        assertTrue(connector.lastBody.length() < text.length());
+        assertTrue(gunzip(connector.lastBody).contains("text=" + text));
+
+        // below the threshold it is sent as is
+        client.textRequest("Hello");
+        assertTrue(connector.lastEncoding == null);
+        assertTrue(connector.lastBody.contains("text=Hello"));
+
+        // a body of exactly the threshold is gzipped
+        String exact = "{\"text\":\"" + text.substring(0, 256 - 11) + "\"}";
+        assertTrue(exact.length() == 256);
+        transport.post(transport.getRequestUrl(), "token", new StringEntity(exact, ContentType.APPLICATION_JSON), true);
+        assertTrue("gzip".equals(connector.lastEncoding));
+        assertTrue(gunzip(connector.lastBody).equals(exact));
+        transport.post(transport.getRequestUrl(), "token", new StringEntity(exact.substring(1), ContentType.APPLICATION_JSON), true);
+        assertTrue(connector.lastEncoding == null);
+
+        // the memory update of a conversation is gzipped like any other body
+        Conversation conversation = new Conversation("token", transport);
+        conversation.setConversationToken("c1");
+        conversation.setMemory(Memory.read(new JsonPullParser(new StringReader("{}"))));
+        conversation.setAutoFlushWindow(3600 * 1000);
+        conversation.setMemoryEntity("note", new MemoryEntity(text, text, 0.9));
+        conversation.flushMemory();
+        assertTrue("gzip".equals(connector.lastEncoding));
+        assertTrue(gunzip(connector.lastBody).contains("\"note\""));
+
+        // multipart and non repeatable bodies are never compressed
+        File audio = File.createTempFile("sapcai", ".wav");
+        FileOutputStream out = new FileOutputStream(audio);
+        out.write(new byte[4096]);
+        out.close();
+        client.fileRequest(audio.getPath());
+        assertTrue(connector.lastEncoding == null);
+        assertTrue(connector.lastBody.contains("filename=\"" + audio.getName() + "\""));
+        audio.delete();
+        byte[] streamed = exact.getBytes(StandardCharsets.UTF_8);
+        transport.post(transport.getRequestUrl(), "token",
+                new InputStreamEntity(new ByteArrayInputStream(streamed), streamed.length, ContentType.APPLICATION_JSON), true);
+        assertTrue(connector.lastEncoding == null);
+        assertTrue(connector.lastBody.equals(exact));
+
+        // compression is off by default
+        transport.setRequestCompressionThreshold(-1);
+        client.textRequest(text);
+        assertTrue(connector.lastEncoding == null);
+        transport.close();
+    }
+
+    static String gunzip(String body) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body.getBytes(StandardCharsets.ISO_8859_1)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testRetryAndHedge() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        ScriptedConnector connector = new ScriptedConnector() {
+            @Override
+            int status(String method, String path, String body) {
+                return calls.incrementAndGet() == 1 ? 503 : 200;
+            }
+        };
+        HttpTransport transport = new HttpTransport(connector);
+        transport.setRetryPolicy(new RetryPolicy(3, 1, 5));
+        Client client = new Client("token", "en");
+        client.setTransport(transport);
+        Request request = new Request("token", "en");
+        request.setTransport(transport);
+
+        // a 503 then a 200: the text request is retried
+        assertTrue(client.textRequest("Hello").getStatus() == 200);
+        assertTrue(connector.requests.get() == 2);
+
+        // a converse POST is not idempotent, so its 503 is not retried
+        calls.set(0);
+        try {
+            request.doTextConverse("Hello");
+            fail();
+        } catch (SapcaiException e) {
+            assertTrue(e.getStatusCode() == 503);
+        }
+        assertTrue(connector.requests.get() == 3);
+        transport.close();
+
+        // a request slower than the usual latency is hedged, the copy wins and the primary is aborted
+        final AtomicInteger stalls = new AtomicInteger();
+        ScriptedConnector slow = new ScriptedConnector() {
+            @Override
+            public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+                if (stalls.getAndDecrement() == 1) {
+                    long deadline = System.currentTimeMillis() + 5000;
+                    while (!request.isAborted() && System.currentTimeMillis() < deadline) {
+                        try {
+                            Thread.sleep(2);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                    }
+                    throw new IOException("Aborted");
+                }
+                return super.execute(request);
+            }
+        };
+        RetryPolicy hedging = new RetryPolicy(1, 1, 5);
+        hedging.setHedgePercentile(0.9);
+        hedging.setMinHedgeDelay(20);
+        transport = new HttpTransport(slow);
+        transport.setRetryPolicy(hedging);
+        client.setTransport(transport);
+        for (int i = 0; i < LatencyTracker.MIN_SAMPLES; i++) {
+            client.textRequest("Hello " + i);
+        }
+        stalls.set(1);
+        long start = System.nanoTime();
+        assertTrue(client.textRequest("Hello").getStatus() == 200);
+        assertTrue(System.nanoTime() - start < 2000000000L);
+        assertTrue(slow.requests.get() == LatencyTracker.MIN_SAMPLES + 1);
+        transport.close();
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger failures = new AtomicInteger();
+        ScriptedConnector connector = new ScriptedConnector() {
+            @Override
+            int status(String method, String path, String body) {
+                sent.add(method + " " + body);
+                return method.equals("DELETE") && failures.getAndDecrement() > 0 ? 500 : 200;
+            }
+        };
+        HttpTransport transport = new HttpTransport(connector);
+        // the queued calls only run when the test says so
+        final List<Runnable> tasks = new ArrayList<>();
+        transport.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        Conversation conversation = new Conversation("token", transport);
+        conversation.setConversationToken("c1");
+        conversation.setMemory(Memory.read(new JsonPullParser(new StringReader("{}"))));
+        conversation.setWriteBehind(true);
+
+        // the reset drops the flush waiting before it, whose future then completes with the reset
+        conversation.setMemoryEntity("city", new MemoryEntity("Paris", "paris", 0.9));
+        CompletableFuture<Void> superseded = conversation.flushWrites();
+        conversation.resetConversation();
+        conversation.resetConversation();
+        assertFalse(superseded.isDone());
+        conversation.setMemoryEntity("name", new MemoryEntity("Paul", "paul", 0.8));
+        conversation.setMemoryEntity("age", new MemoryEntity("42", "42", 0.7));
+        CompletableFuture<Void> barrier = conversation.flushWrites();
+        assertFalse(barrier.isDone());
+        assertTrue(tasks.size() == 1);
+        tasks.remove(0).run();
+        barrier.get(5, TimeUnit.SECONDS);
+        assertTrue(superseded.isDone() && !superseded.isCompletedExceptionally());
+        assertTrue(sent.size() == 2);
+        assertTrue(sent.get(0).startsWith("DELETE"));
+        assertTrue(sent.get(1).startsWith("PUT") && sent.get(1).contains("\"name\"") && sent.get(1).contains("\"age\""));
+        assertFalse(sent.get(1).contains("city"));
+
+        // a reset failing in the background is reported by the next barrier, even once it is over, and only once
+        failures.set(1);
+        conversation.resetConversation();
+        tasks.remove(0).run();
+        assertTrue(sent.size() == 3);
+        try {
+            conversation.flushWrites().get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(((SapcaiException) e.getCause()).getStatusCode() == 500);
+        }
+        conversation.flushWrites().get(5, TimeUnit.SECONDS);
+
+        // a superseded flush fails with the reset replacing it, and the barrier waiting for it reports the failure
+        failures.set(1);
+        conversation.setMemoryEntity("city", new MemoryEntity("Rome", "rome", 0.9));
+        superseded = conversation.flushWrites();
+        conversation.resetConversation();
+        tasks.remove(0).run();
+        try {
+            superseded.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(((SapcaiException) e.getCause()).getStatusCode() == 500);
+        }
+        conversation.flushWrites().get(5, TimeUnit.SECONDS);
+        assertTrue(sent.size() == 4);
+
+        // when the executor rejects the drain, the calls are sent by the caller
+        transport.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        });
+        conversation.setMemoryEntity("city", new MemoryEntity("Oslo", "oslo", 0.9));
+        assertTrue(sent.size() == 5);
+        assertTrue(sent.get(4).startsWith("PUT") && sent.get(4).contains("oslo"));
+        conversation.resetConversation();
+        assertTrue(sent.size() == 6);
+        assertTrue(conversation.flushWrites().isDone());
+        assertTrue(tasks.isEmpty());
+        transport.close();
+    }
+
+    /**
+     * Answers the requests in-process like LoopbackConnector, with a status and a payload chosen for each request
+     * from its method, path and body. Also counts the requests and the most ever in flight at the same time.
+     */
+    static class ScriptedConnector implements HttpConnector {
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        volatile long       readDelay;
+        volatile String     lastBody;
+        volatile String     lastEncoding;
+
+        int status(String method, String path, String body) throws IOException {
+            return 200;
+        }
+
+        String payload(String method, String path, String body) {
+            return path.equals(HttpTransport.CONVERSE_PATH) ? CONVERSE_JSON : FAKE_JSON;
+        }
+
+        static String text(String body) {
+            for (NameValuePair pair : URLEncodedUtils.parse(body, StandardCharsets.UTF_8)) {
+                if (pair.getName().equals("text")) {
+                    return pair.getValue();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+            this.requests.incrementAndGet();
+            int n = this.inFlight.incrementAndGet();
+            while (n > this.maxInFlight.get() && !this.maxInFlight.compareAndSet(this.maxInFlight.get(), n)) {}
+            try {
+                String body = "";
+                if (request instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) request).getEntity() != null) {
+                    final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+                    // a slow network: each write of the body waits for readDelay
+                    ((HttpEntityEnclosingRequest) request).getEntity().writeTo(new OutputStream() {
+                        @Override
+                        public void write(int b) {
+                            sent.write(b);
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            if (readDelay > 0) {
+                                try {
+                                    Thread.sleep(readDelay);
+                                } catch (InterruptedException e) {
+                                    throw new IOException(e);
+                                }
+                            }
+                            sent.write(b, off, len);
+                        }
+                    });
+                    body = new String(sent.toByteArray(), StandardCharsets.ISO_8859_1);
+                    this.lastBody = body;
+                    Header encoding = ((HttpEntityEnclosingRequest) request).getEntity().getContentEncoding();
+                    this.lastEncoding = encoding != null ? encoding.getValue() : null;
+                }
+                String method = request.getMethod();
+                String path = request.getURI().getPath();
+                int status = this.status(method, path, body);
+                ScriptedResponse response = new ScriptedResponse(status);
+                if (status == 200) {
+                    response.setEntity(new StringEntity(this.payload(method, path, body), ContentType.APPLICATION_JSON));
+                }
+                return response;
+            } finally {
+                this.inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void evictIdleConnections(long idleTimeout) {}
+
+        @Override
+        public void close() {}
+    }
+
+    static class ScriptedResponse extends BasicHttpResponse implements CloseableHttpResponse {
+        ScriptedResponse(int status) {
+            super(HttpVersion.HTTP_1_1, status, null);
+        }
+
+        @Override
+        public void close() {}
+    }
 }